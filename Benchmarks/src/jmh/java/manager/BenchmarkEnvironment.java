@@ -0,0 +1,71 @@
+package manager;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Temporary directory and configuration used by the benchmarks that need a FTPManager
+ *
+ * @author edgar
+ */
+final class BenchmarkEnvironment {
+
+    /**
+     * Remote root dir of the configuration
+     */
+    static final String ROOT_DIR = "/upload";
+
+    private BenchmarkEnvironment() { /* Empty */ }
+
+    /**
+     * Creates a temporary directory with a configuration pointing at the fake server and loads it
+     *
+     * @param uploadWorkers number of upload sessions
+     * @param queueMemoryCapacity files kept in memory before the queue spills to disk
+     * @return the directory
+     * @throws IOException
+     */
+    static File setUp(int uploadWorkers, int queueMemoryCapacity) throws IOException {
+        File directory = Files.createTempDirectory("submission-monitor-bench").toFile();
+        File config = new File(directory, "ftp.properties");
+        try (Writer writer = new FileWriter(config)) {
+            writer.write("host=localhost\n");
+            writer.write("port=21\n");
+            writer.write("username=bench\n");
+            writer.write("password=bench\n");
+            writer.write("rootDir=" + ROOT_DIR + "\n");
+            writer.write("uploadWorkers=" + uploadWorkers + "\n");
+            writer.write("queueMemoryCapacity=" + queueMemoryCapacity + "\n");
+        }
+        if (!ConfigurationManager.getInstance().load(config.getPath()))
+            throw new IOException("Could not load '" + config + "'");
+        return directory;
+    }
+
+    /**
+     * Deletes the directory and everything in it
+     */
+    static void tearDown(File directory) throws IOException {
+        Path root = directory.toPath();
+        if (!Files.exists(root))
+            return;
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Creates a local file with the given size
+     */
+    static File createFile(File directory, String name, int size) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), new byte[size]);
+        return file;
+    }
+}
@@ -0,0 +1,77 @@
+package manager;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of queueing files with {@link FTPManager#sendFile} and {@link FTPManager#sendFiles}, journal
+ * write included, with queues of different sizes already waiting. The only worker is held in
+ * connect so the queue is never drained while measuring.
+ *
+ * @author edgar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EnqueueBenchmark {
+
+    /**
+     * Files already queued before measuring, above 10000 the queue is spilled to disk
+     */
+    @Param({"0", "10000", "100000"})
+    public int queueSize;
+
+    /**
+     * Files per call, 1 uses sendFile and anything else sendFiles
+     */
+    @Param({"1", "64"})
+    public int batchSize;
+
+    private File mDirectory;
+    private CountDownLatch mConnectGate;
+    private FTPManager mManager;
+    private File mFile;
+    private long mNextFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = BenchmarkEnvironment.setUp(1, 10000);
+        mConnectGate = new CountDownLatch(1);
+        FTPManager.setClientFactory(() -> new FakeFTPSClient(FakeFTPSClient.newRemoteTree(BenchmarkEnvironment.ROOT_DIR),
+                new HashMap<>(), 0, mConnectGate));
+        mManager = new FTPManager(mDirectory);
+        mFile = BenchmarkEnvironment.createFile(mDirectory, "payload", 1024);
+
+        List<FTPManager.FileToSendInfo> queued = new ArrayList<>(queueSize);
+        for (int i = 0; i < queueSize; i++)
+            queued.add(new FTPManager.FileToSendInfo(mFile, "queued/" + i));
+        mManager.sendFiles(queued);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        mConnectGate.countDown();
+        mManager.shutdown();
+        BenchmarkEnvironment.tearDown(mDirectory);
+    }
+
+    @Benchmark
+    public void enqueue() {
+        if (batchSize == 1) {
+            mManager.sendFile(mFile, "bench/" + mNextFile++);
+            return;
+        }
+
+        List<FTPManager.FileToSendInfo> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++)
+            batch.add(new FTPManager.FileToSendInfo(mFile, "bench/" + mNextFile++));
+        mManager.sendFiles(batch);
+    }
+}
@@ -0,0 +1,196 @@
+package manager;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPSClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process stand-in for a FTPS server. Keeps the remote tree in memory, reads every stored
+ * stream to the end and answers each command after a configurable round trip time.
+ *
+ * @author edgar
+ */
+class FakeFTPSClient extends FTPSClient {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Set<String> mDirectories;
+    private final Map<String, Long> mFiles;
+    private final long mRoundTripNanos;
+    private final CountDownLatch mConnectGate;
+
+    private String mWorkingDirectory = "/";
+    private int mReplyCode;
+    private String mReplyString;
+
+    /**
+     * @param directories remote directories, shared by the clients of the same fake server
+     * @param files size of every remote file by path, shared by the clients of the same fake server
+     * @param roundTripMicros time every command takes
+     * @param connectGate connect waits until it is opened, may be null
+     */
+    FakeFTPSClient(Set<String> directories, Map<String, Long> files, long roundTripMicros, CountDownLatch connectGate) {
+        super("TLS");
+        mDirectories = directories;
+        mFiles = files;
+        mRoundTripNanos = TimeUnit.MICROSECONDS.toNanos(roundTripMicros);
+        mConnectGate = connectGate;
+    }
+
+    /**
+     * @param rootDir remote root dir the clients are configured with
+     * @return a remote tree with only the root dir, can be shared by several clients
+     */
+    static Set<String> newRemoteTree(String rootDir) {
+        Set<String> directories = ConcurrentHashMap.newKeySet();
+        directories.add("/");
+        directories.add(rootDir);
+        return directories;
+    }
+
+    @Override
+    public void connect(String hostname, int port) throws IOException {
+        if (mConnectGate != null) {
+            try {
+                mConnectGate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Fake server is closed");
+        }
+        reply(220, "Ready");
+    }
+
+    @Override
+    public void execPBSZ(long size) throws IOException {
+        reply(200, "PBSZ=0");
+    }
+
+    @Override
+    public void execPROT(String prot) throws IOException {
+        reply(200, "Protection set");
+    }
+
+    @Override
+    public boolean login(String username, String password) throws IOException {
+        return reply(230, "Logged in");
+    }
+
+    @Override
+    public boolean changeWorkingDirectory(String pathname) throws IOException {
+        if (!mDirectories.contains(pathname))
+            return reply(550, "No such directory");
+        mWorkingDirectory = pathname;
+        return reply(250, "OK");
+    }
+
+    @Override
+    public boolean makeDirectory(String pathname) throws IOException {
+        if (!mDirectories.add(pathname))
+            return reply(550, "Exists");
+        return reply(257, "Created");
+    }
+
+    @Override
+    public boolean storeFile(String remote, InputStream local) throws IOException {
+        mFiles.put(remote, drain(local));
+        return reply(226, "Transfer complete");
+    }
+
+    @Override
+    public boolean appendFile(String remote, InputStream local) throws IOException {
+        mFiles.merge(remote, drain(local), Long::sum);
+        return reply(226, "Transfer complete");
+    }
+
+    @Override
+    public int sendCommand(String command, String args) throws IOException {
+        if (command.equals("SIZE")) {
+            Long size = mFiles.get(args);
+            if (size != null)
+                reply(213, String.valueOf(size));
+            else
+                reply(550, "No such file");
+        } else {
+            reply(502, "Not implemented");
+        }
+        return mReplyCode;
+    }
+
+    @Override
+    public boolean hasFeature(String feature) throws IOException {
+        return false;
+    }
+
+    @Override
+    public FTPFile[] listDirectories(String parent) throws IOException {
+        reply(226, "OK");
+        return new FTPFile[0];
+    }
+
+    @Override
+    public boolean setFileType(int fileType) throws IOException {
+        return reply(200, "Type set");
+    }
+
+    @Override
+    public void enterLocalPassiveMode() { /* No data connection */ }
+
+    @Override
+    public void setRestartOffset(long offset) { /* Appends are used to resume */ }
+
+    @Override
+    public void setControlKeepAliveTimeout(long controlIdle) { /* No control connection */ }
+
+    @Override
+    public int getReplyCode() {
+        return mReplyCode;
+    }
+
+    @Override
+    public String getReplyString() {
+        return mReplyString;
+    }
+
+    @Override
+    public boolean sendNoOp() throws IOException {
+        return reply(200, "NOOP ok");
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mReplyString != null;
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        mReplyString = null;
+    }
+
+    String getWorkingDirectory() { return mWorkingDirectory; }
+
+    private boolean reply(int code, String message) {
+        if (mRoundTripNanos > 0)
+            LockSupport.parkNanos(mRoundTripNanos);
+        mReplyCode = code;
+        mReplyString = code + " " + message + "\r\n";
+        return code < 400;
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            total += read;
+        return total;
+    }
+}
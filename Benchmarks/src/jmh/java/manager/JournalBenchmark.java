@@ -0,0 +1,85 @@
+package manager;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of persisting the queue: one ENQUEUE record against the Java serialization of a
+ * {@link FTPManager.FileToSendInfo} used by older versions, and the replay of journals of
+ * different sizes on startup.
+ *
+ * @author edgar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JournalBenchmark {
+
+    /**
+     * Files in the journal that is replayed, half of them already completed
+     */
+    @Param({"10000", "100000"})
+    public int journalSize;
+
+    private File mDirectory;
+    private File mReplayFile;
+    private UploadJournal mJournal;
+    private FTPManager.FileToSendInfo mFileToSendInfo;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = BenchmarkEnvironment.setUp(1, 10000);
+        mFileToSendInfo = new FTPManager.FileToSendInfo(0, new File(mDirectory, "some/folder/file.dat"),
+                "some/folder/file.dat", System.currentTimeMillis());
+
+        mJournal = new UploadJournal(new File(mDirectory, "append.journal"));
+        mJournal.replay(fileToSendInfo -> { });
+
+        mReplayFile = new File(mDirectory, "replay.journal");
+        UploadJournal journal = new UploadJournal(mReplayFile);
+        journal.replay(fileToSendInfo -> { });
+        for (int i = 0; i < journalSize; i++) {
+            FTPManager.FileToSendInfo fileToSendInfo = new FTPManager.FileToSendInfo(i, new File(mDirectory, "file" + i),
+                    "folder" + (i % 100) + "/file" + i, System.currentTimeMillis());
+            journal.appendEnqueue(fileToSendInfo);
+            if (i % 2 == 0)
+                journal.appendComplete(fileToSendInfo);
+        }
+        journal.shutdown();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mJournal.shutdown();
+        BenchmarkEnvironment.tearDown(mDirectory);
+    }
+
+    @Benchmark
+    public void appendEnqueue() throws IOException {
+        mJournal.appendEnqueue(mFileToSendInfo);
+    }
+
+    @Benchmark
+    public byte[] legacySerialization() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(mFileToSendInfo);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void replay(Blackhole blackhole) throws IOException {
+        UploadJournal journal = new UploadJournal(mReplayFile);
+        journal.replay(blackhole::consume);
+        journal.shutdown();
+    }
+}
@@ -0,0 +1,58 @@
+package manager;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the path handling done by checkAndCreateRemoteDirectories before any command is sent:
+ * splitting the relative path into its parent directories and looking them up in the cache.
+ *
+ * @author edgar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RemoteDirectoryBenchmark {
+
+    /**
+     * Number of folders between the root dir and the file
+     */
+    @Param({"1", "4", "16"})
+    public int depth;
+
+    private String mRelativePath;
+    private final RemoteDirectoryCache mCache = new RemoteDirectoryCache("localhost:21", BenchmarkEnvironment.ROOT_DIR);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < depth; i++)
+            builder.append("folder").append(i).append('/');
+        mRelativePath = builder.append("file.dat").toString();
+
+        for (String directory : RemoteDirectoryCache.parentDirectories(BenchmarkEnvironment.ROOT_DIR, mRelativePath))
+            mCache.add(directory);
+    }
+
+    @Benchmark
+    public List<String> parentDirectories() {
+        return RemoteDirectoryCache.parentDirectories(BenchmarkEnvironment.ROOT_DIR, mRelativePath);
+    }
+
+    /**
+     * The common case, every folder is already known and no command has to be sent
+     */
+    @Benchmark
+    public void cachedLookup(Blackhole blackhole) {
+        for (String directory : RemoteDirectoryCache.parentDirectories(BenchmarkEnvironment.ROOT_DIR, mRelativePath))
+            blackhole.consume(mCache.contains(directory));
+    }
+
+    @Benchmark
+    public String resolve() {
+        return RemoteDirectoryCache.resolve(BenchmarkEnvironment.ROOT_DIR, mRelativePath);
+    }
+}
@@ -0,0 +1,82 @@
+package manager;
+
+import metrics.Metrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Files uploaded per second by the whole pipeline, from {@link FTPManager#sendFiles} to the
+ * manifest record, against the in-process fake server. Every batch goes to new folders so the
+ * remote directories have to be created too.
+ *
+ * @author edgar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UploadBenchmark {
+
+    private static final int FILES_PER_BATCH = 256;
+    private static final int FILE_SIZE = 4 * 1024;
+    private static final long BATCH_TIMEOUT_MS = 60 * 1000;
+
+    @Param({"1", "4"})
+    public int uploadWorkers;
+
+    /**
+     * Simulated round trip time of every FTP command
+     */
+    @Param({"0", "500"})
+    public long roundTripMicros;
+
+    private File mDirectory;
+    private FTPManager mManager;
+    private final List<File> mFiles = new ArrayList<>(FILES_PER_BATCH);
+    private int mBatch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = BenchmarkEnvironment.setUp(uploadWorkers, 10000);
+        Set<String> remoteDirectories = FakeFTPSClient.newRemoteTree(BenchmarkEnvironment.ROOT_DIR);
+        Map<String, Long> remoteFiles = new ConcurrentHashMap<>();
+        FTPManager.setClientFactory(() -> new FakeFTPSClient(remoteDirectories, remoteFiles, roundTripMicros, null));
+        mManager = new FTPManager(mDirectory);
+
+        for (int i = 0; i < FILES_PER_BATCH; i++)
+            mFiles.add(BenchmarkEnvironment.createFile(mDirectory, "file" + i, FILE_SIZE));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        mManager.shutdown();
+        BenchmarkEnvironment.tearDown(mDirectory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES_PER_BATCH)
+    public void uploadBatch() throws InterruptedException {
+        long target = Metrics.UPLOADS_COMPLETED.get() + FILES_PER_BATCH;
+        String folder = "batch" + (mBatch++) + "/";
+
+        List<FTPManager.FileToSendInfo> batch = new ArrayList<>(FILES_PER_BATCH);
+        for (int i = 0; i < FILES_PER_BATCH; i++)
+            batch.add(new FTPManager.FileToSendInfo(mFiles.get(i), folder + "sub" + (i % 16) + "/" + mFiles.get(i).getName()));
+        mManager.sendFiles(batch);
+
+        long deadline = System.currentTimeMillis() + BATCH_TIMEOUT_MS;
+        while (Metrics.UPLOADS_COMPLETED.get() < target) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("Batch was not uploaded in " + BATCH_TIMEOUT_MS + "ms");
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+    }
+}
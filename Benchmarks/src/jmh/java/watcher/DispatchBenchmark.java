@@ -0,0 +1,95 @@
+package watcher;
+
+import manager.OnEventReceived;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Cost of handing the events of a watch key to the delegate, the work the {@link EventHandoff} thread
+ * does for every key polled by {@link WatchDir#processEvents()}, stability filter included. The files keep being written, as they would
+ * while a submission is copied, so every event only extends the wait of an already pending file.
+ *
+ * @author edgar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DispatchBenchmark {
+
+    /**
+     * Events polled from the key at once
+     */
+    @Param({"1", "16", "256"})
+    public int eventsPerKey;
+
+    private Path mDirectory;
+    private WatchDir mWatchDir;
+    private List<WatchEvent<?>> mEvents;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) throws IOException {
+        mDirectory = Files.createTempDirectory("submission-monitor-bench");
+        OnEventReceived delegate = new OnEventReceived() {
+            @Override
+            public void executeBatch(List<Event> events) {
+                blackhole.consume(events);
+            }
+        };
+        // Long window so the files stay pending for the whole run
+        mWatchDir = new WatchDir(mDirectory, true, delegate, TimeUnit.HOURS.toMillis(1));
+
+        mEvents = new ArrayList<>(eventsPerKey);
+        for (int i = 0; i < eventsPerKey; i++) {
+            Path file = Files.createFile(mDirectory.resolve("file" + i));
+            mEvents.add(new FakeWatchEvent(i % 2 == 0 ? ENTRY_CREATE : ENTRY_MODIFY, file.getFileName()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(mDirectory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void dispatchEvents() throws IOException {
+        mWatchDir.dispatchEvents(mDirectory, mEvents);
+    }
+
+    /**
+     * Event as polled from a WatchKey, the context is relative to the watched directory
+     */
+    private static class FakeWatchEvent implements WatchEvent<Path> {
+
+        private final Kind<Path> mKind;
+        private final Path mContext;
+
+        FakeWatchEvent(Kind<Path> kind, Path context) {
+            mKind = kind;
+            mContext = context;
+        }
+
+        @Override
+        public Kind<Path> kind() { return mKind; }
+
+        @Override
+        public int count() { return 1; }
+
+        @Override
+        public Path context() { return mContext; }
+    }
+}
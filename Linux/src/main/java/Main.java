@@ -2,10 +2,19 @@ import log.Log;
 import manager.ConfigurationManager;
 import manager.FTPManager;
 import manager.OnEventReceived;
+import manager.ReplicationManager;
+import metrics.Metrics;
+import sql.SqlIngestion;
+import watcher.WatchBackend;
+import watcher.WatchDir;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 
@@ -38,45 +47,79 @@ public class Main {
 
         Path dir = Paths.get(args[dirArg]);
 
-        // Load and initialize the FTPManager
+        // Load and initialize the upload targets
         if(!ConfigurationManager.getInstance().load("ftp.properties"))
             System.exit(-1);
-        FTPManager.init();
+        Metrics.start(ConfigurationManager.getInstance().getMetricsPort());
+        ReplicationManager.init();
 
-        // Every time the configuration changes, run the FTPManager
+        // Every time the configuration changes, run the upload workers
         ConfigurationManager.getInstance().setOnConfigurationReload(new Runnable() {
             @Override
             public void run() {
-                FTPManager.getInstance().startThread();
+                ReplicationManager.getInstance().startThread();
             }
         });
 
+        // Run the received .sql files against the database, if there is one. Once committed they
+        // are recorded like uploaded files, so they are not run again on the next start.
+        final SqlIngestion sqlIngestion = SqlIngestion.isEnabled() ? new SqlIngestion(file ->
+                ReplicationManager.getInstance().markUploaded(file, dir.relativize(file.toPath()).toString())) : null;
+        if (sqlIngestion != null)
+            sqlIngestion.start();
+
         // What to do when the Watcher detect file changes
         OnEventReceived eventDelegate = new OnEventReceived() {
             public void execute(WatchEvent.Kind<Path> eventKind, Path filePath) {
-                File file = filePath.toFile();
-                if (eventKind == ENTRY_CREATE) {
+                executeBatch(Collections.singletonList(new Event(eventKind, filePath)));
+            }
 
-                    // If file is hidden ignore
-                    if (file.getName().startsWith(".")) {
-                        return;
+            public void executeBatch(List<Event> events) {
+                List<FTPManager.FileToSendInfo> filesToSend = new ArrayList<>(events.size());
+                for (Event event : events) {
+                    File file = event.getPath().toFile();
+                    if (event.getKind() == ENTRY_CREATE) {
+
+                        // If file is hidden ignore
+                        if (file.getName().startsWith(".")) {
+                            continue;
+                        }
+
+                        // If it is and sql file
+                        if (file.getName().endsWith(".sql")) {
+                            if (sqlIngestion != null)
+                                sqlIngestion.add(file);
+                            continue;
+                        }
+
+                        // Send file
+                        if(!file.isDirectory())
+                            filesToSend.add(new FTPManager.FileToSendInfo(file, dir.relativize(event.getPath()).toString(), event.getTimestamp()));
                     }
-
-                    // If it is and sql file
-                    if (file.getName().endsWith(".sql"))
-                        //TODO: Do sql stuff
-                        return;
-
-                    // Send file
-                    if(!file.isDirectory())
-                    FTPManager.getInstance().sendFile(file, dir.relativize(filePath).toString());
                 }
 
+                // Queue the whole batch at once
+                ReplicationManager.getInstance().sendFiles(filesToSend);
             }
         };
 
+        // Files that were not uploaded while we were down are sent too. On the first run there is no
+        // history, so what is already there is taken as uploaded instead of sending the whole tree.
+        final boolean hasUploadHistory = ReplicationManager.getInstance().hasUploadHistory();
+        Predicate<Path> catchUpFilter = path -> {
+            File file = path.toFile();
+            String remote = dir.relativize(path).toString();
+            if (hasUploadHistory)
+                return !ReplicationManager.getInstance().isUploaded(file, remote);
+            ReplicationManager.getInstance().markUploaded(file, remote);
+            return false;
+        };
+
         // Run the main directory watcher
-        WatchDir watchDir = new WatchDir(dir, true, eventDelegate);
+        ConfigurationManager configuration = ConfigurationManager.getInstance();
+        WatchBackend backend = WatchBackend.create(configuration.getWatcher(), configuration.getPollingMinInterval(),
+                configuration.getPollingMaxInterval(), configuration.getPollingThreads());
+        WatchDir watchDir = new WatchDir(dir, true, eventDelegate, configuration.getStabilityWindow(), catchUpFilter, backend);
         watchDir.processEvents();
     }
 
@@ -0,0 +1,233 @@
+package sql;
+
+import log.Log;
+import manager.ConfigurationManager;
+import manager.FTPManager;
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Metrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs the received .sql files against the database configured by 'sqlUrl'.
+ *
+ * Files received within 'sqlBatchWindowMs' of the first one are run together, in one transaction,
+ * their statements sent in JDBC batches of 'sqlBatchSize'. If the transaction fails it is rolled
+ * back and every file of the group is run again in a transaction of its own, so one broken file
+ * does not keep the others out; if the connection itself was lost, a new one is opened for that.
+ * When the database cannot be reached, the files not committed yet are kept, ahead of the files
+ * received since, and tried again after a backoff of 'retryBaseDelayMs' up to 'retryMaxDelayMs'.
+ * The files are read statement by statement, see {@link SqlStatementReader}.
+ *
+ * @author edgar
+ */
+public class SqlIngestion {
+
+    private static final String TAG = SqlIngestion.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Seconds to wait for the database to answer when checking a connection
+     */
+    private static final int VALIDATION_TIMEOUT_S = 5;
+
+    private static final Counter FILES_INGESTED = Metrics.counter("sql_files_ingested_total", "SQL files run against the database");
+    private static final Counter FILES_FAILED = Metrics.counter("sql_files_failed_total", "SQL files that failed and were rolled back");
+    private static final Counter CONNECT_FAILURES = Metrics.counter("sql_connect_failures_total",
+            "Times the database could not be reached and the files were kept to be tried again");
+    private static final Counter STATEMENTS = Metrics.counter("sql_statements_total", "SQL statements run against the database");
+    private static final Histogram TRANSACTION_TIME = Metrics.histogram("sql_transaction_seconds", "Time to run and commit a group of SQL files");
+
+    private final BlockingQueue<File> mFiles = new LinkedBlockingQueue<>();
+    private final Consumer<File> mOnIngested;
+    private Thread mThread;
+
+    /**
+     * @param onIngested called with every file once it is committed, may be null
+     */
+    public SqlIngestion(Consumer<File> onIngested) {
+        mOnIngested = onIngested;
+        Metrics.gauge("sql_files_queued", "SQL files waiting to be run", mFiles::size);
+    }
+
+    /**
+     * @return true if a database is configured
+     */
+    public static boolean isEnabled() {
+        return !ConfigurationManager.getInstance().getSqlUrl().trim().isEmpty();
+    }
+
+    public synchronized void start() {
+        if (mThread != null)
+            return;
+        mThread = new Thread(this::run, TAG + " Thread");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void shutdown() {
+        if (mThread != null)
+            mThread.interrupt();
+    }
+
+    /**
+     * Queues a file to be run, never blocks
+     */
+    public void add(File file) {
+        mFiles.add(file);
+    }
+
+    private void run() {
+        List<File> group = new ArrayList<>();
+        int connectFailures = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Collect the files received during the window that starts with the first one
+                if (group.isEmpty()) {
+                    group.add(mFiles.take());
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ConfigurationManager.getInstance().getSqlBatchWindow());
+                    long left;
+                    while ((left = deadline - System.nanoTime()) > 0) {
+                        File file = mFiles.poll(left, TimeUnit.NANOSECONDS);
+                        if (file == null)
+                            break;
+                        group.add(file);
+                    }
+                }
+                mFiles.drainTo(group);
+
+                // Files that could not be run because the database was unreachable stay first in line
+                group = new ArrayList<>(ingest(group));
+                if (group.isEmpty()) {
+                    connectFailures = 0;
+                    continue;
+                }
+                long delay = FTPManager.backoffDelay(++connectFailures, ConfigurationManager.getInstance().getRetryBaseDelay(),
+                        ConfigurationManager.getInstance().getRetryMaxDelay());
+                Log.e(TAG, "Retrying %d files in %dms.", group.size(), delay);
+                TimeUnit.MILLISECONDS.sleep(delay);
+            }
+        } catch (InterruptedException e) {
+            // Asked to stop
+        }
+    }
+
+    /**
+     * Runs a group of files in one transaction, or each in its own if that fails
+     *
+     * @return the files that were not run because the database could not be reached, empty if every
+     * file was either committed or rolled back
+     */
+    private List<File> ingest(List<File> group) {
+        Connection connection = null;
+        int next = 0;
+        try {
+            connection = connect();
+            if (runTransaction(connection, group))
+                return Collections.emptyList();
+            // If the connection itself failed, every file would fail again on it
+            if (!connection.isValid(VALIDATION_TIMEOUT_S)) {
+                Log.e(TAG, "Lost the connection to the database, reconnecting.");
+                close(connection);
+                connection = connect();
+            } else if (group.size() == 1) {
+                return Collections.emptyList();
+            }
+            if (group.size() > 1)
+                Log.e(TAG, "Running the %d files of the group one by one.", group.size());
+            for (; next < group.size(); next++)
+                runTransaction(connection, Collections.singletonList(group.get(next)));
+            return Collections.emptyList();
+        } catch (SQLException e) {
+            // The files that were not committed yet are tried again, they are not marked as ingested
+            Log.e(TAG, "Could not reach '" + ConfigurationManager.getInstance().getSqlUrl() + "': " + e.getMessage());
+            CONNECT_FAILURES.inc();
+            return group.subList(next, group.size());
+        } finally {
+            close(connection);
+        }
+    }
+
+    private static Connection connect() throws SQLException {
+        ConfigurationManager configuration = ConfigurationManager.getInstance();
+        Connection connection = DriverManager.getConnection(configuration.getSqlUrl(),
+                configuration.getSqlUsername(), configuration.getSqlPassword());
+        connection.setAutoCommit(false);
+        return connection;
+    }
+
+    private static void close(Connection connection) {
+        if (connection == null)
+            return;
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // The connection is already broken
+        }
+    }
+
+    /**
+     * @return true if all the files were run and committed, false if they were rolled back
+     */
+    private boolean runTransaction(Connection connection, List<File> files) throws SQLException {
+        long start = System.nanoTime();
+        int batchSize = ConfigurationManager.getInstance().getSqlBatchSize();
+        boolean backslashEscapes = ConfigurationManager.getInstance().getSqlBackslashEscapes();
+        int statements = 0;
+        try (Statement statement = connection.createStatement()) {
+            int batched = 0;
+            for (File file : files) {
+                try (SqlStatementReader reader = new SqlStatementReader(new BufferedReader(new InputStreamReader(
+                        Files.newInputStream(file.toPath()), StandardCharsets.UTF_8), BUFFER_SIZE), backslashEscapes)) {
+                    String sql;
+                    while ((sql = reader.next()) != null) {
+                        statement.addBatch(sql);
+                        statements++;
+                        if (++batched == batchSize) {
+                            statement.executeBatch();
+                            batched = 0;
+                        }
+                    }
+                }
+            }
+            if (batched > 0)
+                statement.executeBatch();
+            connection.commit();
+        } catch (SQLException | IOException e) {
+            connection.rollback();
+            Log.e(TAG, "Rolled back " + ((files.size() == 1) ? "'" + files.get(0) + "'" : files.size() + " files")
+                    + ": " + e.getMessage());
+            if (files.size() == 1)
+                FILES_FAILED.inc();
+            return false;
+        }
+        TRANSACTION_TIME.recordSince(start);
+        STATEMENTS.add(statements);
+        FILES_INGESTED.add(files.size());
+        Log.d(TAG, "Ran %d statements of %d file(s) in %dms.", statements, files.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (mOnIngested != null) {
+            for (File file : files)
+                mOnIngested.accept(file);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,148 @@
+package sql;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a SQL script into statements while reading it, so a dump of any size is never held in
+ * memory, only the statement being read.
+ *
+ * Statements end with ';'. A ';' inside a quoted string, a quoted identifier ("..." or `...`) or a
+ * comment does not end a statement. Line comments (--) are dropped, block comments are kept since
+ * some databases read hints from them. Scripts that change the delimiter, e.g. to define stored
+ * procedures, are not supported.
+ *
+ * @author edgar
+ */
+class SqlStatementReader implements Closeable {
+
+    private final Reader mReader;
+    private final boolean isBackslashEscapes;
+    private final StringBuilder mStatement = new StringBuilder();
+
+    /**
+     * A character read ahead that belongs to the next call to {@link #read()}, -2 if there is none
+     */
+    private int mPushedBack = -2;
+
+    /**
+     * @param reader the script, should be buffered
+     * @param backslashEscapes true if a backslash escapes the next character inside quotes, as in MySQL
+     */
+    SqlStatementReader(Reader reader, boolean backslashEscapes) {
+        mReader = reader;
+        isBackslashEscapes = backslashEscapes;
+    }
+
+    /**
+     * @return the next statement, trimmed and without its ';', or null at the end of the script
+     * @throws IOException
+     */
+    String next() throws IOException {
+        mStatement.setLength(0);
+        int c;
+        while ((c = read()) != -1) {
+            switch (c) {
+                case ';':
+                    String statement = mStatement.toString().trim();
+                    if (!statement.isEmpty())
+                        return statement;
+                    mStatement.setLength(0);
+                    break;
+                case '\'':
+                case '"':
+                case '`':
+                    mStatement.append((char) c);
+                    readQuoted(c);
+                    break;
+                case '-':
+                    int next = read();
+                    if (next == '-') {
+                        skipLine();
+                    } else {
+                        mStatement.append('-');
+                        unread(next);
+                    }
+                    break;
+                case '/':
+                    next = read();
+                    mStatement.append('/');
+                    if (next == '*') {
+                        mStatement.append('*');
+                        readBlockComment();
+                    } else {
+                        unread(next);
+                    }
+                    break;
+                default:
+                    mStatement.append((char) c);
+            }
+        }
+
+        // The last statement may have no ';'
+        String statement = mStatement.toString().trim();
+        return statement.isEmpty() ? null : statement;
+    }
+
+    /**
+     * Appends a quoted string or identifier up to its closing quote. A doubled quote is an escaped
+     * quote, the quoted text goes on.
+     */
+    private void readQuoted(int quote) throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            mStatement.append((char) c);
+            if (c == '\\' && isBackslashEscapes && quote != '`') {
+                c = read();
+                if (c == -1)
+                    return;
+                mStatement.append((char) c);
+            } else if (c == quote) {
+                int next = read();
+                if (next != quote) {
+                    unread(next);
+                    return;
+                }
+                mStatement.append((char) next);
+            }
+        }
+    }
+
+    private void readBlockComment() throws IOException {
+        int previous = 0;
+        int c;
+        while ((c = read()) != -1) {
+            mStatement.append((char) c);
+            if (previous == '*' && c == '/')
+                return;
+            previous = c;
+        }
+    }
+
+    private void skipLine() throws IOException {
+        int c;
+        while ((c = read()) != -1 && c != '\n') {
+            // Dropped
+        }
+        mStatement.append('\n');
+    }
+
+    private int read() throws IOException {
+        if (mPushedBack != -2) {
+            int c = mPushedBack;
+            mPushedBack = -2;
+            return c;
+        }
+        return mReader.read();
+    }
+
+    private void unread(int c) {
+        mPushedBack = c;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+}
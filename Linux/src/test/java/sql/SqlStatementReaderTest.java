@@ -0,0 +1,81 @@
+package sql;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author edgar
+ */
+public class SqlStatementReaderTest {
+
+    @Test
+    public void splitsOnSemicolons() throws IOException {
+        assertEquals(Arrays.asList("CREATE TABLE t (a INT)", "INSERT INTO t VALUES (1)"),
+                read("CREATE TABLE t (a INT);\n  INSERT INTO t VALUES (1);\n", false));
+    }
+
+    @Test
+    public void lastStatementNeedsNoSemicolon() throws IOException {
+        assertEquals(Arrays.asList("SELECT 1", "SELECT 2"), read("SELECT 1;SELECT 2", false));
+    }
+
+    @Test
+    public void skipsEmptyStatements() throws IOException {
+        assertEquals(Arrays.asList("SELECT 1"), read(";;\n SELECT 1;; ;\n", false));
+    }
+
+    @Test
+    public void keepsSemicolonsInQuotes() throws IOException {
+        assertEquals(Arrays.asList("INSERT INTO t VALUES ('a;b', \"c;d\", `e;f`)", "SELECT 2"),
+                read("INSERT INTO t VALUES ('a;b', \"c;d\", `e;f`); SELECT 2;", false));
+    }
+
+    @Test
+    public void doubledQuoteIsEscaped() throws IOException {
+        assertEquals(Arrays.asList("INSERT INTO t VALUES ('it''s; fine')", "SELECT 2"),
+                read("INSERT INTO t VALUES ('it''s; fine'); SELECT 2", false));
+    }
+
+    @Test
+    public void backslashEscapesOnlyWhenEnabled() throws IOException {
+        String script = "INSERT INTO t VALUES ('a\\';b'); SELECT 2;";
+        assertEquals(Arrays.asList("INSERT INTO t VALUES ('a\\';b')", "SELECT 2"), read(script, true));
+        // Without escapes the quote after the backslash closes the string, so the next quote opens one to the end
+        assertEquals(Arrays.asList("INSERT INTO t VALUES ('a\\'", "b'); SELECT 2;"), read(script, false));
+    }
+
+    @Test
+    public void dropsLineComments() throws IOException {
+        assertEquals(Arrays.asList("SELECT 1", "SELECT 2 - 1"),
+                read("-- first; not a statement\nSELECT 1; -- trailing;\nSELECT 2 - 1;", false));
+    }
+
+    @Test
+    public void keepsBlockComments() throws IOException {
+        assertEquals(Arrays.asList("SELECT /*+ hint; still the same */ 1", "SELECT 4 / 2"),
+                read("SELECT /*+ hint; still the same */ 1; SELECT 4 / 2;", false));
+    }
+
+    @Test
+    public void commentMarkersInQuotesAreText() throws IOException {
+        assertEquals(Arrays.asList("INSERT INTO t VALUES ('-- no', '/* no */')"),
+                read("INSERT INTO t VALUES ('-- no', '/* no */');", false));
+    }
+
+    private static List<String> read(String script, boolean backslashEscapes) throws IOException {
+        List<String> statements = new ArrayList<>();
+        try (SqlStatementReader reader = new SqlStatementReader(new StringReader(script), backslashEscapes)) {
+            String statement;
+            while ((statement = reader.next()) != null)
+                statements.add(statement);
+        }
+        return statements;
+    }
+}
@@ -0,0 +1,132 @@
+package loadtest;
+
+import log.Log;
+import org.apache.ftpserver.ConnectionConfigFactory;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.ftplet.Authority;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.Ftplet;
+import org.apache.ftpserver.ftplet.UserManager;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.ssl.SslConfigurationFactory;
+import org.apache.ftpserver.usermanager.PropertiesUserManagerFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+import org.apache.ftpserver.usermanager.impl.ConcurrentLoginPermission;
+import org.apache.ftpserver.usermanager.impl.WritePermission;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Local explicit FTPS server (AUTH TLS) standing in for the real host during a load test.
+ * Its certificate is self-signed and generated with keytool on start.
+ *
+ * @author edgar
+ */
+class EmbeddedFtpsServer {
+
+    private static final String TAG = EmbeddedFtpsServer.class.getSimpleName();
+
+    static final String USERNAME = "loadtest";
+    static final String PASSWORD = "loadtest";
+    private static final String KEYSTORE_PASSWORD = "loadtest";
+
+    private final File mHomeDirectory;
+    private final Ftplet mFtplet;
+    private FtpServer mServer;
+    private int mPort;
+
+    /**
+     * @param homeDirectory where the uploaded files are written, the root of the user
+     * @param ftplet sees every command, used to record uploads and simulate network problems
+     */
+    EmbeddedFtpsServer(File homeDirectory, Ftplet ftplet) {
+        mHomeDirectory = homeDirectory;
+        mFtplet = ftplet;
+    }
+
+    /**
+     * Starts the server on a free port
+     *
+     * @param workDirectory where the keystore is created
+     * @throws Exception
+     */
+    void start(File workDirectory) throws Exception {
+        File keystore = createKeystore(workDirectory);
+        mPort = findFreePort();
+
+        SslConfigurationFactory ssl = new SslConfigurationFactory();
+        ssl.setKeystoreFile(keystore);
+        ssl.setKeystorePassword(KEYSTORE_PASSWORD);
+
+        ListenerFactory listenerFactory = new ListenerFactory();
+        listenerFactory.setPort(mPort);
+        listenerFactory.setSslConfiguration(ssl.createSslConfiguration());
+        listenerFactory.setImplicitSsl(false);
+
+        FtpServerFactory serverFactory = new FtpServerFactory();
+        serverFactory.addListener("default", listenerFactory.createListener());
+        serverFactory.setUserManager(createUserManager());
+        serverFactory.setFtplets(Collections.singletonMap("recorder", mFtplet));
+        // Allow as many sessions as any sensible number of upload workers
+        ConnectionConfigFactory connectionConfig = new ConnectionConfigFactory();
+        connectionConfig.setMaxLogins(100);
+        serverFactory.setConnectionConfig(connectionConfig.createConnectionConfig());
+
+        mServer = serverFactory.createServer();
+        mServer.start();
+        Log.d(TAG, "Listening on port " + mPort + ", files go to '" + mHomeDirectory + "'.");
+    }
+
+    void stop() {
+        if (mServer != null)
+            mServer.stop();
+    }
+
+    int getPort() { return mPort; }
+
+    private UserManager createUserManager() throws FtpException {
+        UserManager userManager = new PropertiesUserManagerFactory().createUserManager();
+        BaseUser user = new BaseUser();
+        user.setName(USERNAME);
+        user.setPassword(PASSWORD);
+        user.setHomeDirectory(mHomeDirectory.getAbsolutePath());
+        List<Authority> authorities = new ArrayList<>();
+        authorities.add(new WritePermission());
+        authorities.add(new ConcurrentLoginPermission(0, 0));
+        user.setAuthorities(authorities);
+        userManager.save(user);
+        return userManager;
+    }
+
+    /**
+     * Generates a self-signed certificate for localhost with the keytool of the running JVM
+     */
+    private static File createKeystore(File directory) throws IOException, InterruptedException {
+        File keystore = new File(directory, "server.jks");
+        if (keystore.exists() && !keystore.delete())
+            throw new IOException("Could not delete '" + keystore + "'.");
+
+        String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "ftpserver", "-keyalg", "RSA",
+                "-keysize", "2048", "-validity", "7", "-dname", "CN=localhost", "-storetype", "JKS",
+                "-keystore", keystore.getPath(), "-storepass", KEYSTORE_PASSWORD, "-keypass", KEYSTORE_PASSWORD)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(directory, "keytool.log"))
+                .start();
+        if (process.waitFor() != 0)
+            throw new IOException("keytool failed, see '" + new File(directory, "keytool.log") + "'.");
+        return keystore;
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package loadtest;
+
+import log.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates files in the watched tree at a steady rate, with sizes taken from a distribution and
+ * spread over a tree of folders, and remembers when each one was created.
+ *
+ * @author edgar
+ */
+class FileGenerator {
+
+    private static final String TAG = FileGenerator.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How the sizes of the files are picked between the min and max size
+     */
+    enum SizeDistribution {
+        FIXED, UNIFORM, LOGNORMAL;
+
+        static SizeDistribution fromName(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final File mRoot;
+    private final double mRate;
+    private final SizeDistribution mDistribution;
+    private final long mMinSize;
+    private final long mMaxSize;
+    private final int mDepth;
+    private final int mFanout;
+    private final Random mRandom;
+
+    /**
+     * Random bytes written to every file, so the files don't compress
+     */
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Creation time of every file, in milliseconds since the epoch, by path relative to the root
+     */
+    private final Map<String, Long> mCreated = new ConcurrentHashMap<>();
+    private final Map<String, Long> mSizes = new ConcurrentHashMap<>();
+    private long mBytesWritten;
+
+    /**
+     * @param root the watched directory
+     * @param rate files created per second
+     * @param distribution how file sizes are picked
+     * @param minSize smallest file, in bytes
+     * @param maxSize largest file, in bytes
+     * @param depth number of folders between the root and every file
+     * @param fanout number of folders at each level
+     * @param seed seed of the random sizes and paths, so runs can be repeated
+     */
+    FileGenerator(File root, double rate, SizeDistribution distribution, long minSize, long maxSize,
+                  int depth, int fanout, long seed) {
+        mRoot = root;
+        mRate = rate;
+        mDistribution = distribution;
+        mMinSize = minSize;
+        mMaxSize = Math.max(minSize, maxSize);
+        mDepth = depth;
+        mFanout = Math.max(1, fanout);
+        mRandom = new Random(seed);
+        mRandom.nextBytes(mBuffer);
+    }
+
+    /**
+     * Creates files until the duration is over. When writing falls behind the rate, files are
+     * created back to back until it catches up.
+     *
+     * @param durationMs how long to create files for
+     * @throws IOException
+     */
+    void run(long durationMs) throws IOException, InterruptedException {
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / mRate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        long next = start;
+        long count = 0;
+
+        while (next - end < 0) {
+            long wait = next - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+
+            createFile(count++);
+            next += intervalNanos;
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Log.d(TAG, String.format(Locale.ROOT, "Created %d files, %.1f files/s, %.2f MB/s.",
+                count, count / seconds, mBytesWritten / seconds / (1024 * 1024)));
+    }
+
+    private void createFile(long index) throws IOException {
+        StringBuilder relativePath = new StringBuilder();
+        for (int level = 0; level < mDepth; level++)
+            relativePath.append("d").append(level).append('_').append(mRandom.nextInt(mFanout)).append('/');
+        relativePath.append("file").append(index).append(".dat");
+        String path = relativePath.toString();
+
+        File file = new File(mRoot, path);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Could not create '" + parent + "'.");
+
+        long size = nextSize();
+        mCreated.put(path, System.currentTimeMillis());
+        mSizes.put(path, size);
+        try (OutputStream out = new FileOutputStream(file)) {
+            long left = size;
+            while (left > 0) {
+                int count = (int) Math.min(left, mBuffer.length);
+                out.write(mBuffer, 0, count);
+                left -= count;
+            }
+        }
+        mBytesWritten += size;
+    }
+
+    private long nextSize() {
+        switch (mDistribution) {
+            case UNIFORM:
+                return mMinSize + (long) (mRandom.nextDouble() * (mMaxSize - mMinSize + 1));
+            case LOGNORMAL:
+                // Median at the geometric middle of the range, most files small and a long tail of large ones
+                double median = Math.sqrt((double) Math.max(1, mMinSize) * mMaxSize);
+                long size = (long) (median * Math.exp(mRandom.nextGaussian()));
+                return Math.max(mMinSize, Math.min(mMaxSize, size));
+            default:
+                return mMinSize;
+        }
+    }
+
+    Map<String, Long> getCreated() { return mCreated; }
+    long getSize(String relativePath) { return mSizes.get(relativePath); }
+}
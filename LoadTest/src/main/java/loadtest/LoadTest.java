@@ -0,0 +1,225 @@
+package loadtest;
+
+import log.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Soak and load test of the whole monitor. Starts an embedded FTPS server, runs the Linux monitor
+ * as a child process watching a temporary tree, creates files in that tree and then reports the
+ * latency from the creation of every file to its availability on the server, and the files that
+ * were lost or uploaded more than once.
+ *
+ * Options are given as --name=value, see {@link #usage()}.
+ *
+ * @author edgar
+ */
+public class LoadTest {
+
+    private static final String TAG = LoadTest.class.getSimpleName();
+
+    private static final String ROOT_DIR = "/incoming";
+
+    /**
+     * Print how to run program and exit
+     */
+    static void usage() {
+        System.err.println("usage: java loadtest.LoadTest [--name=value ...]");
+        System.err.println("  --rate=20                    files created per second");
+        System.err.println("  --duration=60                seconds to create files for");
+        System.err.println("  --sizes=lognormal            fixed, uniform or lognormal");
+        System.err.println("  --minSize=1024 --maxSize=10485760");
+        System.err.println("  --depth=3 --fanout=4         folders between the root and the files");
+        System.err.println("  --workers=4                  upload workers of the monitor");
+        System.err.println("  --stabilityWindowMs=500");
+        System.err.println("  --latencyMs=0                delay the server adds to every command");
+        System.err.println("  --dropProbability=0          chance a drop command closes the connection");
+        System.err.println("  --dropCommands=STOR,SIZE,MKD");
+        System.err.println("  --drainTimeout=120           seconds to wait for the last uploads");
+        System.err.println("  --seed=1 --workDir=<temp> --monitorClasspath=<this classpath>");
+        System.exit(-1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+
+        File workDirectory = options.containsKey("workDir") ? new File(options.get("workDir"))
+                : Files.createTempDirectory("submission-monitor-load").toFile();
+        File watched = new File(workDirectory, "watched");
+        File serverHome = new File(workDirectory, "server");
+        File monitorDirectory = new File(workDirectory, "monitor");
+        for (File directory : new File[]{watched, new File(serverHome, ROOT_DIR), monitorDirectory}) {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Could not create '" + directory + "'.");
+        }
+
+        Set<String> dropCommands = new HashSet<>(Arrays.asList(getString(options, "dropCommands", "STOR,SIZE,MKD").split(",")));
+        UploadRecorder recorder = new UploadRecorder(ROOT_DIR, getLong(options, "latencyMs", 0),
+                getDouble(options, "dropProbability", 0), dropCommands);
+        EmbeddedFtpsServer server = new EmbeddedFtpsServer(serverHome, recorder);
+        server.start(workDirectory);
+
+        Process monitor = null;
+        boolean isHealthy = false;
+        try {
+            writeMonitorConfiguration(monitorDirectory, server.getPort(), options);
+            monitor = startMonitor(monitorDirectory, watched, getString(options, "monitorClasspath", System.getProperty("java.class.path")));
+
+            // Give the monitor time to register the tree
+            TimeUnit.SECONDS.sleep(2);
+            if (!monitor.isAlive())
+                throw new IllegalStateException("Monitor exited, see '" + new File(monitorDirectory, "monitor.log") + "'.");
+
+            FileGenerator generator = new FileGenerator(watched, getDouble(options, "rate", 20),
+                    FileGenerator.SizeDistribution.fromName(getString(options, "sizes", "lognormal")),
+                    getLong(options, "minSize", 1024), getLong(options, "maxSize", 10 * 1024 * 1024),
+                    (int) getLong(options, "depth", 3), (int) getLong(options, "fanout", 4), getLong(options, "seed", 1));
+            long start = System.currentTimeMillis();
+            generator.run(TimeUnit.SECONDS.toMillis(getLong(options, "duration", 60)));
+
+            // Wait for the uploads still in progress
+            int created = generator.getCreated().size();
+            long drainDeadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(getLong(options, "drainTimeout", 120));
+            while (recorder.getAvailableCount() < created && System.currentTimeMillis() < drainDeadline && monitor.isAlive())
+                TimeUnit.MILLISECONDS.sleep(200);
+
+            isHealthy = report(generator, recorder, new File(serverHome, ROOT_DIR), System.currentTimeMillis() - start);
+        } finally {
+            if (monitor != null)
+                monitor.destroy();
+            server.stop();
+        }
+        System.exit(isHealthy ? 0 : 1);
+    }
+
+    /**
+     * Writes the ftp.properties the monitor loads from its working directory
+     */
+    private static void writeMonitorConfiguration(File directory, int port, Map<String, String> options) throws IOException {
+        try (Writer writer = new FileWriter(new File(directory, "ftp.properties"))) {
+            writer.write("host=localhost\n");
+            writer.write("port=" + port + "\n");
+            writer.write("username=" + EmbeddedFtpsServer.USERNAME + "\n");
+            writer.write("password=" + EmbeddedFtpsServer.PASSWORD + "\n");
+            writer.write("rootDir=" + ROOT_DIR + "\n");
+            writer.write("uploadWorkers=" + getLong(options, "workers", 4) + "\n");
+            writer.write("stabilityWindowMs=" + getLong(options, "stabilityWindowMs", 500) + "\n");
+        }
+    }
+
+    /**
+     * Starts the Linux monitor, exactly as it is run in production, in its own JVM
+     */
+    private static Process startMonitor(File directory, File watched, String classpath) throws IOException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        File log = new File(directory, "monitor.log");
+        Log.d(TAG, "Starting monitor, output goes to '" + log + "'.");
+        return new ProcessBuilder(java, "-cp", classpath, "Main", "-r", watched.getAbsolutePath())
+                .directory(directory)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+    }
+
+    /**
+     * Prints the results of the run
+     *
+     * @param serverDirectory where the server wrote the uploaded files
+     * @return true if no file was lost or uploaded twice
+     */
+    private static boolean report(FileGenerator generator, UploadRecorder recorder, File serverDirectory, long elapsedMs) {
+        Map<String, Long> created = generator.getCreated();
+        long[] latencies = new long[created.size()];
+        int available = 0;
+        int lost = 0;
+        int duplicated = 0;
+        int extraUploads = 0;
+        long bytes = 0;
+
+        for (Map.Entry<String, Long> entry : created.entrySet()) {
+            String path = entry.getKey();
+            Long availableTime = recorder.getAvailableTime(path);
+            File remote = new File(serverDirectory, path);
+            long size = generator.getSize(path);
+            if (availableTime == null || remote.length() != size) {
+                lost++;
+                continue;
+            }
+            latencies[available++] = availableTime - entry.getValue();
+            bytes += size;
+
+            int uploads = recorder.getUploadCount(path);
+            if (uploads > 1) {
+                duplicated++;
+                extraUploads += uploads - 1;
+            }
+        }
+        latencies = Arrays.copyOf(latencies, available);
+        Arrays.sort(latencies);
+
+        double seconds = elapsedMs / 1000.0;
+        System.out.println();
+        System.out.println("Files created:        " + created.size());
+        System.out.println("Files available:      " + available);
+        System.out.println("Files lost:           " + lost);
+        System.out.println("Files duplicated:     " + duplicated + " (" + extraUploads + " extra uploads)");
+        System.out.println("Connections dropped:  " + recorder.getDrops());
+        System.out.println(String.format(Locale.ROOT, "Throughput:           %.1f files/s, %.2f MB/s",
+                available / seconds, bytes / seconds / (1024 * 1024)));
+        System.out.println("Latency p50:          " + percentile(latencies, 0.50) + " ms");
+        System.out.println("Latency p99:          " + percentile(latencies, 0.99) + " ms");
+        System.out.println("Latency p999:         " + percentile(latencies, 0.999) + " ms");
+        System.out.println("Latency max:          " + percentile(latencies, 1.0) + " ms");
+        return lost == 0 && duplicated == 0;
+    }
+
+    /**
+     * @param sorted values in ascending order
+     * @return the nearest-rank percentile, -1 if there are no values
+     */
+    static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0)
+            return -1;
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals == -1)
+                usage();
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    private static String getString(Map<String, String> options, String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private static long getLong(Map<String, String> options, String name, long defaultValue) {
+        try {
+            return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+        } catch (NumberFormatException e) {
+            usage();
+            return defaultValue;
+        }
+    }
+
+    private static double getDouble(Map<String, String> options, String name, double defaultValue) {
+        try {
+            return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+        } catch (NumberFormatException e) {
+            usage();
+            return defaultValue;
+        }
+    }
+}
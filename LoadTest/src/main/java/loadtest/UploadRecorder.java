@@ -0,0 +1,107 @@
+package loadtest;
+
+import org.apache.ftpserver.ftplet.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ftplet of the embedded server that records when every file becomes available on the server and
+ * simulates a slow or unreliable link: every command is delayed and some drop the connection.
+ *
+ * @author edgar
+ */
+class UploadRecorder extends DefaultFtplet {
+
+    private final String mRootDir;
+    private final long mLatencyMs;
+    private final double mDropProbability;
+    private final Set<String> mDropCommands;
+
+    /**
+     * First time each path was completely uploaded, in milliseconds since the epoch
+     */
+    private final Map<String, Long> mAvailable = new ConcurrentHashMap<>();
+
+    /**
+     * Number of successful uploads of each path
+     */
+    private final Map<String, AtomicInteger> mUploads = new ConcurrentHashMap<>();
+
+    private final AtomicLong mDrops = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    /**
+     * @param rootDir remote root dir of the monitor, removed from the recorded paths
+     * @param latencyMs delay added to every command
+     * @param dropProbability chance that one of the drop commands closes the connection instead
+     * @param dropCommands commands that may drop the connection
+     */
+    UploadRecorder(String rootDir, long latencyMs, double dropProbability, Set<String> dropCommands) {
+        mRootDir = rootDir.endsWith("/") ? rootDir : rootDir + "/";
+        mLatencyMs = latencyMs;
+        mDropProbability = dropProbability;
+        mDropCommands = dropCommands;
+    }
+
+    @Override
+    public FtpletResult beforeCommand(FtpSession session, FtpRequest request) throws FtpException, IOException {
+        if (mLatencyMs > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(mLatencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Random random = ThreadLocalRandom.current();
+        if (mDropProbability > 0 && mDropCommands.contains(request.getCommand()) && random.nextDouble() < mDropProbability) {
+            mDrops.incrementAndGet();
+            return FtpletResult.DISCONNECT;
+        }
+        return super.beforeCommand(session, request);
+    }
+
+    @Override
+    public FtpletResult afterCommand(FtpSession session, FtpRequest request, FtpReply reply) throws FtpException, IOException {
+        String command = request.getCommand();
+        if ((command.equals("STOR") || command.equals("APPE")) && reply.getCode() == FtpReply.REPLY_226_CLOSING_DATA_CONNECTION) {
+            long now = System.currentTimeMillis();
+            FtpFile file = session.getFileSystemView().getFile(request.getArgument());
+            String path = file.getAbsolutePath();
+            if (path.startsWith(mRootDir))
+                path = path.substring(mRootDir.length());
+
+            mAvailable.putIfAbsent(path, now);
+            mUploads.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+            mBytesReceived.addAndGet(file.getSize());
+        }
+        return super.afterCommand(session, request, reply);
+    }
+
+    /**
+     * @return when the path was first fully uploaded, or null if it never was
+     */
+    Long getAvailableTime(String relativePath) {
+        return mAvailable.get(relativePath);
+    }
+
+    /**
+     * @return how many times the path was fully uploaded
+     */
+    int getUploadCount(String relativePath) {
+        AtomicInteger count = mUploads.get(relativePath);
+        return (count != null) ? count.get() : 0;
+    }
+
+    int getAvailableCount() { return mAvailable.size(); }
+    long getDrops() { return mDrops.get(); }
+    long getBytesReceived() { return mBytesReceived.get(); }
+}
@@ -1,7 +1,11 @@
+import evaluator.EvaluationPipeline;
 import log.Log;
 import manager.ConfigurationManager;
-import manager.FTPManager;
 import manager.OnEventReceived;
+import manager.ReplicationManager;
+import metrics.Metrics;
+import watcher.WatchBackend;
+import watcher.WatchDir;
 
 import java.io.File;
 import java.io.IOException;
@@ -40,19 +44,24 @@ public class Main {
 
         Path dir = Paths.get(args[dirArg]);
 
-        // Load and initialize the FTPManager
+        // Load and initialize the upload targets
         if(!ConfigurationManager.getInstance().load("ftp.properties"))
             System.exit(-1);
-        FTPManager.init();
+        Metrics.start(ConfigurationManager.getInstance().getMetricsPort());
+        ReplicationManager.init();
 
-        // Every time the configuration changes, run the FTPManager
+        // Every time the configuration changes, run the upload workers
         ConfigurationManager.getInstance().setOnConfigurationReload(new Runnable() {
             @Override
             public void run() {
-                FTPManager.getInstance().startThread();
+                ReplicationManager.getInstance().startThread();
             }
         });
 
+        // Unpack, run and send the results of the received submissions
+        final EvaluationPipeline pipeline = new EvaluationPipeline(dir);
+        pipeline.start();
+
         // What to do when the Watcher detect file changes
         OnEventReceived eventDelegate = new OnEventReceived() {
             public void execute(WatchEvent.Kind<Path> eventKind, Path filePath) {
@@ -64,17 +73,21 @@ public class Main {
                         return;
                     }
 
-                    // Send file
-                    if(!file.isDirectory())
-                        //TODO: Unpack, run, send results
+                    // Evaluate file
+                    if(!file.isDirectory()) {
                         Log.d(TAG, "Received a file '" + file + "'.");
+                        pipeline.submit(filePath);
+                    }
                 }
 
             }
         };
 
         // Run the main directory watcher
-        WatchDir watchDir = new WatchDir(dir, true, eventDelegate);
+        ConfigurationManager configuration = ConfigurationManager.getInstance();
+        WatchBackend backend = WatchBackend.create(configuration.getWatcher(), configuration.getPollingMinInterval(),
+                configuration.getPollingMaxInterval(), configuration.getPollingThreads());
+        WatchDir watchDir = new WatchDir(dir, true, eventDelegate, configuration.getStabilityWindow(), null, backend);
         watchDir.processEvents();
     }
 
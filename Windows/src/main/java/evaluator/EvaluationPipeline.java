@@ -0,0 +1,274 @@
+package evaluator;
+
+import log.Log;
+import manager.ConfigurationManager;
+import manager.ReplicationManager;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Evaluates the received submissions and uploads the results.
+ *
+ * A submission goes through three {@link Stage}s:
+ * <ul>
+ *     <li>unpack: the archive is extracted, streaming, into a sandbox directory of its own. Files
+ *     that are not zip archives are copied into it.</li>
+ *     <li>evaluate: the 'evaluatorCommand' is run in the sandbox, its output written to the result
+ *     file. Up to 'evaluatorWorkers' run at the same time, no more than there are processors.</li>
+ *     <li>report: a summary is appended to the result file, the file is queued for upload under
+ *     'results/' and the sandbox is deleted.</li>
+ * </ul>
+ * A submission that fails in any stage is still reported, with the error, and its sandbox deleted.
+ * Received submissions wait without limit, the watcher is never blocked, but only as many
+ * submissions are unpacked ahead as there are evaluation workers, so the sandboxes on disk stay
+ * bounded.
+ *
+ * @author edgar
+ */
+public class EvaluationPipeline {
+
+    private static final String TAG = EvaluationPipeline.class.getSimpleName();
+
+    /**
+     * Remote directory the results are uploaded to
+     */
+    private static final String RESULTS_REMOTE_DIR = "results";
+
+    /**
+     * Extraction is bound by the disk, a second thread covers the time one waits on small files
+     */
+    private static final int UNPACK_THREADS = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path mRootDir;
+    private final Stage<Submission> mUnpack;
+    private final Stage<Submission> mEvaluate;
+    private final Stage<Submission> mReport;
+
+    /**
+     * @param rootDir the watched directory, results are uploaded with the path of their
+     *                submission relative to it
+     */
+    public EvaluationPipeline(Path rootDir) {
+        mRootDir = rootDir;
+        int workers = Math.min(ConfigurationManager.getInstance().getEvaluatorWorkers(), Runtime.getRuntime().availableProcessors());
+        mReport = new Stage<>("report", 1, 0, this::report, this::failed);
+        mEvaluate = new Stage<>("evaluate", workers, workers, this::evaluate, this::failed);
+        mUnpack = new Stage<>("unpack", UNPACK_THREADS, 0, this::unpack, this::failed);
+    }
+
+    public void start() {
+        mReport.start();
+        mEvaluate.start();
+        mUnpack.start();
+    }
+
+    public void shutdown() {
+        mUnpack.shutdown();
+        mEvaluate.shutdown();
+        mReport.shutdown();
+    }
+
+    /**
+     * Queues a received file for evaluation, never blocks
+     */
+    public void submit(Path file) {
+        String relativePath = mRootDir.relativize(file).toString().replace(File.separatorChar, '/');
+        Submission submission = new Submission(file, relativePath, System.currentTimeMillis());
+        try {
+            mUnpack.put(submission);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Stage<Submission> unpack(Submission submission) {
+        try {
+            Path sandboxes = Paths.get(ConfigurationManager.getInstance().getSandboxDir()).toAbsolutePath().normalize();
+            Files.createDirectories(sandboxes);
+            submission.mSandbox = Files.createTempDirectory(sandboxes, baseName(submission.mFile) + "-");
+
+            String name = submission.mFile.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".zip") || name.endsWith(".jar"))
+                extract(submission.mFile, submission.mSandbox);
+            else
+                Files.copy(submission.mFile, submission.mSandbox.resolve(submission.mFile.getFileName()));
+            return mEvaluate;
+        } catch (IOException | RuntimeException e) {
+            // e.g. an InvalidPathException for an entry name Windows does not allow
+            submission.mError = "Could not unpack: " + e.getMessage();
+            return mReport;
+        }
+    }
+
+    /**
+     * Extracts a zip archive entry by entry, without loading it whole
+     *
+     * @throws IOException if the archive is broken or has an entry outside the sandbox
+     */
+    private static void extract(Path archive, Path sandbox) throws IOException {
+        try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(Files.newInputStream(archive), BUFFER_SIZE))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                Path target = sandbox.resolve(entry.getName()).normalize();
+                if (!target.startsWith(sandbox))
+                    throw new IOException("Entry '" + entry.getName() + "' is outside the archive");
+                if (entry.isDirectory()) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.createDirectories(target.getParent());
+                    Files.copy(zip, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    private Stage<Submission> evaluate(Submission submission) throws InterruptedException {
+        ConfigurationManager configuration = ConfigurationManager.getInstance();
+        String command = configuration.getEvaluatorCommand().trim();
+        if (command.isEmpty()) {
+            submission.mError = "No 'evaluatorCommand' is configured";
+            return mReport;
+        }
+
+        long start = System.nanoTime();
+        Process process;
+        try {
+            submission.mResult = resultFile(submission);
+            Files.createDirectories(submission.mResult.getParent());
+            process = new ProcessBuilder(command.split("\\s+"))
+                    .directory(submission.mSandbox.toFile())
+                    .redirectErrorStream(true)
+                    .redirectOutput(submission.mResult.toFile())
+                    .start();
+        } catch (IOException e) {
+            submission.mError = "Could not run '" + command + "': " + e.getMessage();
+            return mReport;
+        }
+        try {
+            if (process.waitFor(configuration.getEvaluatorTimeout(), TimeUnit.MILLISECONDS)) {
+                submission.mExitCode = process.exitValue();
+            } else {
+                submission.isTimedOut = true;
+                process.destroyForcibly().waitFor();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            throw e;
+        }
+        submission.mEvaluationTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return mReport;
+    }
+
+    private Stage<Submission> report(Submission submission) throws IOException {
+        try {
+            if (submission.mResult == null)
+                submission.mResult = resultFile(submission);
+            Files.createDirectories(submission.mResult.getParent());
+            try (Writer writer = Files.newBufferedWriter(submission.mResult, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                String newLine = System.lineSeparator();
+                writer.write(newLine + "----" + newLine);
+                writer.write("Submission: " + submission.mRelativePath + newLine);
+                writer.write("Received: " + new Date(submission.mReceivedAt) + newLine);
+                if (submission.mError != null) {
+                    writer.write("Error: " + submission.mError + newLine);
+                } else {
+                    writer.write((submission.isTimedOut ? "Timed out" : "Exit code: " + submission.mExitCode) + newLine);
+                    writer.write("Evaluation time: " + submission.mEvaluationTime + "ms" + newLine);
+                }
+            }
+
+            ReplicationManager.getInstance().sendFile(submission.mResult.toFile(), RESULTS_REMOTE_DIR + "/" + resultName(submission));
+            Log.d(TAG, "Evaluated '%s': %s", submission.mRelativePath,
+                    (submission.mError != null) ? submission.mError
+                            : submission.isTimedOut ? "timed out" : "exit code " + submission.mExitCode);
+        } finally {
+            if (submission.mSandbox != null)
+                deleteTree(submission.mSandbox);
+        }
+        return null;
+    }
+
+    /**
+     * Sends a submission whose stage threw to the report, or, if the report itself failed, deletes its sandbox
+     */
+    private Stage<Submission> failed(Stage<Submission> stage, Submission submission, Exception e) {
+        if (stage != mReport) {
+            if (submission.mError == null)
+                submission.mError = "Evaluation failed: " + e;
+            return mReport;
+        }
+        if (submission.mSandbox != null && Files.exists(submission.mSandbox))
+            deleteTree(submission.mSandbox);
+        return null;
+    }
+
+    /**
+     * @return path of the result relative to the results directory, unique for every time the submission is received
+     */
+    private static String resultName(Submission submission) {
+        return removeExtension(submission.mRelativePath) + "." + submission.mReceivedAt + ".txt";
+    }
+
+    /**
+     * @return where the result of a submission is written
+     */
+    private static Path resultFile(Submission submission) {
+        return Paths.get(ConfigurationManager.getInstance().getResultsDir(), resultName(submission).split("/"));
+    }
+
+    private static String removeExtension(String path) {
+        int dot = path.lastIndexOf('.');
+        return (dot > path.lastIndexOf('/') + 1) ? path.substring(0, dot) : path;
+    }
+
+    /**
+     * @return the name of the file without its extension, reduced to characters safe in a directory name
+     */
+    private static String baseName(Path file) {
+        String name = removeExtension(file.getFileName().toString()).replaceAll("[^A-Za-z0-9._-]", "_");
+        return name.isEmpty() ? "submission" : name;
+    }
+
+    /**
+     * Deletes a sandbox, a file still locked by a leftover process is left behind and logged
+     */
+    private static void deleteTree(Path dir) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                    Files.delete(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Could not delete sandbox '" + dir + "': " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package evaluator;
+
+import log.Log;
+import metrics.Histogram;
+import metrics.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One step of the {@link EvaluationPipeline}: a queue and the threads that take submissions from it.
+ *
+ * A stage with a bounded queue blocks the stage before it when it falls behind, so the slowest
+ * stage sets the pace of the pipeline. Its queue depth, busy threads and the time it takes per
+ * submission are exported as metrics labelled with the stage name; the time does not include
+ * waiting for room in the next stage, which shows as a full queue there instead. A submission whose
+ * handler throws is never dropped, the failure handler tells where it goes.
+ *
+ * @author edgar
+ */
+class Stage<T> {
+
+    private static final String TAG = Stage.class.getSimpleName();
+
+    /**
+     * What a stage does with a submission
+     */
+    interface Handler<T> {
+
+        /**
+         * @return the stage the submission goes to next, null if it is done
+         */
+        Stage<T> handle(T item) throws Exception;
+    }
+
+    /**
+     * What is done with a submission whose handler threw
+     */
+    interface FailureHandler<T> {
+
+        /**
+         * @param stage the stage that failed
+         * @return the stage the submission goes to next, null if it is done
+         */
+        Stage<T> failed(Stage<T> stage, T item, Exception e);
+    }
+
+    private final String mName;
+    private final BlockingQueue<T> mQueue;
+    private final Handler<T> mHandler;
+    private final FailureHandler<T> mFailureHandler;
+    private final Thread[] mThreads;
+    private final AtomicInteger mBusy = new AtomicInteger();
+    private final Histogram mTime;
+
+    /**
+     * @param name name of the stage, used for the threads and the metrics
+     * @param threads number of submissions handled at the same time
+     * @param capacity number of submissions that can wait, 0 for no limit
+     */
+    Stage(String name, int threads, int capacity, Handler<T> handler, FailureHandler<T> failureHandler) {
+        mName = name;
+        mQueue = (capacity > 0) ? new ArrayBlockingQueue<>(capacity) : new LinkedBlockingQueue<>();
+        mHandler = handler;
+        mFailureHandler = failureHandler;
+        mThreads = new Thread[threads];
+        mTime = Metrics.histogram("evaluator_stage_seconds", "Time a submission spends in a stage of the evaluator", "stage", name);
+        Metrics.gauge("evaluator_queue_depth", "Submissions waiting for a stage of the evaluator", mQueue::size, "stage", name);
+        Metrics.gauge("evaluator_busy_workers", "Threads of a stage of the evaluator handling a submission", mBusy::get, "stage", name);
+    }
+
+    /**
+     * Queues a submission, waiting for room if the queue is bounded and full
+     */
+    void put(T item) throws InterruptedException {
+        mQueue.put(item);
+    }
+
+    void start() {
+        for (int i = 0; i < mThreads.length; i++) {
+            mThreads[i] = new Thread(this::run, "Evaluator " + mName + " Thread " + i);
+            mThreads[i].setDaemon(true);
+            mThreads[i].start();
+        }
+    }
+
+    void shutdown() {
+        for (Thread thread : mThreads) {
+            if (thread != null)
+                thread.interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                T item = mQueue.take();
+                Stage<T> next = null;
+                mBusy.incrementAndGet();
+                long start = System.nanoTime();
+                try {
+                    next = mHandler.handle(item);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    Log.e(TAG, "Stage '" + mName + "' failed on " + item + ": " + e);
+                    next = mFailureHandler.failed(this, item, e);
+                } finally {
+                    mTime.recordSince(start);
+                    mBusy.decrementAndGet();
+                }
+                if (next != null)
+                    next.put(item);
+            }
+        } catch (InterruptedException e) {
+            // Asked to stop
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package evaluator;
+
+import java.nio.file.Path;
+
+/**
+ * A submission going through the {@link EvaluationPipeline}, each stage fills in its part
+ *
+ * @author edgar
+ */
+class Submission {
+
+    /**
+     * The received file
+     */
+    final Path mFile;
+
+    /**
+     * Path of the file relative to the watched directory, using '/' as separator
+     */
+    final String mRelativePath;
+
+    /**
+     * When the file was received, in milliseconds since the epoch
+     */
+    final long mReceivedAt;
+
+    /**
+     * Directory the submission was unpacked in
+     */
+    Path mSandbox;
+
+    /**
+     * File the output of the evaluation and its summary are written to
+     */
+    Path mResult;
+
+    /**
+     * Why the submission could not be evaluated, null if it was
+     */
+    String mError;
+
+    int mExitCode;
+    boolean isTimedOut;
+    long mEvaluationTime;
+
+    Submission(Path file, String relativePath, long receivedAt) {
+        mFile = file;
+        mRelativePath = relativePath;
+        mReceivedAt = receivedAt;
+    }
+
+    @Override
+    public String toString() {
+        return mRelativePath;
+    }
+}
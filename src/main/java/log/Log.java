@@ -1,20 +1,94 @@
 package log;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 /**
+ * Asynchronous logger. Calls only put the message in a lock-free ring buffer, a background thread
+ * formats and writes it to the console and, if configured, to a rolling log file. Messages of a
+ * disabled level are dropped before anything is formatted.
+ *
+ * Configured with system properties:
+ * <ul>
+ *     <li>log.level: DEBUG (default), ERROR or OFF</li>
+ *     <li>log.console: false to not write to System.out/System.err</li>
+ *     <li>log.file: path of the log file, no file if not set</li>
+ *     <li>log.file.maxSize: bytes before the file is rolled over, 10MB by default</li>
+ *     <li>log.file.maxBackups: old files kept, 5 by default</li>
+ *     <li>log.bufferSize: messages the buffer holds, 8192 by default</li>
+ * </ul>
+ *
  * Created by edgar on 7/10/15.
  */
 public class Log {
 
+    public enum Level { DEBUG, ERROR, OFF }
+
     private static final String DEFULT_LOG_TAG = Log.class.getSimpleName();
 
-    //private static final boolean LOG_TO_FILE = false;
+    private static volatile Level mLevel = parseLevel(System.getProperty("log.level"));
+    private static final boolean LOG_TO_CONSOLE = Boolean.parseBoolean(System.getProperty("log.console", "true"));
+    private static final RollingFileOutput mFileOutput = openFileOutput();
+
+    private static final RingBuffer mBuffer = new RingBuffer(Integer.getInteger("log.bufferSize", 8192));
+    private static final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * Held while draining the buffer, so the writer and {@link #flush()} never read it at the same time
+     */
+    private static final Object mDrainLock = new Object();
+
+    /**
+     * The writer parks without a timeout when the buffer is empty, a producer wakes it up when this is set
+     */
+    private static final Thread mWriter = new Thread(Log::writeLoop, "Log Writer");
+    private static volatile boolean isWriterParked;
+
+    // Only used while holding mDrainLock
+    private static final StringBuilder mOut = new StringBuilder(8192);
+    private static final StringBuilder mErr = new StringBuilder(1024);
+    private static final StringBuilder mLine = new StringBuilder(256);
+    private static final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final Date mDate = new Date();
+
+    static {
+        mWriter.setDaemon(true);
+        mWriter.start();
+        // Write what is still buffered when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "Log Flush"));
+    }
 
     public static void d(String message) {
         d(DEFULT_LOG_TAG, message);
     }
 
     public static void d(String tag, String message) {
-        System.out.println(String.format("[%s] %s", tag, message));
+        log(Level.DEBUG, tag, message, null);
+    }
+
+    /**
+     * Logs a message formatted with {@link String#format}, only if debug messages are enabled.
+     * Formatting happens on the writer thread, so the arguments should not be changed afterwards.
+     */
+    public static void d(String tag, String format, Object arg) {
+        if (isEnabled(Level.DEBUG))
+            log(Level.DEBUG, tag, format, new Object[]{arg});
+    }
+
+    public static void d(String tag, String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.DEBUG))
+            log(Level.DEBUG, tag, format, new Object[]{arg0, arg1});
+    }
+
+    public static void d(String tag, String format, Object... args) {
+        if (isEnabled(Level.DEBUG))
+            log(Level.DEBUG, tag, format, args);
     }
 
     public static void e(String message) {
@@ -22,7 +96,184 @@ public class Log {
     }
 
     public static void e(String tag, String message) {
-        System.err.println(String.format("[%s] %s", tag, message));
+        log(Level.ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String format, Object arg) {
+        if (isEnabled(Level.ERROR))
+            log(Level.ERROR, tag, format, new Object[]{arg});
+    }
+
+    public static void e(String tag, String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.ERROR))
+            log(Level.ERROR, tag, format, new Object[]{arg0, arg1});
+    }
+
+    public static void e(String tag, String format, Object... args) {
+        if (isEnabled(Level.ERROR))
+            log(Level.ERROR, tag, format, args);
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(mLevel) >= 0;
     }
 
+    public static void setLevel(Level level) {
+        mLevel = level;
+    }
+
+    /**
+     * Writes every buffered message before returning
+     */
+    public static void flush() {
+        while (drain() > 0) {
+            // Keep going until the buffer is empty
+        }
+    }
+
+    private static void log(Level level, String tag, String message, Object[] args) {
+        if (!isEnabled(level))
+            return;
+        if (mBuffer.offer(System.currentTimeMillis(), level, tag, message, args)) {
+            if (isWriterParked) {
+                isWriterParked = false;
+                LockSupport.unpark(mWriter);
+            }
+            return;
+        }
+
+        // Buffer is full. Debug messages are dropped, errors are written right away so they are never lost.
+        if (level == Level.DEBUG) {
+            mDropped.incrementAndGet();
+            return;
+        }
+        synchronized (mDrainLock) {
+            drainBuffer();
+            append(System.currentTimeMillis(), level, Thread.currentThread().getName(), tag,
+                    (args == null) ? message : String.format(message, args));
+            writeBatch();
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (drain() > 0)
+                continue;
+
+            // Set before checking the buffer, so a message offered in between either is seen here or unparks us
+            isWriterParked = true;
+            boolean isEmpty;
+            synchronized (mDrainLock) {
+                isEmpty = mBuffer.peek() == null;
+            }
+            if (isEmpty)
+                LockSupport.park();
+            isWriterParked = false;
+        }
+    }
+
+    /**
+     * Writes the buffered messages
+     *
+     * @return number of messages written
+     */
+    private static int drain() {
+        synchronized (mDrainLock) {
+            int count = drainBuffer();
+
+            long dropped = mDropped.getAndSet(0);
+            if (dropped > 0)
+                append(System.currentTimeMillis(), Level.ERROR, Thread.currentThread().getName(), DEFULT_LOG_TAG,
+                        "Log buffer full, dropped " + dropped + " messages.");
+
+            if (count > 0 || dropped > 0)
+                writeBatch();
+            return count;
+        }
+    }
+
+    /**
+     * Moves the buffered messages to the batch being written, must hold mDrainLock
+     *
+     * @return number of messages moved
+     */
+    private static int drainBuffer() {
+        int count = 0;
+        RingBuffer.Slot slot;
+        while ((slot = mBuffer.peek()) != null) {
+            append(slot.mTimestamp, slot.mLevel, slot.mThread, slot.mTag, slot.formatMessage());
+            mBuffer.release(slot);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Adds a message to the batch being written, must hold mDrainLock
+     */
+    private static void append(long timestamp, Level level, String thread, String tag, String message) {
+        mLine.setLength(0);
+        mLine.append('[').append(tag).append("] ").append(message);
+
+        if (LOG_TO_CONSOLE)
+            ((level == Level.ERROR) ? mErr : mOut).append(mLine).append(System.lineSeparator());
+
+        if (mFileOutput != null) {
+            mDate.setTime(timestamp);
+            String line = mDateFormat.format(mDate) + ' ' + level + " (" + thread + ") " + mLine;
+            try {
+                mFileOutput.write(line);
+            } catch (IOException e) {
+                mErr.append("[").append(DEFULT_LOG_TAG).append("] Could not write log file: ")
+                        .append(e.getMessage()).append(System.lineSeparator());
+            }
+        }
+    }
+
+    /**
+     * Writes the batch with one call per output, must hold mDrainLock
+     */
+    private static void writeBatch() {
+        write(System.out, mOut);
+        write(System.err, mErr);
+        if (mFileOutput != null) {
+            try {
+                mFileOutput.flush();
+            } catch (IOException e) {
+                System.err.println("[" + DEFULT_LOG_TAG + "] Could not write log file: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void write(PrintStream stream, StringBuilder batch) {
+        if (batch.length() == 0)
+            return;
+        stream.print(batch);
+        stream.flush();
+        batch.setLength(0);
+    }
+
+    private static Level parseLevel(String name) {
+        if (name == null)
+            return Level.DEBUG;
+        try {
+            return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("[" + Log.class.getSimpleName() + "] Unknown log level '" + name + "', using DEBUG.");
+            return Level.DEBUG;
+        }
+    }
+
+    private static RollingFileOutput openFileOutput() {
+        String path = System.getProperty("log.file");
+        if (path == null || path.isEmpty())
+            return null;
+        try {
+            return new RollingFileOutput(new File(path), Long.getLong("log.file.maxSize", 10 * 1024 * 1024),
+                    Integer.getInteger("log.file.maxBackups", 5));
+        } catch (IOException e) {
+            System.err.println("[" + DEFULT_LOG_TAG + "] Could not open log file '" + path + "': " + e.getMessage());
+            return null;
+        }
+    }
 }
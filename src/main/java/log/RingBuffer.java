@@ -0,0 +1,117 @@
+package log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, lock-free, multiple producer single consumer queue of log records.
+ *
+ * Every slot is allocated up front and reused. A slot carries a sequence number telling whether
+ * it is free for the producer at a given position or holds a record ready for the consumer, so
+ * producers only race on one compare-and-set of the tail and never wait for each other.
+ *
+ * @author edgar
+ */
+final class RingBuffer {
+
+    /**
+     * A log record, the message is only formatted when it is written
+     */
+    static final class Slot {
+        private volatile long mSequence;
+
+        long mTimestamp;
+        Log.Level mLevel;
+        String mThread;
+        String mTag;
+        String mMessage;
+        Object[] mArgs;
+
+        /**
+         * @return the message, formatted with its arguments if it has any
+         */
+        String formatMessage() {
+            if (mArgs == null)
+                return mMessage;
+            try {
+                return String.format(mMessage, mArgs);
+            } catch (RuntimeException e) {
+                return mMessage + " " + java.util.Arrays.toString(mArgs);
+            }
+        }
+    }
+
+    private final Slot[] mSlots;
+    private final int mMask;
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * Next position to read, only used by the consumer
+     */
+    private long mHead;
+
+    /**
+     * @param capacity number of records, rounded up to a power of two
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mSlots = new Slot[size];
+        mMask = size - 1;
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new Slot();
+            mSlots[i].mSequence = i;
+        }
+    }
+
+    /**
+     * Adds a record, from any thread
+     *
+     * @return false if the buffer is full and the record was not added
+     */
+    boolean offer(long timestamp, Log.Level level, String tag, String message, Object[] args) {
+        long position = mTail.get();
+        while (true) {
+            Slot slot = mSlots[(int) position & mMask];
+            long difference = slot.mSequence - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    slot.mTimestamp = timestamp;
+                    slot.mLevel = level;
+                    slot.mThread = Thread.currentThread().getName();
+                    slot.mTag = tag;
+                    slot.mMessage = message;
+                    slot.mArgs = args;
+                    // Publishes the record to the consumer
+                    slot.mSequence = position + 1;
+                    return true;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                // The slot still holds a record from the previous lap
+                return false;
+            } else {
+                // Another producer took this position
+                position = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * @return the oldest record, or null if there is none. Must be given back with {@link #release(Slot)}.
+     */
+    Slot peek() {
+        Slot slot = mSlots[(int) mHead & mMask];
+        return (slot.mSequence == mHead + 1) ? slot : null;
+    }
+
+    /**
+     * Frees the slot returned by {@link #peek()} so producers can reuse it
+     */
+    void release(Slot slot) {
+        slot.mThread = null;
+        slot.mTag = null;
+        slot.mMessage = null;
+        slot.mArgs = null;
+        slot.mSequence = mHead + mSlots.length;
+        mHead++;
+    }
+}
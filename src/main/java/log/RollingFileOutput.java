@@ -0,0 +1,89 @@
+package log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Log file that is rolled over once it gets too big: log.txt becomes log.txt.1, log.txt.1
+ * becomes log.txt.2 and so on, and the oldest one is deleted. If the files cannot be moved, for
+ * example because another process has them open on Windows, the current file is truncated instead.
+ *
+ * @author edgar
+ */
+final class RollingFileOutput {
+
+    private final File mFile;
+    private final long mMaxSize;
+    private final int mMaxBackups;
+    private Writer mWriter;
+    private long mSize;
+
+    /**
+     * @param file the current log file
+     * @param maxSize size, in bytes, at which the file is rolled over
+     * @param maxBackups how many old files are kept
+     */
+    RollingFileOutput(File file, long maxSize, int maxBackups) throws IOException {
+        mFile = file;
+        mMaxSize = maxSize;
+        mMaxBackups = maxBackups;
+        open();
+    }
+
+    void write(String line) throws IOException {
+        if (mSize >= mMaxSize)
+            roll();
+        mWriter.write(line);
+        mWriter.write(System.lineSeparator());
+        // Close enough for deciding when to roll, the log is mostly ASCII
+        mSize += line.length() + System.lineSeparator().length();
+    }
+
+    void flush() throws IOException {
+        mWriter.flush();
+    }
+
+    private void roll() throws IOException {
+        mWriter.close();
+        boolean rolled = false;
+        try {
+            if (mMaxBackups > 0) {
+                Files.deleteIfExists(backup(mMaxBackups).toPath());
+                for (int i = mMaxBackups - 1; i >= 1; i--) {
+                    File from = backup(i);
+                    if (from.exists())
+                        Files.move(from.toPath(), backup(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.move(mFile.toPath(), backup(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(mFile.toPath());
+            }
+            rolled = true;
+        } catch (IOException e) {
+            System.err.println("[" + Log.class.getSimpleName() + "] Could not roll log file '" + mFile
+                    + "', truncating it: " + e.getMessage());
+        }
+        open(!rolled);
+    }
+
+    private File backup(int index) {
+        return new File(mFile.getPath() + "." + index);
+    }
+
+    private void open() throws IOException {
+        open(false);
+    }
+
+    /**
+     * @param truncate true to start the file over, false to append to it
+     */
+    private void open(boolean truncate) throws IOException {
+        File parent = mFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Could not create '" + parent + "'.");
+        mSize = truncate ? 0 : mFile.length();
+        mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFile, !truncate), StandardCharsets.UTF_8));
+    }
+}
@@ -7,39 +7,55 @@ import org.apache.commons.configuration.PropertiesConfiguration;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 /**
  * A singleton manager that loads and manages the configuration file.
  *
+ * The file is validated and parsed into an immutable {@link ConfigurationSnapshot} published
+ * through a volatile reference, so reading an option never touches the file nor takes a lock. The
+ * file is reloaded when it is edited in place or replaced; an invalid file, or one that changes
+ * the targets or an option only read on startup, is ignored and the previous snapshot stays in use.
+ *
  * @author Edgar Santos <edfil221@gmail.com>
  */
 public class ConfigurationManager {
 
     private static final String TAG = ConfigurationManager.class.getSimpleName();
 
-
-    private static final String CONFIG_FILE = "ftp.properties";
-
     /**
      * All the valid options for the configuration
      */
-    private static String[] CONFIGURATION_OPTIONS = {
+    static final String[] CONFIGURATION_OPTIONS = {
             "host", "port", "username", "password", "rootDir"
     };
 
     /**
-     * Class that handles the configuration file
+     * Events on the file are collected for this long before it is reloaded, editors usually save
+     * a file with several writes, or write a temporary file and rename it
+     */
+    private static final long RELOAD_SETTLE_MS = 200;
+
+    /**
+     * The last valid configuration, replaced as a whole on every reload
      */
-    private PropertiesConfiguration mConfiguration;
+    private volatile ConfigurationSnapshot mSnapshot;
 
-    private File mConfigFile;
+    private volatile File mConfigFile;
+
+    private Thread mFileWatcher;
 
     /**
      * Is run after the configuration file is reloaded.
      */
-    private Runnable mOnReload;
+    private volatile Runnable mOnReload;
 
     /**
      * Sets the onReload delegate function.
@@ -55,9 +71,7 @@ public class ConfigurationManager {
      * @return true if the configuration was loaded, false otherwise.
      */
     public boolean load(String filePath){
-        mConfiguration = new PropertiesConfiguration();
-
-        mConfigFile = new File(filePath);
+        mConfigFile = new File(filePath).getAbsoluteFile();
         try {
 
             // If file does not exist
@@ -65,11 +79,12 @@ public class ConfigurationManager {
                 createConfigurationFile(mConfigFile);
                 return false;
             }
-            mConfiguration.load(mConfigFile);
 
             // If the config file is valid
-            if(!isValidConfigurationFile(mConfiguration))
+            ConfigurationSnapshot snapshot = read(mConfigFile);
+            if (snapshot == null)
                 return false;
+            mSnapshot = snapshot;
 
             // Watch the config file for changes
             setupFileWatcher();
@@ -82,53 +97,91 @@ public class ConfigurationManager {
     }
 
     /**
-     * Creates a file watcher for the configuration file
+     * @return the parsed file, or null if it is not valid
+     */
+    private static ConfigurationSnapshot read(File file) throws ConfigurationException {
+        PropertiesConfiguration configuration = new PropertiesConfiguration();
+        configuration.load(file);
+        return ConfigurationSnapshot.parse(configuration);
+    }
+
+    /**
+     * Reads the file again and publishes it if it is valid, the previous configuration is kept otherwise
+     */
+    private void reload() {
+        try {
+            ConfigurationSnapshot snapshot = read(mConfigFile);
+            if (snapshot == null) {
+                Log.e(TAG, "Ignoring invalid '" + mConfigFile + "', keeping the previous configuration.");
+                return;
+            }
+            // Every target has a manager, with its own state on disk, created on startup
+            if (!targetNames(snapshot).equals(targetNames(mSnapshot))) {
+                Log.e(TAG, "Ignoring '" + mConfigFile + "', adding or removing targets needs a restart. Keeping the previous configuration.");
+                return;
+            }
+            List<String> startupOptions = ConfigurationSnapshot.startupOptionChanges(mSnapshot, snapshot);
+            if (!startupOptions.isEmpty()) {
+                Log.e(TAG, "Ignoring '" + mConfigFile + "', changing " + String.join(", ", startupOptions)
+                        + " needs a restart. Keeping the previous configuration.");
+                return;
+            }
+            mSnapshot = snapshot;
+        } catch (ConfigurationException e) {
+            Log.e(TAG, "Could not reload '" + mConfigFile + "': " + e.getMessage());
+            return;
+        }
+        Log.d(TAG, "Reloaded '" + mConfigFile + "'.");
+        Runnable onReload = mOnReload;
+        if (onReload != null)
+            onReload.run();
+    }
+
+    private static Set<String> targetNames(ConfigurationSnapshot snapshot) {
+        Set<String> names = new HashSet<>();
+        for (UploadTarget target : snapshot.getTargets())
+            names.add(target.getName());
+        return names;
+    }
+
+    /**
+     * Creates a file watcher for the directory of the configuration file. It reloads the file when
+     * it is modified in place or replaced, once the events stop for {@link #RELOAD_SETTLE_MS}.
      */
-    private void setupFileWatcher() {
-        new Thread(() -> {
-            final Path path = Paths.get(System.getProperty("user.dir"));
+    private synchronized void setupFileWatcher() {
+        if (mFileWatcher != null)
+            return;
+        mFileWatcher = new Thread(() -> {
             try (final WatchService watchService = FileSystems.getDefault().newWatchService()) {
-                path.register(watchService, ENTRY_CREATE);
+                Path directory = mConfigFile.toPath().getParent();
+                directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
                 while (!Thread.interrupted()) {
-                    final WatchKey wk = watchService.take();
-                    for (WatchEvent<?> event : wk.pollEvents()) {
-                        final Path changed = (Path) event.context();
-                        if (changed.toFile().equals(mConfigFile)) {
-                            mConfiguration.refresh();
-                            Log.d(TAG, "Reloaded '" + CONFIG_FILE + "'.");
-                            if(mOnReload != null)
-                                mOnReload.run();
+                    WatchKey wk = watchService.take();
+                    boolean isChanged = false;
+                    while (wk != null) {
+                        for (WatchEvent<?> event : wk.pollEvents()) {
+                            if (event.kind() == OVERFLOW
+                                    || directory.resolve((Path) event.context()).equals(mConfigFile.toPath()))
+                                isChanged = true;
                         }
+                        if (!wk.reset()) {
+                            Log.d(TAG, "Key has been unregistered");
+                            return;
+                        }
+                        // Wait for the rest of the save
+                        wk = isChanged ? watchService.poll(RELOAD_SETTLE_MS, TimeUnit.MILLISECONDS) : null;
                     }
-                    boolean valid = wk.reset();
-                    if (!valid) {
-                        Log.d(TAG, "Key has been unregistered");
-                    }
+                    if (isChanged)
+                        reload();
                 }
+            } catch (InterruptedException e) {
+                // Asked to stop
             } catch (Exception e) {
                 Log.e(TAG, e.getMessage());
             }
-        }).start();
-    }
-
-    /** Function that validates the configuration file
-     *
-     * @param mConfiguration to be validated
-     * @return false if doesn't have a property that is required or if property value is null
-     */
-    private boolean isValidConfigurationFile(PropertiesConfiguration mConfiguration) {
-        boolean isValid = true;
-        for(String property : CONFIGURATION_OPTIONS) {
-            String value = mConfiguration.getString(property);
-            if (value == null) {
-                Log.e(TAG, "Missing property '" + property + "'.");
-                isValid = false;
-            } else if (value.isEmpty()) {
-                Log.e(TAG, "Property '" + property + "' has no value");
-                isValid = false;
-            }
-        }
-        return isValid;
+        }, TAG + " Watcher");
+        mFileWatcher.setDaemon(true);
+        mFileWatcher.start();
     }
 
     /** Function that creates a new empty configuration file, the file still needs to be populated
@@ -143,18 +196,191 @@ public class ConfigurationManager {
         if(!file.exists() && !file.createNewFile()) {
             throw new Exception("Could not create file");
         }
-        mConfiguration = new PropertiesConfiguration();
-        mConfiguration.setHeader("Config file for Submission Watcher");
+        PropertiesConfiguration configuration = new PropertiesConfiguration();
+        configuration.setHeader("Config file for Submission Watcher");
         for(String property : CONFIGURATION_OPTIONS)
-            mConfiguration.addProperty(property, "");
-        mConfiguration.save(file);
+            configuration.addProperty(property, "");
+        configuration.save(file);
     }
 
-    public String getHost() { return mConfiguration.getString(CONFIGURATION_OPTIONS[0]); }
-    public int getPort() { return mConfiguration.getInt(CONFIGURATION_OPTIONS[1]); }
-    public String getUsername() { return mConfiguration.getString(CONFIGURATION_OPTIONS[2]); }
-    public String getPassword() { return mConfiguration.getString(CONFIGURATION_OPTIONS[3]); }
-    public String getRootDir() { return mConfiguration.getString(CONFIGURATION_OPTIONS[4]); }
+    /**
+     * @return the current configuration. Options that must be consistent with each other, like the
+     * server and credentials of a session, should be read from a single snapshot.
+     */
+    public ConfigurationSnapshot getSnapshot() { return mSnapshot; }
+
+    public String getHost() { return mSnapshot.getHost(); }
+    public int getPort() { return mSnapshot.getPort(); }
+    public String getUsername() { return mSnapshot.getUsername(); }
+    public String getPassword() { return mSnapshot.getPassword(); }
+    public String getRootDir() { return mSnapshot.getRootDir(); }
+
+    /**
+     * Servers every file is uploaded to. With a 'targets' option listing names, each target reads
+     * its options as '<name>.host', '<name>.port', ... and falls back to the plain options for the
+     * ones it does not set. Without it there is a single target made of the plain options.
+     *
+     * @return the targets, in the order they are listed
+     */
+    public List<UploadTarget> getTargets() { return mSnapshot.getTargets(); }
+
+    /**
+     * @return the target with the given name, or null if it is no longer configured
+     */
+    public UploadTarget getTarget(String name) { return mSnapshot.getTarget(name); }
+
+    // Optional properties, these fall back to a default when missing from the file
+
+    /**
+     * @return how many parallel upload sessions the FTPManager may open
+     */
+    public int getUploadWorkers() { return mSnapshot.getUploadWorkers(); }
+
+    /**
+     * @return how many queued files are kept in memory, the rest of the queue is spilled to disk
+     */
+    public int getQueueMemoryCapacity() { return mSnapshot.getQueueMemoryCapacity(); }
+
+    /**
+     * @return true if the remote tree should be listed on connect to learn which directories exist
+     */
+    public boolean getPrimeDirectoryCache() { return mSnapshot.getPrimeDirectoryCache(); }
+
+    /**
+     * @return how long, in milliseconds, a file must go without changes before it is uploaded
+     */
+    public long getStabilityWindow() { return mSnapshot.getStabilityWindow(); }
+
+    /**
+     * @return how long, in milliseconds, an idle upload session waits before sending a NOOP
+     */
+    public long getKeepAliveInterval() { return mSnapshot.getKeepAliveInterval(); }
+
+    /**
+     * @return timeout, in milliseconds, of the connection and of every read on the control and data sockets
+     */
+    public int getSocketTimeout() { return mSnapshot.getSocketTimeout(); }
+
+    /**
+     * @return first delay, in milliseconds, before retrying a failed upload or connection, doubled on every failure
+     */
+    public long getRetryBaseDelay() { return mSnapshot.getRetryBaseDelay(); }
+
+    /**
+     * @return longest delay, in milliseconds, between retries
+     */
+    public long getRetryMaxDelay() { return mSnapshot.getRetryMaxDelay(); }
+
+    /**
+     * @return how many times a file is tried before it is moved to the dead letter file
+     */
+    public int getMaxUploadAttempts() { return mSnapshot.getMaxUploadAttempts(); }
+
+    /**
+     * @return port of the local Prometheus metrics endpoint, 0 if it is disabled
+     */
+    public int getMetricsPort() { return mSnapshot.getMetricsPort(); }
+
+    /**
+     * @return files smaller than this, in bytes, that are queued one after the other in the same
+     * directory are uploaded together as one tar archive, 0 to upload every file on its own
+     */
+    public long getBundleThreshold() { return mSnapshot.getBundleThreshold(); }
+
+    /**
+     * @return most files put in one tar archive
+     */
+    public int getBundleMaxFiles() { return mSnapshot.getBundleMaxFiles(); }
+
+    /**
+     * @return most bytes of files put in one tar archive
+     */
+    public long getBundleMaxBytes() { return mSnapshot.getBundleMaxBytes(); }
+
+    /**
+     * @return how the watched directory is watched, 'watcher' can be native, the default, or polling
+     * for network file systems and trees larger than the OS watch limits
+     */
+    public String getWatcher() { return mSnapshot.getWatcher(); }
+
+    /**
+     * @return how often, in milliseconds, the polling watcher checks a directory that just changed
+     */
+    public long getPollingMinInterval() { return mSnapshot.getPollingMinInterval(); }
+
+    /**
+     * @return how often, in milliseconds, the polling watcher checks a directory that does not change, at least
+     */
+    public long getPollingMaxInterval() { return mSnapshot.getPollingMaxInterval(); }
+
+    /**
+     * @return how many directories the polling watcher checks in parallel
+     */
+    public int getPollingThreads() { return mSnapshot.getPollingThreads(); }
+
+    /**
+     * @return command line the Windows evaluator runs in the sandbox of every submission, its
+     * arguments separated by spaces, empty if none is configured
+     */
+    public String getEvaluatorCommand() { return mSnapshot.getEvaluatorCommand(); }
+
+    /**
+     * @return how many submissions the evaluator runs at the same time, at most the number of processors
+     */
+    public int getEvaluatorWorkers() { return mSnapshot.getEvaluatorWorkers(); }
+
+    /**
+     * @return how long, in milliseconds, an evaluation may run before it is killed
+     */
+    public long getEvaluatorTimeout() { return mSnapshot.getEvaluatorTimeout(); }
+
+    /**
+     * @return directory the submissions are unpacked in, one sub-directory each
+     */
+    public String getSandboxDir() { return mSnapshot.getSandboxDir(); }
+
+    /**
+     * @return directory the evaluation results are written to before they are uploaded, must
+     * not be inside the watched directory
+     */
+    public String getResultsDir() { return mSnapshot.getResultsDir(); }
+
+    /**
+     * @return JDBC url of the database the Linux monitor runs the received .sql files against,
+     * empty if they are ignored. The driver must be on the classpath, H2 is for an embedded database.
+     */
+    public String getSqlUrl() { return mSnapshot.getSqlUrl(); }
+
+    public String getSqlUsername() { return mSnapshot.getSqlUsername(); }
+    public String getSqlPassword() { return mSnapshot.getSqlPassword(); }
+
+    /**
+     * @return how long, in milliseconds, received .sql files are collected to be run in one transaction
+     */
+    public long getSqlBatchWindow() { return mSnapshot.getSqlBatchWindow(); }
+
+    /**
+     * @return how many statements are sent to the database in one JDBC batch
+     */
+    public int getSqlBatchSize() { return mSnapshot.getSqlBatchSize(); }
+
+    /**
+     * @return true if a backslash escapes the next character in the quoted strings of the .sql
+     * files, as in MySQL dumps
+     */
+    public boolean getSqlBackslashEscapes() { return mSnapshot.getSqlBackslashEscapes(); }
+
+    /**
+     * @return the codec compressible files are sent with, 'compression' can be none, gzip or gzip-fast
+     */
+    UploadCompression.Codec getCompression() { return mSnapshot.getCompression(); }
+
+    /**
+     * @return the order files are uploaded in, 'scheduling' can be fifo, shortest-first or fair.
+     * shortest-first ages files at 'schedulingAgingBytesPerSecond', fair weighs the top-level
+     * directories with 'fairWeights', as 'dir:weight' pairs separated by commas.
+     */
+    SchedulingPolicy getSchedulingPolicy() { return mSnapshot.getSchedulingPolicy(); }
 
     // -----------------------
     // ------ Singleton ------
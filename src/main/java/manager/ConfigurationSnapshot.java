@@ -0,0 +1,258 @@
+package manager;
+
+import log.Log;
+import org.apache.commons.configuration.PropertiesConfiguration;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, validated copy of the configuration file.
+ *
+ * Every option is parsed once, when the file is loaded, so reading an option is a field read. The
+ * {@link ConfigurationManager} publishes a new snapshot on every reload; code that reads several
+ * options that belong together should take one snapshot and read them all from it.
+ *
+ * @author edgar
+ */
+public final class ConfigurationSnapshot {
+
+    private static final String TAG = ConfigurationSnapshot.class.getSimpleName();
+
+    private final String mHost;
+    private final int mPort;
+    private final String mUsername;
+    private final String mPassword;
+    private final String mRootDir;
+    private final Map<String, UploadTarget> mTargets;
+
+    private final int mUploadWorkers;
+    private final int mQueueMemoryCapacity;
+    private final boolean isPrimeDirectoryCache;
+    private final long mStabilityWindow;
+    private final long mKeepAliveInterval;
+    private final int mSocketTimeout;
+    private final long mRetryBaseDelay;
+    private final long mRetryMaxDelay;
+    private final int mMaxUploadAttempts;
+    private final int mMetricsPort;
+    private final UploadCompression.Codec mCompression;
+    private final long mBundleThreshold;
+    private final int mBundleMaxFiles;
+    private final long mBundleMaxBytes;
+    private final String mScheduling;
+    private final long mSchedulingAgingBytesPerSecond;
+    private final String mFairWeights;
+    private final String mWatcher;
+    private final long mPollingMinInterval;
+    private final long mPollingMaxInterval;
+    private final int mPollingThreads;
+    private final String mEvaluatorCommand;
+    private final int mEvaluatorWorkers;
+    private final long mEvaluatorTimeout;
+    private final String mSandboxDir;
+    private final String mResultsDir;
+    private final String mSqlUrl;
+    private final String mSqlUsername;
+    private final String mSqlPassword;
+    private final long mSqlBatchWindow;
+    private final int mSqlBatchSize;
+    private final boolean isSqlBackslashEscapes;
+
+    private ConfigurationSnapshot(PropertiesConfiguration configuration, Map<String, UploadTarget> targets) {
+        mHost = configuration.getString("host");
+        mPort = configuration.getInt("port", 0);
+        mUsername = configuration.getString("username");
+        mPassword = configuration.getString("password");
+        mRootDir = configuration.getString("rootDir");
+        mTargets = Collections.unmodifiableMap(targets);
+
+        mUploadWorkers = Math.max(1, configuration.getInt("uploadWorkers", 1));
+        mQueueMemoryCapacity = Math.max(2, configuration.getInt("queueMemoryCapacity", 10000));
+        isPrimeDirectoryCache = configuration.getBoolean("primeDirectoryCache", false);
+        mStabilityWindow = configuration.getLong("stabilityWindowMs", QuiescenceFilter.DEFAULT_WINDOW_MS);
+        mKeepAliveInterval = Math.max(1000, configuration.getLong("keepAliveIntervalMs", 60 * 1000));
+        mSocketTimeout = configuration.getInt("socketTimeoutMs", 60 * 1000);
+        mRetryBaseDelay = Math.max(1, configuration.getLong("retryBaseDelayMs", 1000));
+        mRetryMaxDelay = Math.max(mRetryBaseDelay, configuration.getLong("retryMaxDelayMs", 5 * 60 * 1000));
+        mMaxUploadAttempts = Math.max(1, configuration.getInt("maxUploadAttempts", 10));
+        mMetricsPort = configuration.getInt("metricsPort", 0);
+        mCompression = UploadCompression.Codec.fromName(configuration.getString("compression", "none"));
+        mBundleThreshold = Math.max(0, configuration.getLong("bundleThresholdBytes", 0));
+        mBundleMaxFiles = Math.max(2, configuration.getInt("bundleMaxFiles", 256));
+        mBundleMaxBytes = Math.max(mBundleThreshold, configuration.getLong("bundleMaxBytes", 16 * 1024 * 1024));
+        mScheduling = configuration.getString("scheduling", "fifo");
+        mSchedulingAgingBytesPerSecond = configuration.getLong("schedulingAgingBytesPerSecond", 10 * 1024 * 1024);
+        mFairWeights = String.join(",", configuration.getStringArray("fairWeights"));
+        mWatcher = configuration.getString("watcher", "native");
+        mPollingMinInterval = Math.max(10, configuration.getLong("pollingMinIntervalMs", 1000));
+        mPollingMaxInterval = Math.max(mPollingMinInterval, configuration.getLong("pollingMaxIntervalMs", 30 * 1000));
+        mPollingThreads = Math.max(1, configuration.getInt("pollingThreads", 8));
+        mEvaluatorCommand = String.join(",", configuration.getStringArray("evaluatorCommand"));
+        mEvaluatorWorkers = Math.max(1, configuration.getInt("evaluatorWorkers", Runtime.getRuntime().availableProcessors()));
+        mEvaluatorTimeout = Math.max(1000, configuration.getLong("evaluatorTimeoutMs", 10 * 60 * 1000));
+        mSandboxDir = configuration.getString("sandboxDir", new File(System.getProperty("java.io.tmpdir"), "evaluator").getPath());
+        mResultsDir = configuration.getString("resultsDir", "results");
+        mSqlUrl = String.join(",", configuration.getStringArray("sqlUrl"));
+        mSqlUsername = configuration.getString("sqlUsername", "");
+        mSqlPassword = String.join(",", configuration.getStringArray("sqlPassword"));
+        mSqlBatchWindow = Math.max(0, configuration.getLong("sqlBatchWindowMs", 1000));
+        mSqlBatchSize = Math.max(1, configuration.getInt("sqlBatchSize", 500));
+        isSqlBackslashEscapes = configuration.getBoolean("sqlBackslashEscapes", false);
+    }
+
+    /**
+     * Validates and parses a loaded configuration file
+     *
+     * @param configuration the loaded file
+     * @return the snapshot, or null if a required option is missing or an option has an invalid value
+     */
+    static ConfigurationSnapshot parse(PropertiesConfiguration configuration) {
+        Map<String, UploadTarget> targets = new LinkedHashMap<>();
+        boolean isValid = true;
+        for (String target : getTargetNames(configuration)) {
+            String[] values = new String[ConfigurationManager.CONFIGURATION_OPTIONS.length];
+            for (int i = 0; i < values.length; i++) {
+                String property = ConfigurationManager.CONFIGURATION_OPTIONS[i];
+                String name = (target != null) ? target + "." + property : property;
+                values[i] = getTargetString(configuration, target, property);
+                if (values[i] == null) {
+                    Log.e(TAG, "Missing property '" + name + "'.");
+                    isValid = false;
+                } else if (values[i].isEmpty()) {
+                    Log.e(TAG, "Property '" + name + "' has no value");
+                    isValid = false;
+                }
+            }
+            if (!isValid)
+                continue;
+
+            String name = (target != null) ? target : UploadTarget.DEFAULT_NAME;
+            try {
+                targets.put(name, new UploadTarget(name, values[0], Integer.parseInt(values[1].trim()), values[2], values[3], values[4]));
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Invalid port '" + values[1] + "' for target '" + name + "'.");
+                isValid = false;
+            }
+        }
+        if (!isValid)
+            return null;
+
+        try {
+            return new ConfigurationSnapshot(configuration, targets);
+        } catch (RuntimeException e) {
+            // A number or boolean option that does not parse
+            Log.e(TAG, "Invalid configuration: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Lists the options that are only read on startup, by the watcher, the upload queue, the metrics
+     * endpoint or the pipelines, and that a reload therefore cannot change
+     *
+     * @return the names of the startup options whose value differs between the two snapshots
+     */
+    static List<String> startupOptionChanges(ConfigurationSnapshot previous, ConfigurationSnapshot next) {
+        List<String> changed = new ArrayList<>();
+        addIfChanged(changed, "uploadWorkers", previous.mUploadWorkers, next.mUploadWorkers);
+        addIfChanged(changed, "queueMemoryCapacity", previous.mQueueMemoryCapacity, next.mQueueMemoryCapacity);
+        addIfChanged(changed, "stabilityWindowMs", previous.mStabilityWindow, next.mStabilityWindow);
+        addIfChanged(changed, "metricsPort", previous.mMetricsPort, next.mMetricsPort);
+        addIfChanged(changed, "scheduling", previous.mScheduling, next.mScheduling);
+        addIfChanged(changed, "schedulingAgingBytesPerSecond", previous.mSchedulingAgingBytesPerSecond, next.mSchedulingAgingBytesPerSecond);
+        addIfChanged(changed, "fairWeights", previous.mFairWeights, next.mFairWeights);
+        addIfChanged(changed, "watcher", previous.mWatcher, next.mWatcher);
+        addIfChanged(changed, "pollingMinIntervalMs", previous.mPollingMinInterval, next.mPollingMinInterval);
+        addIfChanged(changed, "pollingMaxIntervalMs", previous.mPollingMaxInterval, next.mPollingMaxInterval);
+        addIfChanged(changed, "pollingThreads", previous.mPollingThreads, next.mPollingThreads);
+        addIfChanged(changed, "evaluatorWorkers", previous.mEvaluatorWorkers, next.mEvaluatorWorkers);
+        // The ingestion is only started when a database is configured, the database itself can change
+        addIfChanged(changed, "sqlUrl", previous.mSqlUrl.trim().isEmpty(), next.mSqlUrl.trim().isEmpty());
+        return changed;
+    }
+
+    private static void addIfChanged(List<String> changed, String option, Object previous, Object next) {
+        if (!previous.equals(next))
+            changed.add(option);
+    }
+
+    /**
+     * @return the names listed in the 'targets' option, or a single null name if there is none
+     */
+    private static List<String> getTargetNames(PropertiesConfiguration configuration) {
+        List<String> names = new ArrayList<>();
+        for (String name : configuration.getStringArray("targets")) {
+            if (!name.trim().isEmpty() && !names.contains(name.trim()))
+                names.add(name.trim());
+        }
+        if (names.isEmpty())
+            names.add(null);
+        return names;
+    }
+
+    /**
+     * @return the option of the target, '<target>.<option>', falling back to the option shared by all the targets
+     */
+    private static String getTargetString(PropertiesConfiguration configuration, String target, String option) {
+        String value = (target != null) ? configuration.getString(target + "." + option) : null;
+        return (value != null) ? value : configuration.getString(option);
+    }
+
+    public String getHost() { return mHost; }
+    public int getPort() { return mPort; }
+    public String getUsername() { return mUsername; }
+    public String getPassword() { return mPassword; }
+    public String getRootDir() { return mRootDir; }
+
+    /**
+     * @return the targets, in the order they are listed
+     */
+    public List<UploadTarget> getTargets() { return new ArrayList<>(mTargets.values()); }
+
+    /**
+     * @return the target with the given name, or null if it is not configured
+     */
+    public UploadTarget getTarget(String name) { return mTargets.get(name); }
+
+    public int getUploadWorkers() { return mUploadWorkers; }
+    public int getQueueMemoryCapacity() { return mQueueMemoryCapacity; }
+    public boolean getPrimeDirectoryCache() { return isPrimeDirectoryCache; }
+    public long getStabilityWindow() { return mStabilityWindow; }
+    public long getKeepAliveInterval() { return mKeepAliveInterval; }
+    public int getSocketTimeout() { return mSocketTimeout; }
+    public long getRetryBaseDelay() { return mRetryBaseDelay; }
+    public long getRetryMaxDelay() { return mRetryMaxDelay; }
+    public int getMaxUploadAttempts() { return mMaxUploadAttempts; }
+    public int getMetricsPort() { return mMetricsPort; }
+    UploadCompression.Codec getCompression() { return mCompression; }
+    public long getBundleThreshold() { return mBundleThreshold; }
+    public int getBundleMaxFiles() { return mBundleMaxFiles; }
+    public long getBundleMaxBytes() { return mBundleMaxBytes; }
+    public String getWatcher() { return mWatcher; }
+    public long getPollingMinInterval() { return mPollingMinInterval; }
+    public long getPollingMaxInterval() { return mPollingMaxInterval; }
+    public int getPollingThreads() { return mPollingThreads; }
+    public String getEvaluatorCommand() { return mEvaluatorCommand; }
+    public int getEvaluatorWorkers() { return mEvaluatorWorkers; }
+    public long getEvaluatorTimeout() { return mEvaluatorTimeout; }
+    public String getSandboxDir() { return mSandboxDir; }
+    public String getResultsDir() { return mResultsDir; }
+    public String getSqlUrl() { return mSqlUrl; }
+    public String getSqlUsername() { return mSqlUsername; }
+    public String getSqlPassword() { return mSqlPassword; }
+    public long getSqlBatchWindow() { return mSqlBatchWindow; }
+    public int getSqlBatchSize() { return mSqlBatchSize; }
+    public boolean getSqlBackslashEscapes() { return isSqlBackslashEscapes; }
+
+    /**
+     * @return a new instance of the configured scheduling policy
+     */
+    SchedulingPolicy getSchedulingPolicy() {
+        return SchedulingPolicy.create(mScheduling, mSchedulingAgingBytesPerSecond, mFairWeights);
+    }
+}
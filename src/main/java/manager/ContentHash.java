@@ -0,0 +1,99 @@
+package manager;
+
+import java.io.*;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Fast, non cryptographic 64 bit hash of a file content, made of a CRC32 and an Adler32 of the
+ * bytes. Only used together with the file size to tell if a file was already uploaded.
+ *
+ * @author edgar
+ */
+final class ContentHash {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CRC32 mCrc = new CRC32();
+    private final Adler32 mAdler = new Adler32();
+
+    void update(byte[] bytes, int offset, int length) {
+        mCrc.update(bytes, offset, length);
+        mAdler.update(bytes, offset, length);
+    }
+
+    /**
+     * @return the hash of all the bytes given so far, never 0 so 0 can mean "unknown"
+     */
+    long getValue() {
+        long value = (mCrc.getValue() << 32) | mAdler.getValue();
+        return (value != 0) ? value : 1;
+    }
+
+    /**
+     * Hashes a whole file, streaming it through a fixed buffer
+     *
+     * @param file the file to hash
+     * @return the content hash
+     * @throws IOException
+     */
+    static long of(File file) throws IOException {
+        ContentHash hash = new ContentHash();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                hash.update(buffer, 0, read);
+        }
+        return hash.getValue();
+    }
+
+    /**
+     * Stream that hashes the bytes as they are read, so a file can be hashed while it is uploaded
+     */
+    static class HashingInputStream extends FilterInputStream {
+
+        private final ContentHash mHash = new ContentHash();
+
+        HashingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                mHash.update(new byte[]{(byte) b}, 0, 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0)
+                mHash.update(b, off, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must be hashed too
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read == -1)
+                    break;
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        long getHash() { return mHash.getValue(); }
+    }
+}
@@ -0,0 +1,80 @@
+package manager;
+
+import metrics.Counter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.LongConsumer;
+
+/**
+ * Stream that counts the bytes read through it and reports the count every time another
+ * checkpoint interval worth of bytes went by.
+ *
+ * @author edgar
+ */
+class CountingInputStream extends FilterInputStream {
+
+    private final LongConsumer mOnCheckpoint;
+    private final Counter mCounter;
+    private final long mCheckpointInterval;
+    private long mCount;
+    private long mNextCheckpoint;
+
+    /**
+     * @param in the stream to count
+     * @param startCount value the count starts at, e.g. the offset a transfer resumes from
+     * @param checkpointInterval bytes between each call to the listener
+     * @param onCheckpoint called with the current count, may be null
+     * @param counter metric every read is added to, may be null
+     */
+    CountingInputStream(InputStream in, long startCount, long checkpointInterval, LongConsumer onCheckpoint, Counter counter) {
+        super(in);
+        mCount = startCount;
+        mCheckpointInterval = checkpointInterval;
+        mNextCheckpoint = startCount + checkpointInterval;
+        mOnCheckpoint = onCheckpoint;
+        mCounter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1)
+            count(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0)
+            count(read);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped > 0)
+            count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    long getCount() { return mCount; }
+
+    private void count(long bytes) {
+        mCount += bytes;
+        if (mCounter != null)
+            mCounter.add(bytes);
+        if (mOnCheckpoint != null && mCount >= mNextCheckpoint) {
+            mNextCheckpoint = mCount + mCheckpointInterval;
+            mOnCheckpoint.accept(mCount);
+        }
+    }
+}
@@ -1,44 +1,82 @@
 package manager;
 
 import log.Log;
+import metrics.Counter;
+import metrics.Metrics;
 import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPFile;
 import org.apache.commons.net.ftp.FTPReply;
 import org.apache.commons.net.ftp.FTPSClient;
 
 import java.io.*;
-import java.util.NoSuchElementException;
-import java.util.Queue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 /**
- * Class that deals with the upload requests
+ * Class that deals with the upload requests of one {@link UploadTarget}. Every target has its own
+ * FTPManager, with its own queue, workers and state directory, so a slow target never holds the
+ * others back. {@link ReplicationManager} hands every file to all of them.
  *
  * @author edgar
  */
-public class FTPManager implements Runnable {
+public class FTPManager {
 
     private static final String TAG = FTPManager.class.getSimpleName();
 
     /**
-     * Instance of our FTPManager to be returned on  <code>{@link #getInstance()}
+     * Journal where the queue is persisted
      */
-    private static FTPManager mInstance;
+    private static final String JOURNAL_FILE = "filesQueue.journal";
 
     /**
-     * Function to return a single instance of FTPManager
-     *
-     * @return The singleton instance of FTPManager
+     * Snapshot file used by older versions, migrated into the journal on startup
      */
-    public static synchronized FTPManager getInstance() {
-        return mInstance;
-    }
+    private static final String LEGACY_QUEUE_FILE = "filesQueue.dat";
+
+    /**
+     * Directory where the queue spills the files that don't fit in memory
+     */
+    private static final String SPILL_DIRECTORY = "filesQueue.spill";
+
+    /**
+     * Base name of the index of the files already uploaded
+     */
+    private static final String MANIFEST_NAME = "uploadedFiles";
+
+    /**
+     * Files that could not be uploaded after the configured number of attempts, one per line
+     */
+    private static final String DEAD_LETTER_FILE = "deadLetters.txt";
+
+    /**
+     * Verified uploads with their digest, one per line, see {@link IntegrityLedger}
+     */
+    private static final String INTEGRITY_LEDGER_FILE = "integrityLedger.tsv";
+
+    /**
+     * How many bytes are sent between each save of the transfer offset
+     */
+    private static final long PROGRESS_INTERVAL = 8 * 1024 * 1024;
 
     /**
-     * Initializes the FTPManager Singleton
+     * Creates the FTP client of every worker. Replaced by benchmarks to run against an in-process fake server.
      */
-    public static void init() {
-        mInstance = new FTPManager();
-        mInstance.startThread();
+    private static volatile Supplier<FTPSClient> mClientFactory = () -> new FTPSClient("TLS");
+
+    static void setClientFactory(Supplier<FTPSClient> clientFactory) {
+        mClientFactory = clientFactory;
     }
 
     // ------------------------
@@ -46,43 +84,147 @@ public class FTPManager implements Runnable {
     // ------------------------
 
     /**
-     * Queue where the files to be uploaded are stored
+     * Queue where the files to be uploaded are stored, only its head is kept in memory
+     */
+    private final SpillingUploadQueue mFilesToUpload;
+
+    /**
+     * Files that were taken from the queue by a worker and are still being uploaded, by relative path.
+     * They are kept here so that they are still saved in case we crash mid upload.
+     */
+    private final Map<String, FileToSendInfo> mFilesInFlight = new HashMap<>();
+
+    /**
+     * Files claimed while another worker was uploading the same path. They wait here, one per path,
+     * until that upload ends so the same remote file is never written by two sessions at once.
+     */
+    private final Map<String, FileToSendInfo> mFilesDeferred = new HashMap<>();
+
+    /**
+     * Threads that deal with the file uploads, each one has its own FTP session
+     */
+    private Thread[] mFileUploadThreads;
+
+    /**
+     * Bytes sent by each worker, so the rate of every connection can be followed
+     */
+    private final Counter[] mBytesSent;
+
+    /**
+     * Append-only log of the queue changes. Appending to it and changing the queue are done while
+     * holding its lock so the journal always knows the same files as the queue.
+     */
+    private final UploadJournal mJournal;
+
+    /**
+     * Source of the ids given to every queued file
+     */
+    private final AtomicLong mNextFileId = new AtomicLong();
+
+    /**
+     * Remote directories known to exist on the server the sessions are opened to. Replaced when the
+     * target changes; sessions still open to the previous server keep the cache they started with,
+     * so what they learn never ends up in the cache of the new one.
      */
-    private Queue<FileToSendInfo> mFilesToUpload;
+    private final AtomicReference<RemoteDirectoryCache> mRemoteDirectories = new AtomicReference<>(new RemoteDirectoryCache("", ""));
 
     /**
-     * Thread that deals with the file uploads
+     * Files already uploaded, used to find what was missed while we were not running
      */
-    private Thread mFileUploadThread;
+    private final UploadManifest mManifest;
 
-    private FTPSClient mFTPSClient;
+    /**
+     * Digests of the uploaded files, kept for audits
+     */
+    private final IntegrityLedger mLedger;
+
+    /**
+     * Gives every queued file its place in the queue, guarded by the mJournal lock
+     */
+    private final SchedulingPolicy mPolicy;
+
+    /**
+     * Where the dead letter file is written
+     */
+    private final File mDirectory;
+
+    /**
+     * Puts failed files back in the queue once their retry delay is over
+     */
+    private final ScheduledExecutorService mRetryScheduler;
 
     /**
-     * Private Constructor for the Singleton design pattern
+     * The server the files are sent to, as it was configured when this manager was created
      */
-    private FTPManager() {
-        mFilesToUpload = new PriorityBlockingQueue<>();
-        mFTPSClient = new FTPSClient("TLS");
+    private final UploadTarget mTarget;
 
-        // Uncomment to print FTP outut
-        //mFTPSClient.addProtocolCommandListener(new PrintCommandListener(new PrintWriter(System.out))); // outputs all conversation to the console
+    /**
+     * Moving averages, in bytes of the local file per second, of sending a file and of hashing one.
+     * 0 until measured.
+     */
+    private volatile double mSendRate;
+    private volatile double mHashRate;
+
+    /**
+     * Uploads to the first configured target
+     *
+     * @param directory where the queue journal and the manifest of uploaded files are kept
+     */
+    FTPManager(File directory) {
+        this(directory, ConfigurationManager.getInstance().getTargets().get(0));
+    }
 
+    /**
+     * @param directory where the queue journal and the manifest of uploaded files are kept
+     * @param target the server the files are sent to
+     */
+    FTPManager(File directory, UploadTarget target) {
+        mDirectory = directory;
+        mTarget = target;
+        mRetryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, TAG + " " + target.getName() + " Retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (!directory.isDirectory() && !directory.mkdirs())
+            Log.e(TAG, "Could not create '" + directory + "'.");
+        mPolicy = ConfigurationManager.getInstance().getSchedulingPolicy();
+        mFilesToUpload = new SpillingUploadQueue(new File(directory, SPILL_DIRECTORY), ConfigurationManager.getInstance().getQueueMemoryCapacity());
+        mFileUploadThreads = new Thread[ConfigurationManager.getInstance().getUploadWorkers()];
+        mBytesSent = new Counter[mFileUploadThreads.length];
+        for (int i = 0; i < mBytesSent.length; i++)
+            mBytesSent[i] = Metrics.counter("bytes_sent_total", "Bytes sent to the server by each connection",
+                    "target", target.getName(), "connection", String.valueOf(i));
+
+        mJournal = new UploadJournal(new File(directory, JOURNAL_FILE));
+        mManifest = new UploadManifest(directory, MANIFEST_NAME);
+        mLedger = new IntegrityLedger(new File(directory, INTEGRITY_LEDGER_FILE));
         try {
-            File file = new File("filesQueue.dat");
-            if (file.exists()) {
-                ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
-                mFilesToUpload = (Queue<FileToSendInfo>) ois.readObject();
-                ois.close();
-            }
+            mManifest.load();
+            mJournal.replay(fileToSendInfo -> {
+                // Keep the place it had, unless it was queued under another policy
+                if (fileToSendInfo.getPolicyId() == mPolicy.getId())
+                    mPolicy.restore(fileToSendInfo);
+                else
+                    schedule(fileToSendInfo);
+                mFilesToUpload.add(fileToSendInfo);
+                mNextFileId.set(Math.max(mNextFileId.get(), fileToSendInfo.getId() + 1));
+            });
+            migrateLegacyQueue(new File(directory, LEGACY_QUEUE_FILE));
         } catch (Exception e) {
             e.printStackTrace();
         }
 
+        Metrics.gauge("queue_depth", "Files waiting to be uploaded", mFilesToUpload::size, "target", target.getName());
+        Metrics.gauge("files_in_flight", "Files being uploaded or waiting for an upload of the same path", () -> {
+            synchronized (mJournal) {
+                return mFilesInFlight.size() + mFilesDeferred.size();
+            }
+        }, "target", target.getName());
+
         if (mFilesToUpload.size() > 0) {
             startThread();
         }
-
-        //mFTPSClient.addProtocolCommandListener(new PrintCommandListener(new PrintWriter(System.out))); // outputs all conversation to the console
     }
 
     /**
@@ -91,185 +233,1054 @@ public class FTPManager implements Runnable {
      * @param file The file to send
      */
     public void sendFile(File file, String remote) {
-        // Add the file to the queue
-        mFilesToUpload.add(new FileToSendInfo(file, remote));
+        // These exact bytes were already uploaded to this path
+        if (isUploaded(file, remote))
+            return;
 
-        // Write queue to file
-        saveQueue();
+        FileToSendInfo fileToSendInfo = new FileToSendInfo(file, remote);
+        fileToSendInfo.mId = mNextFileId.getAndIncrement();
+
+        // Write the file to the journal and add it to the queue
+        synchronized (mJournal) {
+            schedule(fileToSendInfo);
+            try {
+                mJournal.appendEnqueue(fileToSendInfo);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not journal \"" + file + "\": " + e.getMessage());
+            }
+            mFilesToUpload.add(fileToSendInfo);
+            mJournal.notifyAll();
+        }
+        Metrics.FILES_QUEUED.inc();
 
         // Start thread to deal with file uploads
         startThread();
     }
 
-    public void startThread() {
-        if (mFileUploadThread == null || !mFileUploadThread.isAlive()) {
-            // Create a new thread to deal with the upload
-            mFileUploadThread = new Thread(this, TAG + " Thread");
-            mFileUploadThread.start();
+    /**
+     * Send several files as soon as possible. The whole batch is persisted with a single write.
+     *
+     * @param files The files to send
+     */
+    public void sendFiles(Collection<FileToSendInfo> files) {
+        // Skip the files whose exact bytes were already uploaded, outside the lock since it stats and may hash them
+        List<FileToSendInfo> newFiles = new ArrayList<>(files.size());
+        for (FileToSendInfo fileToSendInfo : files) {
+            if (isUploaded(fileToSendInfo.getFile(), fileToSendInfo.getRelativePath()))
+                continue;
+            fileToSendInfo.mId = mNextFileId.getAndIncrement();
+            newFiles.add(fileToSendInfo);
+        }
+        if (newFiles.isEmpty())
+            return;
+
+        // Write the files to the journal and add them to the queue
+        synchronized (mJournal) {
+            for (FileToSendInfo fileToSendInfo : newFiles)
+                schedule(fileToSendInfo);
+            try {
+                mJournal.appendEnqueue(newFiles);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not journal " + newFiles.size() + " files: " + e.getMessage());
+            }
+            for (FileToSendInfo fileToSendInfo : newFiles)
+                mFilesToUpload.add(fileToSendInfo);
+            Metrics.FILES_QUEUED.add(newFiles.size());
+            mJournal.notifyAll();
         }
+
+        // Start threads to deal with file uploads
+        startThread();
     }
 
-    private void saveQueue() {
-        try {
-            FileOutputStream fout = new FileOutputStream("filesQueue.dat");
-            ObjectOutputStream oos = new ObjectOutputStream(fout);
-            oos.writeObject(mFilesToUpload);
-            oos.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * @return the cache of the remote directories of a server and remote root, a new one if the
+     * previous sessions went somewhere else
+     */
+    private RemoteDirectoryCache getRemoteDirectories(String server, String rootDir) {
+        return mRemoteDirectories.updateAndGet(cache -> cache.isFor(server, rootDir) ? cache : new RemoteDirectoryCache(server, rootDir));
+    }
+
+    /**
+     * @return the target as it is configured now, so a reloaded configuration is used by the next session
+     */
+    UploadTarget getTarget() {
+        return getTarget(ConfigurationManager.getInstance().getSnapshot());
+    }
+
+    private UploadTarget getTarget(ConfigurationSnapshot configuration) {
+        // Reloads that remove a target are rejected, it is only missing from a snapshot not loaded from the file
+        UploadTarget target = configuration.getTarget(mTarget.getName());
+        return (target != null) ? target : mTarget;
+    }
+
+    /**
+     * Gives a file its place in the queue, must be called with the mJournal lock held
+     */
+    private void schedule(FileToSendInfo fileToSendInfo) {
+        fileToSendInfo.setPriority(mPolicy.getId(), mPolicy.assign(fileToSendInfo));
+    }
+
+    /**
+     * Checks if a file was already uploaded and did not change since
+     *
+     * @param file the local file
+     * @param remote the path relative to the remote root dir
+     * @return true if the file was uploaded with its current size and modification time
+     */
+    public boolean isUploaded(File file, String remote) {
+        return mManifest.contains(remote, file.length(), file.lastModified());
+    }
+
+    /**
+     * @return false if there is no record of any upload yet, e.g. on the first run
+     */
+    public boolean hasUploadHistory() {
+        return !mManifest.isNew();
+    }
+
+    /**
+     * Records a file as uploaded without sending it, used to take the existing files as a baseline
+     *
+     * @param file the local file
+     * @param remote the path relative to the remote root dir
+     */
+    public void markUploaded(File file, String remote) {
+        mManifest.record(remote, file.length(), file.lastModified(), 0);
+    }
+
+    /**
+     * Starts the upload workers that are not running and wakes the idle ones up.
+     * Workers are long lived, they keep their session open and wait for files when the queue is empty.
+     */
+    public synchronized void startThread() {
+        for (int i = 0; i < mFileUploadThreads.length; i++) {
+            Thread thread = mFileUploadThreads[i];
+            if (thread == null || !thread.isAlive()) {
+                // Create a new thread to deal with the upload
+                thread = new Thread(new UploadWorker(i), TAG + " " + mTarget.getName() + " Thread " + i);
+                thread.setDaemon(true);
+                mFileUploadThreads[i] = thread;
+                thread.start();
+            }
+        }
+        synchronized (mJournal) {
+            mJournal.notifyAll();
         }
     }
 
     /**
-     * Runnable that uploads all files
+     * Marks a file as done in the journal and compacts the journal when it is mostly dead records
+     *
+     * @param fileToSendInfo the file that no longer needs to be uploaded
      */
-    public void run() {
-        try {
-            Log.d(TAG, "Starting");
-            mFTPSClient.connect(ConfigurationManager.getInstance().getHost(), ConfigurationManager.getInstance().getPort());
-            // Set protection buffer size
-            mFTPSClient.execPBSZ(0);
-            // Set data channel protection to private
-            mFTPSClient.execPROT("P");
-
-            // Check if the connection was successful
-            int reply = mFTPSClient.getReplyCode();
-            if (!FTPReply.isPositiveCompletion(reply)) {
-                mFTPSClient.disconnect();
-                throw new Exception("Exception in connecting to FTP Server");
+    private void completeFile(FileToSendInfo fileToSendInfo) {
+        boolean needsCompaction = false;
+        synchronized (mJournal) {
+            releasePath(fileToSendInfo);
+            try {
+                mJournal.appendComplete(fileToSendInfo);
+                needsCompaction = mJournal.needsCompaction();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not update journal: " + e.getMessage());
             }
+        }
 
-            // Check if login was successful
-            if (!mFTPSClient.login(ConfigurationManager.getInstance().getUsername(), ConfigurationManager.getInstance().getPassword())) {
-                mFTPSClient.disconnect();
-                throw new Exception("Could not login");
+        // Rewriting the journal takes long, the queue must not be locked meanwhile
+        if (needsCompaction) {
+            try {
+                mJournal.compact();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not compact journal: " + e.getMessage());
             }
+        }
+    }
 
-//            mFTPSClient.setControlKeepAliveTimeout(1000);
-            mFTPSClient.setControlKeepAliveTimeout(300); // 5min
+    /**
+     * Adds a measure to a moving average of throughput, giving it a weight of 1/8
+     *
+     * @return the new average in bytes per second
+     */
+    private static double average(double average, long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0)
+            return average;
+        double rate = bytes * 1e9 / nanos;
+        return (average == 0) ? rate : average + (rate - average) / 8;
+    }
 
-            // Iterate over the queue and try to send all files
-            while (!Thread.interrupted()) {
-                // Get the first file, if does not have element throw NoSuchElementException
-                FileToSendInfo fileToSendInfo = mFilesToUpload.element();
+    /**
+     * Stops the upload workers and the pending retries, and closes the journal.
+     * Files that were not uploaded stay in the journal for the next run.
+     *
+     * @throws InterruptedException
+     */
+    synchronized void shutdown() throws InterruptedException {
+        mRetryScheduler.shutdownNow();
+        for (Thread thread : mFileUploadThreads) {
+            if (thread != null)
+                thread.interrupt();
+        }
+        for (Thread thread : mFileUploadThreads) {
+            if (thread != null)
+                thread.join();
+        }
+        try {
+            mJournal.shutdown();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+        mLedger.close();
+    }
 
-                File file = fileToSendInfo.getFile();
-                // If the file exists send it
-                if (file.exists()) {
+    /**
+     * Deals with a failed upload. The file is put back in the queue after a delay that grows with
+     * every attempt, or moved to the dead letter file once it used all its attempts. Meanwhile it
+     * keeps its path, so a newer version of the same file waits for it.
+     *
+     * @param fileToSendInfo the file whose upload failed
+     * @param reason why it failed
+     */
+    private void failFile(FileToSendInfo fileToSendInfo, String reason) {
+        Metrics.UPLOAD_FAILURES.inc();
+        int attempts = fileToSendInfo.incrementAttempts();
+        if (attempts >= ConfigurationManager.getInstance().getMaxUploadAttempts()) {
+            deadLetter(fileToSendInfo, reason);
+            return;
+        }
+
+        long delay = backoffDelay(attempts, ConfigurationManager.getInstance().getRetryBaseDelay(),
+                ConfigurationManager.getInstance().getRetryMaxDelay());
+        Log.e(TAG, "Attempt %d of \"%s\" failed, retrying in %dms.", attempts, fileToSendInfo.getRelativePath(), delay);
+        mRetryScheduler.schedule(() -> requeueFile(fileToSendInfo), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gives back a file whose upload failed so a worker can retry it
+     *
+     * @param fileToSendInfo the file that still needs to be uploaded
+     */
+    private void requeueFile(FileToSendInfo fileToSendInfo) {
+        synchronized (mJournal) {
+            releasePath(fileToSendInfo);
+            mFilesToUpload.requeue(fileToSendInfo);
+            mJournal.notifyAll();
+        }
+    }
 
-                    if(!checkAndCreateRemoteDirectories(fileToSendInfo.mRelativePath)) {
-                        throw new Exception("Could not access or create folders for \"" + file + "\".");
+    /**
+     * Gives up on a file: it is removed from the queue and written to the dead letter file
+     *
+     * @param fileToSendInfo the file that could not be uploaded
+     * @param reason the last error
+     */
+    private void deadLetter(FileToSendInfo fileToSendInfo, String reason) {
+        Log.e(TAG, "Giving up on \"%s\" after %d attempts: %s", fileToSendInfo.getRelativePath(), fileToSendInfo.getAttempts(), reason);
+        Metrics.DEAD_LETTERS.inc();
+        synchronized (mJournal) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(mDirectory, DEAD_LETTER_FILE), true), "UTF-8")) {
+                writer.write(System.currentTimeMillis() + "\t" + fileToSendInfo.getFile().getPath() + "\t"
+                        + fileToSendInfo.getRelativePath() + "\t" + fileToSendInfo.getAttempts() + "\t"
+                        + String.valueOf(reason).replace('\n', ' ') + System.lineSeparator());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write dead letter: " + e.getMessage());
+            }
+        }
+        completeFile(fileToSendInfo);
+    }
+
+    /**
+     * Exponential backoff with jitter: the delay doubles with every attempt up to the max, and a
+     * random half of it is added so retries of many files or workers don't all happen at once.
+     *
+     * @param attempt number of failed attempts so far, starting at 1
+     * @return the delay before the next attempt, in milliseconds
+     */
+    public static long backoffDelay(int attempt, long baseDelay, long maxDelay) {
+        long ceiling = Math.min(maxDelay, baseDelay << Math.min(Math.max(0, attempt - 1), 30));
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * Ends the upload of a path, letting the file deferred for it go back to the queue
+     */
+    private void releasePath(FileToSendInfo fileToSendInfo) {
+        if (mFilesInFlight.get(fileToSendInfo.getRelativePath()) != fileToSendInfo)
+            return;
+        mFilesInFlight.remove(fileToSendInfo.getRelativePath());
+        FileToSendInfo deferred = mFilesDeferred.remove(fileToSendInfo.getRelativePath());
+        if (deferred != null)
+            mFilesToUpload.requeue(deferred);
+    }
+
+    /**
+     * Moves the files of a queue snapshot written by an older version into the journal
+     *
+     * @param file the snapshot
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    private void migrateLegacyQueue(File file) throws Exception {
+        if (!file.exists())
+            return;
+
+        Collection<FileToSendInfo> legacy;
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+            legacy = (Collection<FileToSendInfo>) ois.readObject();
+        }
+        for (FileToSendInfo fileToSendInfo : legacy) {
+            fileToSendInfo.mId = mNextFileId.getAndIncrement();
+            schedule(fileToSendInfo);
+            mFilesToUpload.add(fileToSendInfo);
+        }
+
+        mJournal.appendEnqueue(legacy);
+        if (!file.delete())
+            Log.e(TAG, "Could not delete '" + file + "'.");
+        Log.d(TAG, "Migrated " + legacy.size() + " files from '" + file + "'.");
+    }
+
+    /**
+     * Runnable that holds a FTP session and uploads files from the shared queue. The session is kept
+     * open while idle with NOOPs, and reopened, with a growing delay between attempts, whenever it
+     * dies. Files are claimed with {@link SpillingUploadQueue#poll()} so every file is only handled by one worker.
+     */
+    private class UploadWorker implements Runnable {
+
+        private final FTPSClient mFTPSClient;
+        private final Counter mBytesSentCounter;
+
+        /**
+         * Remote root dir of the current session, null while disconnected
+         */
+        private String mRootDir;
+
+        /**
+         * Target the current session was opened for
+         */
+        private UploadTarget mSessionTarget;
+
+        /**
+         * Remote directories known to exist on the server of the current session
+         */
+        private RemoteDirectoryCache mDirectories;
+
+        /**
+         * How the uploads of the current session are verified, chosen from what the server supports
+         */
+        private IntegrityCheck.Method mVerification = IntegrityCheck.Method.SIZE;
+        private boolean hadSession;
+        private int mConnectFailures;
+
+        /**
+         * @param index slot of the worker, used to tell its metrics apart
+         */
+        UploadWorker(int index) {
+            mBytesSentCounter = mBytesSent[index];
+            mFTPSClient = mClientFactory.get();
+
+            // Uncomment to print FTP outut
+            //mFTPSClient.addProtocolCommandListener(new PrintCommandListener(new PrintWriter(System.out))); // outputs all conversation to the console
+        }
+
+        /**
+         * Uploads files as they are queued until the thread is interrupted
+         */
+        public void run() {
+            Log.d(TAG, "Starting");
+            try {
+                while (!Thread.interrupted()) {
+                    // Nothing to do, make sure the session survives the wait
+                    if (!waitForFiles(ConfigurationManager.getInstance().getKeepAliveInterval())) {
+                        keepAlive();
+                        continue;
                     }
 
-                    InputStream inputStream = new FileInputStream(file);
-                    Log.d(TAG, "Sending - " + file.getAbsolutePath());
+                    if (mRootDir == null && !connect()) {
+                        long delay = backoffDelay(mConnectFailures, ConfigurationManager.getInstance().getRetryBaseDelay(),
+                                ConfigurationManager.getInstance().getRetryMaxDelay());
+                        Log.e(TAG, "Reconnecting in %dms.", delay);
+                        TimeUnit.MILLISECONDS.sleep(delay);
+                        continue;
+                    }
 
-                    mFTPSClient.setFileType(FTP.BINARY_FILE_TYPE);
-                    mFTPSClient.enterLocalPassiveMode();
-                    if (!mFTPSClient.storeFile(fileToSendInfo.mRelativePath, inputStream))
-                        throw new Exception("Could not store file \"" + file + "\".");
+                    // The target was changed by a reload, the next file goes to the new one
+                    if (isTargetChanged()) {
+                        disconnect();
+                        continue;
+                    }
 
+                    FileToSendInfo fileToSendInfo = claimNextFile();
+                    if (fileToSendInfo == null)
+                        continue;
+                    List<FileToSendInfo> bundle = claimBundle(fileToSendInfo);
+                    try {
+                        if (bundle.size() == 1)
+                            uploadFile(mRootDir, fileToSendInfo);
+                        else
+                            uploadBundle(mRootDir, bundle);
+                        for (FileToSendInfo sent : bundle)
+                            completeFile(sent);
+                    } catch (Exception e) {
+                        Log.e(TAG, e.getMessage());
+                        for (FileToSendInfo failed : bundle)
+                            failFile(failed, e.getMessage());
+                        // The error may have been the connection, check it before the next file
+                        if (!isSessionAlive())
+                            disconnect();
+                    }
                 }
+            } catch (InterruptedException e) {
+                // Asked to stop
+            } finally {
+                disconnect();
+                Log.d(TAG, "Finished");
+            }
+        }
 
-                // Update the queue after sending
-                mFilesToUpload.remove(fileToSendInfo);
-                saveQueue();
+        /**
+         * Waits until there are files in the queue
+         *
+         * @param timeoutMs how long to wait at most
+         * @return true if there are files to upload
+         * @throws InterruptedException
+         */
+        private boolean waitForFiles(long timeoutMs) throws InterruptedException {
+            synchronized (mJournal) {
+                if (mFilesToUpload.isEmpty())
+                    mJournal.wait(timeoutMs);
+                return !mFilesToUpload.isEmpty();
             }
+        }
 
+        /**
+         * Opens the session: connect, secure the channel, login and go to the root dir
+         *
+         * @return true if the session is ready to upload
+         */
+        private boolean connect() {
+            try {
+                ConfigurationSnapshot configuration = ConfigurationManager.getInstance().getSnapshot();
+                int timeout = configuration.getSocketTimeout();
+                mFTPSClient.setConnectTimeout(timeout);
+                mFTPSClient.setDefaultTimeout(timeout);
+                mFTPSClient.setDataTimeout(timeout);
 
-        } catch (NoSuchElementException ignored) {
+                UploadTarget target = getTarget(configuration);
+                mFTPSClient.connect(target.getHost(), target.getPort());
+                // Set protection buffer size
+                mFTPSClient.execPBSZ(0);
+                // Set data channel protection to private
+                mFTPSClient.execPROT("P");
 
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage());
-            Log.e(TAG, mFilesToUpload.size() + " files to upload");
-        } finally {
-            disconnect();
-            Log.d(TAG, "Finished");
+                // Check if the connection was successful
+                int reply = mFTPSClient.getReplyCode();
+                if (!FTPReply.isPositiveCompletion(reply))
+                    throw new Exception("Exception in connecting to FTP Server");
+
+                // Check if login was successful
+                if (!mFTPSClient.login(target.getUsername(), target.getPassword()))
+                    throw new Exception("Could not login");
+
+                mFTPSClient.setControlKeepAliveTimeout(300); // 5min
+
+                // Make sure the root dir is there and learn which directories exist
+                String rootDir = RemoteDirectoryCache.normalize(target.getRootDir());
+                mDirectories = getRemoteDirectories(target.getHost() + ":" + target.getPort(), rootDir);
+                if (!changeWorkingDirectory(rootDir))
+                    throw new Exception("Could not change to remote root dir");
+                if (configuration.getPrimeDirectoryCache())
+                    primeRemoteDirectories(rootDir);
+                mVerification = chooseVerification();
+
+                mRootDir = rootDir;
+                mSessionTarget = target;
+                mConnectFailures = 0;
+                Metrics.CONNECTS.inc();
+                if (hadSession)
+                    Metrics.RECONNECTS.inc();
+                hadSession = true;
+                return true;
+            } catch (Exception e) {
+                Log.e(TAG, "Could not connect to %s: %s", mTarget.getName(), e.getMessage());
+                Metrics.CONNECT_FAILURES.inc();
+                mConnectFailures++;
+                disconnect();
+                return false;
+            }
         }
-    }
 
-    /**
-     * Function that checks and creates all the necessary folders for the remote path given
-     *
-     * @param remotePath where the file is going to be stored
-     * @return true if it remote dir exists/was created, false otherwise
-     * @throws IOException
-     */
-    private boolean checkAndCreateRemoteDirectories(String remotePath) throws IOException {
-        String[] pathTokens = remotePath.split("/");
-        String currentDir = ConfigurationManager.getInstance().getRootDir();
+        /**
+         * @return the best digest command the server supports, SIZE if it has none
+         */
+        private IntegrityCheck.Method chooseVerification() {
+            try {
+                IntegrityCheck.Method method = IntegrityCheck.choose(mFTPSClient);
+                Log.d(TAG, "Verifying uploads with %s.", method);
+                return method;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read the features of the server, verifying uploads with SIZE: " + e.getMessage());
+                return IntegrityCheck.Method.SIZE;
+            }
+        }
 
-        // Change to root dir
-        if(!mFTPSClient.changeWorkingDirectory(currentDir)) {
-            Log.e(TAG, "Could not change to remote root dir");
-            return false;
+        /**
+         * Sends a NOOP on an idle session so the server, and anything in between, does not drop it
+         */
+        private void keepAlive() {
+            if (mRootDir == null)
+                return;
+            if (isTargetChanged()) {
+                disconnect();
+            } else if (!isSessionAlive()) {
+                Log.e(TAG, "Session lost while idle.");
+                disconnect();
+            }
         }
 
-        // For loop cycles every sub path of the file path.
-        for(int i = 0; i < pathTokens.length - 1; i++) {
+        /**
+         * @return true if a session is open and the configuration now points it somewhere else
+         */
+        private boolean isTargetChanged() {
+            if (mRootDir == null || mSessionTarget.equals(getTarget()))
+                return false;
+            Log.d(TAG, "Target changed to %s, closing the session to %s.", getTarget(), mSessionTarget);
+            return true;
+        }
 
-            if(pathTokens[i].contains("/") || pathTokens[i].isEmpty())
-                continue;
+        /**
+         * @return true if the control connection still answers
+         */
+        private boolean isSessionAlive() {
+            try {
+                return mFTPSClient.isConnected() && mFTPSClient.sendNoOp();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Uploads a single file, unless it no longer exists or its content was already uploaded
+         *
+         * @param rootDir the remote root dir
+         * @param fileToSendInfo the file to upload
+         * @throws Exception if the file could not be uploaded
+         */
+        private void uploadFile(String rootDir, FileToSendInfo fileToSendInfo) throws Exception {
+            File file = fileToSendInfo.getFile();
+            // If the file no longer exists there is nothing to send
+            if (!file.exists())
+                return;
+
+            String relativePath = fileToSendInfo.getRelativePath();
+            long size = file.length();
+            long modified = file.lastModified();
+
+            if (isAlreadyUploaded(fileToSendInfo, size, modified))
+                return;
+
+            if (!checkAndCreateRemoteDirectories(rootDir, relativePath)) {
+                throw new Exception("Could not access or create folders for \"" + file + "\".");
+            }
 
-            // If the folder does not exist..
-            if(!mFTPSClient.changeWorkingDirectory(pathTokens[i])){
-                currentDir += "/" + pathTokens[i];
-                Log.d(TAG, "Creating directory '" + currentDir + "'.");
+            // Compressed files get a suffix on the server
+            UploadCompression.Codec codec = UploadCompression.choose(file, ConfigurationManager.getInstance().getCompression());
+            String remotePath = RemoteDirectoryCache.resolve(rootDir, relativePath) + codec.getSuffix();
+            mFTPSClient.setFileType(FTP.BINARY_FILE_TYPE);
 
-                // Create the folder
-                if(!mFTPSClient.makeDirectory(pathTokens[i])) {
-                        Log.e(TAG, "Could not make dir '" + currentDir + "'.");
-                    return false;
+            // A previous attempt sent part of this same version of the file, continue where the server stopped.
+            // Compressed transfers always start over, the compressed bytes depend on the codec settings.
+            long offset = 0;
+            if (codec == UploadCompression.Codec.NONE && fileToSendInfo.getTransferOffset() > 0
+                    && fileToSendInfo.getTransferModified() == modified) {
+                long remoteSize = getRemoteSize(remotePath);
+                if (remoteSize > 0 && remoteSize <= size)
+                    offset = remoteSize;
+            }
+            fileToSendInfo.setTransferProgress(offset, modified);
+
+            if (offset > 0)
+                Log.d(TAG, "Resuming at %d of %d bytes - %s", offset, size, file.getAbsolutePath());
+            else if (codec != UploadCompression.Codec.NONE)
+                Log.d(TAG, "Sending compressed - %s", file.getAbsolutePath());
+            else
+                Log.d(TAG, "Sending - %s", file.getAbsolutePath());
+
+            try (ContentHash.HashingInputStream hashingStream = new ContentHash.HashingInputStream(new FileInputStream(file))) {
+                // The digest is of the bytes as stored on the server, compressed or not. Skipping through
+                // both streams keeps the hash and the digest of the whole file, only uncompressed files are resumed.
+                IntegrityCheck.Method method = mVerification;
+                IntegrityCheck.DigestingInputStream digestStream = method.digest(codec.wrap(hashingStream));
+                if (digestStream.skip(offset) != offset)
+                    throw new Exception("Could not skip to " + offset + " in \"" + file + "\".");
+
+                // The offset is only worth saving for files sent as they are
+                CountingInputStream inputStream = new CountingInputStream(digestStream, offset, PROGRESS_INTERVAL,
+                        (codec != UploadCompression.Codec.NONE) ? null : count -> saveTransferProgress(fileToSendInfo, count, modified),
+                        mBytesSentCounter);
+                long start = System.nanoTime();
+                boolean isStored = storeFile(remotePath, inputStream, offset);
+                Metrics.STOR_TIME.recordSince(start);
+                if (isStored)
+                    mSendRate = average(mSendRate, size - offset, System.nanoTime() - start);
+                if (!isStored) {
+                    // The folder may have been removed on the server, check it again next time
+                    List<String> parents = RemoteDirectoryCache.parentDirectories(rootDir, relativePath);
+                    mDirectories.invalidate(parents.isEmpty() ? rootDir : parents.get(0));
+                    throw new Exception("Could not store file \"" + file + "\".");
+                }
+
+                // Never take a transfer as complete if the server does not have all the bytes
+                long sentSize = inputStream.getCount();
+                long remoteSize = getRemoteSize(remotePath);
+                if (remoteSize >= 0 && remoteSize != sentSize) {
+                    Metrics.VERIFICATION_FAILURES.inc();
+                    if (codec == UploadCompression.Codec.NONE)
+                        saveTransferProgress(fileToSendInfo, Math.min(remoteSize, size), modified);
+                    throw new Exception("Remote size of \"" + file + "\" is " + remoteSize + " instead of " + sentSize + ".");
                 }
+                if (remoteSize < 0 && offset > 0)
+                    throw new Exception("Could not check the size of resumed \"" + file + "\".");
 
-                // Enter the newly created folder
-                if(!mFTPSClient.changeWorkingDirectory(pathTokens[i])) {
-                    Log.e(TAG, "Could not change to newly created dir '" + currentDir + "'.");
-                    return false;
+                String digest = digestStream.getDigest();
+                String verifiedBy = verifyDigest(method, remotePath, digest, remoteSize);
+                if (verifiedBy == null) {
+                    // The bytes on the server are wrong, the retry must send the whole file again
+                    if (codec == UploadCompression.Codec.NONE)
+                        saveTransferProgress(fileToSendInfo, 0, modified);
+                    throw new Exception(method + " of \"" + file + "\" on the server does not match " + digest + ".");
                 }
+
+                mManifest.record(relativePath, size, modified, hashingStream.getHash());
+                mLedger.record(remotePath, sentSize, method.getAlgorithm(), digest, verifiedBy);
             }
+            Metrics.UPLOADS_COMPLETED.inc();
+            Metrics.UPLOAD_LATENCY.recordMillis(System.currentTimeMillis() - fileToSendInfo.getDateAddedToQueue());
         }
 
-        // Change back to root folder
-        if(!mFTPSClient.changeWorkingDirectory(ConfigurationManager.getInstance().getRootDir())) {
-            Log.d(TAG, "Could not change back to root dir");
+        /**
+         * @return true if this version of the file, or the same content, was already uploaded
+         * @throws IOException
+         */
+        private boolean isAlreadyUploaded(FileToSendInfo fileToSendInfo, long size, long modified) throws IOException {
+            File file = fileToSendInfo.getFile();
+            String relativePath = fileToSendInfo.getRelativePath();
+
+            // Queued more than once, an earlier copy of the request already sent it
+            if (mManifest.contains(relativePath, size, modified)) {
+                Metrics.UPLOADS_SKIPPED.inc();
+                return true;
+            }
+
+            // Only touched, or written again with the same bytes, no need to send it again. Hashing reads
+            // the whole file, which is read once more to send it if it did change, so it is only done
+            // when hashing is much faster than sending. Otherwise the hash is computed while sending.
+            long uploadedHash = mManifest.getContentHash(relativePath, size);
+            if (uploadedHash == 0 || !isPreHashWorthIt())
+                return false;
+            long start = System.nanoTime();
+            long hash = ContentHash.of(file);
+            mHashRate = average(mHashRate, size, System.nanoTime() - start);
+            if (uploadedHash == hash) {
+                Log.d(TAG, "Already uploaded - %s", file.getAbsolutePath());
+                mManifest.record(relativePath, size, modified, uploadedHash);
+                Metrics.UPLOADS_SKIPPED.inc();
+                return true;
+            }
             return false;
         }
 
-        return true;
-    }
+        /**
+         * @return true if hashing a file is at least twice as fast as sending it, or if either was not measured yet
+         */
+        private boolean isPreHashWorthIt() {
+            double sendRate = mSendRate;
+            double hashRate = mHashRate;
+            return sendRate == 0 || hashRate == 0 || hashRate >= 2 * sendRate;
+        }
 
-    /**
-     * Disconnects our FTPClient
-     */
-    private void disconnect() {
-        try {
-            mFTPSClient.disconnect();
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage());
+        /**
+         * Claims, along with a small file, the small files of the same directory queued right after
+         * it, so they can be sent as one archive. Files of a submission are queued together, so
+         * they come out of the queue one after the other.
+         *
+         * @param first the file already claimed
+         * @return the claimed files, only the first one if bundling is disabled or it is not small
+         */
+        private List<FileToSendInfo> claimBundle(FileToSendInfo first) {
+            List<FileToSendInfo> bundle = new ArrayList<>();
+            bundle.add(first);
+            ConfigurationSnapshot configuration = ConfigurationManager.getInstance().getSnapshot();
+            long threshold = configuration.getBundleThreshold();
+            long bytes = first.getFile().length();
+            if (threshold <= 0 || !isBundleable(first, bytes, threshold))
+                return bundle;
+
+            String directory = RemoteDirectoryCache.parent(first.getRelativePath());
+            synchronized (mJournal) {
+                FileToSendInfo next;
+                while (bundle.size() < configuration.getBundleMaxFiles() && (next = mFilesToUpload.poll()) != null) {
+                    long size = next.getFile().length();
+                    if (!directory.equals(RemoteDirectoryCache.parent(next.getRelativePath()))
+                            || mFilesInFlight.containsKey(next.getRelativePath())
+                            || !isBundleable(next, size, threshold) || bytes + size > configuration.getBundleMaxBytes()) {
+                        mFilesToUpload.requeue(next);
+                        break;
+                    }
+                    mFilesInFlight.put(next.getRelativePath(), next);
+                    mPolicy.onDequeue(next);
+                    bundle.add(next);
+                    bytes += size;
+                }
+            }
+            return bundle;
+        }
+
+        private boolean isBundleable(FileToSendInfo fileToSendInfo, long size, long threshold) {
+            return size < threshold && TarBundle.fits(RemoteDirectoryCache.name(fileToSendInfo.getRelativePath()));
+        }
+
+        /**
+         * Uploads several small files of one directory as a single tar archive, streamed over one
+         * data connection. Files that are gone or were already uploaded are left out; if a single
+         * file is left it is uploaded on its own.
+         *
+         * @param rootDir the remote root dir
+         * @param bundle files of the same directory
+         * @throws Exception if the archive could not be uploaded, none of the files is then taken as sent
+         */
+        private void uploadBundle(String rootDir, List<FileToSendInfo> bundle) throws Exception {
+            List<FileToSendInfo> files = new ArrayList<>(bundle.size());
+            List<TarBundle.Entry> entries = new ArrayList<>(bundle.size());
+            for (FileToSendInfo fileToSendInfo : bundle) {
+                File file = fileToSendInfo.getFile();
+                if (!file.exists())
+                    continue;
+                long size = file.length();
+                long modified = file.lastModified();
+                if (isAlreadyUploaded(fileToSendInfo, size, modified))
+                    continue;
+                fileToSendInfo.setTransferProgress(0, modified);
+                files.add(fileToSendInfo);
+                entries.add(new TarBundle.Entry(file, RemoteDirectoryCache.name(fileToSendInfo.getRelativePath()), size, modified));
+            }
+            if (files.size() <= 1) {
+                if (!files.isEmpty())
+                    uploadFile(rootDir, files.get(0));
+                return;
+            }
+
+            // Named after its first file so concurrent bundles of a directory do not collide
+            String directory = RemoteDirectoryCache.parent(files.get(0).getRelativePath());
+            String name = "bundle-" + files.get(0).getDateAddedToQueue() + "-" + files.get(0).getId() + ".tar";
+            String relativePath = directory.isEmpty() ? name : directory + "/" + name;
+            if (!checkAndCreateRemoteDirectories(rootDir, relativePath))
+                throw new Exception("Could not access or create folders for \"" + relativePath + "\".");
+
+            String remotePath = RemoteDirectoryCache.resolve(rootDir, relativePath);
+            mFTPSClient.setFileType(FTP.BINARY_FILE_TYPE);
+            Log.d(TAG, "Sending %d files as '%s'.", files.size(), relativePath);
+            try (TarBundle tar = new TarBundle(entries)) {
+                IntegrityCheck.Method method = mVerification;
+                IntegrityCheck.DigestingInputStream digestStream = method.digest(tar);
+                CountingInputStream inputStream = new CountingInputStream(digestStream, 0, PROGRESS_INTERVAL, null, mBytesSentCounter);
+                long start = System.nanoTime();
+                boolean isStored = storeFile(remotePath, inputStream, 0);
+                Metrics.STOR_TIME.recordSince(start);
+                if (!isStored) {
+                    List<String> parents = RemoteDirectoryCache.parentDirectories(rootDir, relativePath);
+                    mDirectories.invalidate(parents.isEmpty() ? rootDir : parents.get(0));
+                    throw new Exception("Could not store bundle \"" + relativePath + "\".");
+                }
+
+                long remoteSize = getRemoteSize(remotePath);
+                if (remoteSize >= 0 && remoteSize != inputStream.getCount()) {
+                    Metrics.VERIFICATION_FAILURES.inc();
+                    throw new Exception("Remote size of \"" + relativePath + "\" is " + remoteSize + " instead of " + inputStream.getCount() + ".");
+                }
+                String digest = digestStream.getDigest();
+                String verifiedBy = verifyDigest(method, remotePath, digest, remoteSize);
+                if (verifiedBy == null)
+                    throw new Exception(method + " of \"" + relativePath + "\" on the server does not match " + digest + ".");
+                mLedger.record(remotePath, inputStream.getCount(), method.getAlgorithm(), digest, verifiedBy);
+
+                // The files are only checked through the archive, their own CRC-32 is the one of the bundle manifest
+                for (int i = 0; i < files.size(); i++) {
+                    TarBundle.Entry entry = entries.get(i);
+                    FileToSendInfo fileToSendInfo = files.get(i);
+                    mManifest.record(fileToSendInfo.getRelativePath(), entry.getSize(), entry.getModified(), entry.getHash());
+                    mLedger.record(RemoteDirectoryCache.resolve(rootDir, fileToSendInfo.getRelativePath()), entry.getSize(), "CRC32",
+                            String.format("%08x", entry.getHash() >>> 32), verifiedBy + " of " + name);
+                }
+            }
+            Metrics.BUNDLES.inc();
+            long now = System.currentTimeMillis();
+            for (FileToSendInfo fileToSendInfo : files) {
+                Metrics.UPLOADS_COMPLETED.inc();
+                Metrics.UPLOAD_LATENCY.recordMillis(now - fileToSendInfo.getDateAddedToQueue());
+            }
+        }
+
+        /**
+         * Asks the server for the digest of an uploaded file. If the server turns out not to answer the
+         * command the session falls back to SIZE.
+         *
+         * @param method the method the digest was computed for
+         * @param remoteSize the size the server reported, -1 if it did not
+         * @return how the upload was verified, for the ledger, or null if the digest does not match
+         * @throws IOException
+         */
+        private String verifyDigest(IntegrityCheck.Method method, String remotePath, String digest, long remoteSize) throws IOException {
+            switch (IntegrityCheck.verify(mFTPSClient, method, remotePath, digest)) {
+                case MATCH:
+                    return method.toString();
+                case MISMATCH:
+                    Metrics.VERIFICATION_FAILURES.inc();
+                    return null;
+                default:
+                    if (method.isRemote()) {
+                        Log.e(TAG, "Server did not answer %s, verifying uploads with SIZE.", method);
+                        mVerification = IntegrityCheck.Method.SIZE;
+                    }
+                    return (remoteSize >= 0) ? "SIZE" : "unverified";
+            }
+        }
+
+        /**
+         * Stores a file, resuming at the given offset with REST+STOR, or with APPE if the server
+         * does not implement REST
+         *
+         * @param remotePath absolute remote path
+         * @param inputStream stream already positioned at the offset
+         * @param offset number of bytes the server already has
+         * @return true if the transfer was accepted by the server
+         * @throws IOException if the server refused REST for another reason than not supporting it
+         */
+        private boolean storeFile(String remotePath, InputStream inputStream, long offset) throws IOException {
+            mFTPSClient.enterLocalPassiveMode();
+            if (offset == 0)
+                return mFTPSClient.storeFile(remotePath, inputStream);
+
+            // Sent here rather than through setRestartOffset, so a refused REST is told apart from a failed STOR
+            int reply = mFTPSClient.sendCommand("REST", String.valueOf(offset));
+            if (reply == FTPReply.FILE_ACTION_PENDING)
+                return mFTPSClient.storeFile(remotePath, inputStream);
+            if (!FTPReply.isNegativePermanent(reply))
+                throw new IOException("REST " + offset + " failed: " + mFTPSClient.getReplyString().trim());
+
+            // Nothing was sent yet, the stream is still at the offset
+            Log.d(TAG, "Server refused REST, appending instead.");
+            return mFTPSClient.appendFile(remotePath, inputStream);
+        }
+
+        /**
+         * Asks the server the size of a file with the SIZE command
+         *
+         * @param remotePath absolute remote path
+         * @return the size or -1 if the file does not exist or the server does not support SIZE
+         * @throws IOException
+         */
+        private long getRemoteSize(String remotePath) throws IOException {
+            if (mFTPSClient.sendCommand("SIZE", remotePath) != FTPReply.FILE_STATUS)
+                return -1;
+            try {
+                return Long.parseLong(mFTPSClient.getReplyString().substring(4).trim());
+            } catch (RuntimeException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Saves how many bytes of the file were sent so a retry can continue from there
+         */
+        private void saveTransferProgress(FileToSendInfo fileToSendInfo, long offset, long modified) {
+            fileToSendInfo.setTransferProgress(offset, modified);
+            try {
+                mJournal.appendProgress(fileToSendInfo);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save progress: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Takes the next file from the queue and marks it as being uploaded
+         *
+         * @return the file to upload or null if the queue is empty
+         */
+        private FileToSendInfo claimNextFile() {
+            synchronized (mJournal) {
+                FileToSendInfo fileToSendInfo;
+                while ((fileToSendInfo = mFilesToUpload.poll()) != null) {
+                    String relativePath = fileToSendInfo.getRelativePath();
+                    if (!mFilesInFlight.containsKey(relativePath)) {
+                        mFilesInFlight.put(relativePath, fileToSendInfo);
+                        mPolicy.onDequeue(fileToSendInfo);
+                        return fileToSendInfo;
+                    }
+
+                    // Another worker is sending this path, keep only the newest request for after it
+                    FileToSendInfo older = mFilesDeferred.put(relativePath, fileToSendInfo);
+                    if (older != null) {
+                        try {
+                            mJournal.appendComplete(older);
+                        } catch (IOException e) {
+                            Log.e(TAG, "Could not update journal: " + e.getMessage());
+                        }
+                    }
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Function that checks and creates all the necessary folders for the remote path given.
+         * Directories already in the cache are skipped, so in the common case no command is sent.
+         *
+         * @param rootDir the remote root dir
+         * @param remotePath where the file is going to be stored, relative to the root dir
+         * @return true if it remote dir exists/was created, false otherwise
+         * @throws IOException
+         */
+        private boolean checkAndCreateRemoteDirectories(String rootDir, String remotePath) throws IOException {
+            for (String directory : RemoteDirectoryCache.parentDirectories(rootDir, remotePath)) {
+                if (mDirectories.contains(directory))
+                    continue;
+
+                // If the folder does not exist..
+                if (!changeWorkingDirectory(directory)) {
+                    Log.d(TAG, "Creating directory '%s'.", directory);
+
+                    // Create the folder, another worker may have just done it
+                    if (!makeDirectory(directory) && !changeWorkingDirectory(directory)) {
+                        Log.e(TAG, "Could not make dir '" + directory + "'.");
+                        mDirectories.invalidate(directory);
+                        return false;
+                    }
+                }
+                mDirectories.add(directory);
+            }
+            return true;
+        }
+
+        private boolean changeWorkingDirectory(String directory) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return mFTPSClient.changeWorkingDirectory(directory);
+            } finally {
+                Metrics.CWD_TIME.recordSince(start);
+            }
+        }
+
+        private boolean makeDirectory(String directory) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return mFTPSClient.makeDirectory(directory);
+            } finally {
+                Metrics.MKD_TIME.recordSince(start);
+            }
+        }
+
+        /**
+         * Fills the directory cache by listing the whole remote tree once
+         *
+         * @param rootDir the remote root dir
+         * @throws IOException
+         */
+        private void primeRemoteDirectories(String rootDir) throws IOException {
+            synchronized (mDirectories) {
+                if (mDirectories.isPrimed())
+                    return;
+
+                boolean useMLSD = mFTPSClient.hasFeature("MLST");
+                mFTPSClient.enterLocalPassiveMode();
+
+                Deque<String> toList = new ArrayDeque<>();
+                toList.add(rootDir);
+                while (!toList.isEmpty()) {
+                    String directory = toList.poll();
+                    FTPFile[] entries = useMLSD ? mFTPSClient.mlistDir(directory) : mFTPSClient.listDirectories(directory);
+                    if (entries == null)
+                        continue;
+                    for (FTPFile entry : entries) {
+                        String name = entry.getName();
+                        if (!entry.isDirectory() || name.equals(".") || name.equals(".."))
+                            continue;
+                        String child = RemoteDirectoryCache.resolve(directory, name);
+                        mDirectories.add(child);
+                        toList.add(child);
+                    }
+                }
+                mDirectories.setPrimed(true);
+            }
+        }
+
+        /**
+         * Disconnects our FTPClient
+         */
+        private void disconnect() {
+            mRootDir = null;
+            try {
+                mFTPSClient.disconnect();
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
+            }
         }
     }
 
     /**
-     * Wrapper class to have the file to send associated with a remote destination path
+     * Wrapper class to have the file to send associated with a remote destination path.
+     * Still Serializable so queues saved by older versions can be migrated.
      */
-    private class FileToSendInfo implements Comparable<FileToSendInfo>, Serializable {
+    public static class FileToSendInfo implements Comparable<FileToSendInfo>, Serializable {
 
         private static final long serialVersionUID = 120720151140L;
 
+        private transient long mId;
+
+        /**
+         * Bytes of the file already sent by a previous attempt, and the modification time the file had
+         */
+        private transient volatile long mTransferOffset;
+        private transient volatile long mTransferModified;
+
+        /**
+         * Failed upload attempts in this run
+         */
+        private transient int mAttempts;
+
+        /**
+         * Place in the queue, lowest first, and the id of the scheduling policy that assigned it
+         */
+        private transient long mPriority;
+        private transient byte mPolicyId = SchedulingPolicy.NONE;
         private File mFile;
         private String mRelativePath;
         private long mDateAddedToQueue;
 
         public FileToSendInfo(File file, String relativePath) {
+            this(file, relativePath, System.currentTimeMillis());
+        }
+
+        /**
+         * @param dateAddedToQueue when the file was detected, in milliseconds since the epoch
+         */
+        public FileToSendInfo(File file, String relativePath, long dateAddedToQueue) {
             mFile = file;
             mRelativePath = relativePath;
-            mDateAddedToQueue = System.currentTimeMillis();
+            mDateAddedToQueue = dateAddedToQueue;
+        }
+
+        FileToSendInfo(long id, File file, String relativePath, long dateAddedToQueue) {
+            this(file, relativePath, dateAddedToQueue);
+            mId = id;
         }
 
         @Override
         public int compareTo(FileToSendInfo other) {
-            return Long.compare(mDateAddedToQueue, other.mDateAddedToQueue);
+            int result = Long.compare(mPriority, other.mPriority);
+            if (result == 0)
+                result = Long.compare(mDateAddedToQueue, other.mDateAddedToQueue);
+            return (result != 0) ? result : Long.compare(mId, other.mId);
         }
 
         private void writeObject(ObjectOutputStream out) throws IOException {
@@ -283,9 +1294,29 @@ public class FTPManager implements Runnable {
             mDateAddedToQueue = in.readLong();
         }
 
+        public long getId() { return mId; }
         public File getFile() { return mFile; }
         public String getRelativePath() { return mRelativePath; }
+        public long getDateAddedToQueue() { return mDateAddedToQueue; }
+        long getTransferOffset() { return mTransferOffset; }
+        long getTransferModified() { return mTransferModified; }
+
+        long getPriority() { return mPriority; }
+        byte getPolicyId() { return mPolicyId; }
+
+        void setPriority(byte policyId, long priority) {
+            mPolicyId = policyId;
+            mPriority = priority;
+        }
+
+        int getAttempts() { return mAttempts; }
+        int incrementAttempts() { return ++mAttempts; }
+
+        void setTransferProgress(long offset, long modified) {
+            mTransferOffset = offset;
+            mTransferModified = modified;
+        }
 
     }
 
-}
\ No newline at end of file
+}
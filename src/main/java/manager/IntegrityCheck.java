@@ -0,0 +1,244 @@
+package manager;
+
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.FTPSClient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Checks that the server stored the bytes that were sent.
+ *
+ * The digest of the uploaded bytes is computed while they are sent, by a {@link DigestingInputStream}
+ * in the upload stream, so the file is read only once. After the transfer the server is asked for
+ * the digest of its copy, with the best command it announces in FEAT: HASH (with SHA-256, MD5 or
+ * CRC32), XMD5 or XCRC. Servers without any of them are only checked with SIZE.
+ *
+ * @author edgar
+ */
+final class IntegrityCheck {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private IntegrityCheck() { /* Empty */ }
+
+    /**
+     * How a session verifies its uploads, best first
+     */
+    enum Method {
+        HASH_SHA_256("SHA-256", "HASH"),
+        HASH_MD5("MD5", "HASH"),
+        XMD5("MD5", "XMD5"),
+        HASH_CRC32("CRC32", "HASH"),
+        XCRC("CRC32", "XCRC"),
+        SIZE("CRC32", null);
+
+        private final String mAlgorithm;
+        private final String mCommand;
+
+        Method(String algorithm, String command) {
+            mAlgorithm = algorithm;
+            mCommand = command;
+        }
+
+        /**
+         * @return name of the digest algorithm
+         */
+        String getAlgorithm() { return mAlgorithm; }
+
+        /**
+         * @return false if the server can only be asked for the size
+         */
+        boolean isRemote() { return mCommand != null; }
+
+        /**
+         * @return a stream that computes the digest of the bytes read through it
+         */
+        DigestingInputStream digest(InputStream in) {
+            return new DigestingInputStream(in, mAlgorithm);
+        }
+
+        @Override
+        public String toString() {
+            return (mCommand == null) ? "SIZE" : mCommand.equals("HASH") ? "HASH " + mAlgorithm : mCommand;
+        }
+    }
+
+    /**
+     * Result of asking the server for the digest of a file
+     */
+    enum Result {
+        MATCH,
+        MISMATCH,
+
+        /**
+         * The server refused the command or its reply has no digest
+         */
+        UNAVAILABLE
+    }
+
+    /**
+     * Picks the best verification the server announces, selecting the HASH algorithm for the session
+     *
+     * @param client a logged in session
+     * @return the method, SIZE if the server has no digest command
+     * @throws IOException
+     */
+    static Method choose(FTPSClient client) throws IOException {
+        if (client.hasFeature("HASH")) {
+            // e.g. "SHA-256;SHA-1;MD5*;CRC32", the current one is marked with a '*'
+            Set<String> algorithms = new HashSet<>();
+            String[] values = client.featureValues("HASH");
+            if (values != null) {
+                for (String value : values) {
+                    for (String algorithm : value.split(";"))
+                        algorithms.add(algorithm.replace("*", "").trim().toUpperCase(Locale.ROOT));
+                }
+            }
+            for (Method method : new Method[]{Method.HASH_SHA_256, Method.HASH_MD5, Method.HASH_CRC32}) {
+                if (algorithms.contains(method.mAlgorithm)
+                        && FTPReply.isPositiveCompletion(client.sendCommand("OPTS", "HASH " + method.mAlgorithm)))
+                    return method;
+            }
+        }
+        if (client.hasFeature("XMD5"))
+            return Method.XMD5;
+        if (client.hasFeature("XCRC"))
+            return Method.XCRC;
+        return Method.SIZE;
+    }
+
+    /**
+     * Asks the server for the digest of a file and compares it with the digest of what was sent
+     *
+     * @param remotePath absolute remote path
+     * @param digest hexadecimal digest of the sent bytes
+     * @throws IOException
+     */
+    static Result verify(FTPSClient client, Method method, String remotePath, String digest) throws IOException {
+        if (!method.isRemote())
+            return Result.UNAVAILABLE;
+        int reply = client.sendCommand(method.mCommand, remotePath);
+        if (!FTPReply.isPositiveCompletion(reply))
+            return Result.UNAVAILABLE;
+
+        String replyString = client.getReplyString();
+        String word = (replyString == null) ? null : digestWord(method, replyString);
+        if (word == null || !isHex(word))
+            return Result.UNAVAILABLE;
+
+        // Some servers drop the leading zeros of the CRC
+        if (method.mAlgorithm.equals("CRC32")) {
+            if (word.length() > 8)
+                return Result.UNAVAILABLE;
+            return (Long.parseLong(word, 16) == Long.parseLong(digest, 16)) ? Result.MATCH : Result.MISMATCH;
+        }
+        if (word.length() != digest.length())
+            return Result.UNAVAILABLE;
+        return word.equalsIgnoreCase(digest) ? Result.MATCH : Result.MISMATCH;
+    }
+
+    /**
+     * Finds the digest in the last line of a reply: "213 SHA-256 0-1234 a1b2... /path" for HASH,
+     * "250 A1B2C3D4" for XCRC and XMD5, which some servers follow with the path
+     *
+     * @return the digest, null if the reply is too short
+     */
+    static String digestWord(Method method, String replyString) {
+        String[] lines = replyString.trim().split("\\r?\\n");
+        String[] words = lines[lines.length - 1].trim().split("\\s+");
+        int position = method.mCommand.equals("HASH") ? 3 : 1;
+        return (words.length > position) ? words[position] : null;
+    }
+
+    private static boolean isHex(String word) {
+        if (word.isEmpty())
+            return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.digit(word.charAt(i), 16) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stream that computes a digest of the bytes as they are read, skipped bytes included
+     */
+    static class DigestingInputStream extends FilterInputStream {
+
+        private final MessageDigest mDigest;
+        private final CRC32 mCrc;
+
+        DigestingInputStream(InputStream in, String algorithm) {
+            super(in);
+            if (algorithm.equals("CRC32")) {
+                mDigest = null;
+                mCrc = new CRC32();
+            } else {
+                try {
+                    mDigest = MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    // Every JVM has SHA-256 and MD5
+                    throw new IllegalStateException(e);
+                }
+                mCrc = null;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                if (mCrc != null)
+                    mCrc.update(b, off, read);
+                else
+                    mDigest.update(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes are on the server too, they must be in the digest
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read == -1)
+                    break;
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * @return the digest of all the bytes read, in lowercase hexadecimal. Can only be called once.
+         */
+        String getDigest() {
+            if (mCrc != null)
+                return String.format("%08x", mCrc.getValue());
+            StringBuilder hex = new StringBuilder();
+            for (byte b : mDigest.digest())
+                hex.append(String.format("%02x", b & 0xff));
+            return hex.toString();
+        }
+    }
+}
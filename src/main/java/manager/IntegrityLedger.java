@@ -0,0 +1,57 @@
+package manager;
+
+import log.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Append-only record of every verified upload, kept for audits. One tab separated line per file:
+ * time in milliseconds, remote path, size on the server, digest algorithm, digest of the remote
+ * file and how it was verified, e.g. "HASH SHA-256", "XCRC" or "SIZE" when the server could only
+ * confirm the size.
+ *
+ * @author edgar
+ */
+final class IntegrityLedger {
+
+    private static final String TAG = IntegrityLedger.class.getSimpleName();
+
+    private final File mFile;
+    private Writer mWriter;
+
+    IntegrityLedger(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Appends a verified upload, the line is flushed before this returns
+     */
+    synchronized void record(String remotePath, long size, String algorithm, String digest, String verifiedBy) {
+        try {
+            if (mWriter == null)
+                mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFile, true), StandardCharsets.UTF_8));
+            mWriter.write(System.currentTimeMillis() + "\t" + remotePath + "\t" + size + "\t" + algorithm + "\t"
+                    + digest + "\t" + verifiedBy + System.lineSeparator());
+            mWriter.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write to '" + mFile + "': " + e.getMessage());
+        }
+    }
+
+    synchronized void close() {
+        if (mWriter == null)
+            return;
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+        mWriter = null;
+    }
+}
@@ -5,6 +5,7 @@ import log.Log;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
@@ -17,6 +18,45 @@ public class OnEventReceived {
     public static final String TAG = OnEventReceived.class.getSimpleName();
 
     public void execute(WatchEvent.Kind<Path> eventKind, Path filePath) {
-        Log.d(TAG, eventKind + " - " + filePath);
+        Log.d(TAG, "%s - %s", eventKind, filePath);
+    }
+
+    /**
+     * Called with all the events that were received together, for example all the events of one
+     * WatchKey. Override it to handle many files at once, by default calls
+     * {@link #execute(WatchEvent.Kind, Path)} for every event.
+     *
+     * @param events the events, in the order they were received
+     */
+    public void executeBatch(List<Event> events) {
+        for (Event event : events)
+            execute(event.getKind(), event.getPath());
+    }
+
+    /**
+     * A single file event
+     */
+    public static class Event {
+
+        private final WatchEvent.Kind<Path> mKind;
+        private final Path mPath;
+        private final long mTimestamp;
+
+        public Event(WatchEvent.Kind<Path> kind, Path path) {
+            this(kind, path, System.currentTimeMillis());
+        }
+
+        /**
+         * @param timestamp when the event was first seen, in milliseconds since the epoch
+         */
+        public Event(WatchEvent.Kind<Path> kind, Path path, long timestamp) {
+            mKind = kind;
+            mPath = path;
+            mTimestamp = timestamp;
+        }
+
+        public WatchEvent.Kind<Path> getKind() { return mKind; }
+        public Path getPath() { return mPath; }
+        public long getTimestamp() { return mTimestamp; }
     }
 }
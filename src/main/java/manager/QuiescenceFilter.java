@@ -0,0 +1,268 @@
+package manager;
+
+import log.Log;
+import metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Event delegate that holds file events back until the file stopped being written.
+ *
+ * Create and modify events of a file are merged into one pending entry. The entry is checked once
+ * the file had no events for the stability window and, if its size and modification time did not
+ * change since they were last seen, a single {@link java.nio.file.StandardWatchEventKinds#ENTRY_CREATE}
+ * is passed to the wrapped delegate. All pending files share one {@link DelayQueue} and one thread.
+ *
+ * @author edgar
+ */
+public class QuiescenceFilter extends OnEventReceived {
+
+    public static final String TAG = QuiescenceFilter.class.getSimpleName();
+
+    /**
+     * Stability window used when none is configured
+     */
+    public static final long DEFAULT_WINDOW_MS = 2000;
+
+    private final OnEventReceived mDelegate;
+    private final long mWindowNanos;
+
+    private final Map<Path, PendingFile> mPending = new ConcurrentHashMap<>();
+    private final DelayQueue<PendingFile> mTimers = new DelayQueue<>();
+
+    /**
+     * @param delegate where the stable files are sent to
+     * @param windowMs how long a file must stay untouched before it is considered complete
+     */
+    public QuiescenceFilter(OnEventReceived delegate, long windowMs) {
+        mDelegate = delegate;
+        mWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        Metrics.gauge("files_pending_stability", "Files waiting to stop changing before they are queued", mPending::size);
+
+        Thread thread = new Thread(this::processTimers, TAG + " Thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void execute(WatchEvent.Kind<Path> eventKind, Path filePath) {
+        List<Event> events = new ArrayList<>(1);
+        events.add(new Event(eventKind, filePath));
+        executeBatch(events);
+    }
+
+    @Override
+    public void executeBatch(List<Event> events) {
+        List<Event> passThrough = null;
+        long now = System.nanoTime();
+
+        for (Event event : events) {
+            if (track(event, now))
+                continue;
+
+            if (passThrough == null)
+                passThrough = new ArrayList<>();
+            passThrough.add(event);
+        }
+
+        if (passThrough != null)
+            mDelegate.executeBatch(passThrough);
+    }
+
+    /**
+     * Starts or extends the wait of the file of the event
+     *
+     * @return false if the event is not held back and must be passed on right away
+     */
+    private boolean track(Event event, long now) {
+        WatchEvent.Kind<Path> eventKind = event.getKind();
+        Path filePath = event.getPath();
+        if (eventKind != ENTRY_CREATE && eventKind != ENTRY_MODIFY)
+            return false;
+
+        // Folders are not written to, pass their creation on right away
+        if (Files.isDirectory(filePath, LinkOption.NOFOLLOW_LINKS))
+            return eventKind != ENTRY_CREATE;
+
+        // The last event is set under the lock of the entry so it cannot be lost to a concurrent release
+        while (mPending.computeIfPresent(filePath, (path, pending) -> pending.touch(now)) == null) {
+            PendingFile pending = new PendingFile(filePath, now, event.getTimestamp());
+            if (!pending.refresh())
+                return true;
+            if (mPending.putIfAbsent(filePath, pending) == null) {
+                pending.mDeadline = now + mWindowNanos;
+                mTimers.add(pending);
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of files waiting to become stable
+     */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Loop that checks the files whose window expired. All the files that expire together are
+     * passed to the delegate in one batch.
+     */
+    private void processTimers() {
+        List<PendingFile> expired = new ArrayList<>();
+        List<Event> stable = new ArrayList<>();
+        while (!Thread.interrupted()) {
+            try {
+                expired.add(mTimers.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            mTimers.drainTo(expired);
+
+            long now = System.nanoTime();
+            for (PendingFile pending : expired) {
+                if (isStable(pending, now))
+                    stable.add(new Event(ENTRY_CREATE, pending.mPath, pending.mFirstSeen));
+            }
+            expired.clear();
+
+            if (stable.isEmpty())
+                continue;
+            try {
+                mDelegate.executeBatch(new ArrayList<>(stable));
+            } catch (Exception e) {
+                Log.e(TAG, "Delegate failed for " + stable.size() + " files: " + e.getMessage());
+            }
+            stable.clear();
+        }
+    }
+
+    /**
+     * Checks an expired file, rescheduling it if it is still changing
+     *
+     * @return true if the file is stable and was removed from the pending files
+     */
+    private boolean isStable(PendingFile pending, long now) {
+        // There were events since this timer was set, wait a full window after the last one
+        long quietUntil = pending.mLastEvent + mWindowNanos;
+        if (quietUntil - now > 0) {
+            reschedule(pending, quietUntil);
+            return false;
+        }
+
+        // File was deleted before it became stable
+        long size = pending.mSize;
+        long modified = pending.mModified;
+        if (!pending.refresh()) {
+            release(pending, now);
+            return false;
+        }
+
+        // File still changing even without events, check again later
+        if (size != pending.mSize || modified != pending.mModified) {
+            reschedule(pending, now + mWindowNanos);
+            return false;
+        }
+
+        return release(pending, now);
+    }
+
+    /**
+     * Removes a file from the pending files, unless an event arrived since the file was checked, in
+     * which case it is rescheduled. Done atomically with the update of the last event in track().
+     *
+     * @return true if the file was removed
+     */
+    private boolean release(PendingFile pending, long now) {
+        boolean[] released = new boolean[1];
+        PendingFile current = mPending.computeIfPresent(pending.mPath, (path, entry) -> {
+            if (entry != pending || entry.mLastEvent + mWindowNanos - now > 0)
+                return entry;
+            released[0] = true;
+            return null;
+        });
+        if (current == pending)
+            reschedule(pending, pending.mLastEvent + mWindowNanos);
+        return released[0];
+    }
+
+    private void reschedule(PendingFile pending, long deadline) {
+        pending.mDeadline = deadline;
+        mTimers.add(pending);
+    }
+
+    /**
+     * A file waiting to be stable. The deadline is only changed while the entry is out of the queue.
+     */
+    private static class PendingFile implements Delayed {
+
+        private final Path mPath;
+        private final long mFirstSeen;
+        private volatile long mLastEvent;
+        private long mDeadline;
+        private long mSize = -1;
+        private long mModified = -1;
+
+        PendingFile(Path path, long firstEvent, long firstSeen) {
+            mPath = path;
+            mLastEvent = firstEvent;
+            mFirstSeen = firstSeen;
+        }
+
+        /**
+         * Records an event of the file
+         *
+         * @return this entry
+         */
+        PendingFile touch(long now) {
+            mLastEvent = now;
+            return this;
+        }
+
+        /**
+         * Reads the current size and modification time of the file
+         *
+         * @return false if the file no longer exists
+         */
+        boolean refresh() {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(mPath, BasicFileAttributes.class);
+                mSize = attributes.size();
+                mModified = attributes.lastModifiedTime().toMillis();
+                return true;
+            } catch (NoSuchFileException e) {
+                return false;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read '" + mPath + "': " + e.getMessage());
+                return false;
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(mDeadline, ((PendingFile) other).mDeadline);
+        }
+    }
+}
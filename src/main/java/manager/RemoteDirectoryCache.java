@@ -0,0 +1,135 @@
+package manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client side cache of the remote directories that are known to exist.
+ *
+ * Directories are stored as absolute remote paths without a trailing slash. A cache belongs to one
+ * server and remote root, and is shared by all the upload sessions to them, so a directory checked
+ * or created by one of them is not checked again by the others.
+ *
+ * @author edgar
+ */
+class RemoteDirectoryCache {
+
+    private final Set<String> mDirectories = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether the cache was already filled with a listing of the remote tree
+     */
+    private volatile boolean isPrimed;
+
+    /**
+     * Server and remote root the cached directories belong to
+     */
+    private final String mServer;
+    private final String mRootDir;
+
+    /**
+     * @param server the host and port of the server
+     * @param rootDir the remote root directory
+     */
+    RemoteDirectoryCache(String server, String rootDir) {
+        mServer = server;
+        mRootDir = rootDir;
+    }
+
+    boolean contains(String directory) {
+        return mDirectories.contains(directory);
+    }
+
+    void add(String directory) {
+        mDirectories.add(directory);
+    }
+
+    /**
+     * Forgets a directory and everything under it, used when an operation on it failed
+     *
+     * @param directory the absolute remote directory
+     */
+    void invalidate(String directory) {
+        final String prefix = directory + "/";
+        mDirectories.remove(directory);
+        mDirectories.removeIf(cached -> cached.startsWith(prefix));
+    }
+
+    /**
+     * @return true if the cache holds the directories of this server and remote root
+     */
+    boolean isFor(String server, String rootDir) {
+        return mServer.equals(server) && mRootDir.equals(rootDir);
+    }
+
+    boolean isPrimed() { return isPrimed; }
+    void setPrimed(boolean primed) { isPrimed = primed; }
+
+    /**
+     * Joins the remote root dir with a path relative to it
+     *
+     * @param rootDir the remote root directory
+     * @param relativePath path relative to the root, using '/' as separator
+     * @return the absolute remote path
+     */
+    static String resolve(String rootDir, String relativePath) {
+        String root = normalize(rootDir);
+        return root.endsWith("/") ? root + relativePath : root + "/" + relativePath;
+    }
+
+    /**
+     * Lists every directory that must exist before the given file can be stored, from the
+     * outermost to the innermost. The root dir itself is not included.
+     *
+     * @param rootDir the remote root directory
+     * @param relativePath path of the file relative to the root, using '/' as separator
+     * @return the absolute remote directories
+     */
+    static List<String> parentDirectories(String rootDir, String relativePath) {
+        List<String> directories = new ArrayList<>();
+        StringBuilder current = new StringBuilder(normalize(rootDir));
+
+        int start = 0;
+        int end;
+        while ((end = relativePath.indexOf('/', start)) != -1) {
+            // Skip empty segments caused by repeated separators
+            if (end > start) {
+                if (current.length() == 0 || current.charAt(current.length() - 1) != '/')
+                    current.append('/');
+                current.append(relativePath, start, end);
+                directories.add(current.toString());
+            }
+            start = end + 1;
+        }
+        return directories;
+    }
+
+    /**
+     * @param relativePath path relative to the root, using '/' as separator
+     * @return the directory part of the path, empty for a file in the root
+     */
+    static String parent(String relativePath) {
+        int slash = relativePath.lastIndexOf('/');
+        return (slash < 0) ? "" : relativePath.substring(0, slash);
+    }
+
+    /**
+     * @param relativePath path relative to the root, using '/' as separator
+     * @return the last segment of the path
+     */
+    static String name(String relativePath) {
+        return relativePath.substring(relativePath.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @return the directory without trailing slashes, except for the filesystem root
+     */
+    static String normalize(String directory) {
+        int end = directory.length();
+        while (end > 1 && directory.charAt(end - 1) == '/')
+            end--;
+        return directory.substring(0, end);
+    }
+}
@@ -0,0 +1,138 @@
+package manager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Singleton that sends every file to all the configured {@link UploadTarget}s.
+ *
+ * Each target has its own {@link FTPManager}, so each has its own journal, queue, manifest and
+ * workers and the uploads to all of them run in parallel. Queueing a file only appends it to the
+ * local journal of every target, so a target that is slow or unreachable only grows its own queue.
+ * With a single target its state is kept in the working directory, as it always was; with several,
+ * each target keeps it in a sub-directory named after it.
+ *
+ * @author edgar
+ */
+public class ReplicationManager {
+
+    /**
+     * Instance of our ReplicationManager to be returned on {@link #getInstance()}
+     */
+    private static ReplicationManager mInstance;
+
+    /**
+     * Function to return a single instance of ReplicationManager
+     *
+     * @return The singleton instance of ReplicationManager
+     */
+    public static synchronized ReplicationManager getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Initializes the ReplicationManager Singleton, with one FTPManager per configured target
+     */
+    public static synchronized void init() {
+        mInstance = new ReplicationManager(new File(System.getProperty("user.dir")), ConfigurationManager.getInstance().getTargets());
+        mInstance.startThread();
+    }
+
+    private final List<FTPManager> mManagers;
+
+    /**
+     * @param directory where the state of the targets is kept
+     * @param targets the servers every file is sent to
+     */
+    ReplicationManager(File directory, List<UploadTarget> targets) {
+        List<FTPManager> managers = new ArrayList<>(targets.size());
+        for (UploadTarget target : targets) {
+            File targetDirectory = (targets.size() == 1) ? directory : new File(directory, target.getName());
+            managers.add(new FTPManager(targetDirectory, target));
+        }
+        mManagers = Collections.unmodifiableList(managers);
+    }
+
+    /**
+     * @return the manager of every target
+     */
+    public List<FTPManager> getManagers() {
+        return mManagers;
+    }
+
+    /**
+     * Send a file to every target as soon as possible
+     *
+     * @param file The file to send
+     * @param remote The remote path relative to the remote root dir
+     */
+    public void sendFile(File file, String remote) {
+        for (FTPManager manager : mManagers)
+            manager.sendFile(file, remote);
+    }
+
+    /**
+     * Send several files to every target as soon as possible. Each target gets its own copy of
+     * the files, since their place in the queue and their upload progress are kept per target.
+     *
+     * @param files The files to send
+     */
+    public void sendFiles(Collection<FTPManager.FileToSendInfo> files) {
+        if (files.isEmpty())
+            return;
+
+        for (int i = 0; i < mManagers.size(); i++) {
+            if (i == mManagers.size() - 1) {
+                mManagers.get(i).sendFiles(files);
+                break;
+            }
+            List<FTPManager.FileToSendInfo> copies = new ArrayList<>(files.size());
+            for (FTPManager.FileToSendInfo fileToSendInfo : files)
+                copies.add(new FTPManager.FileToSendInfo(fileToSendInfo.getFile(), fileToSendInfo.getRelativePath(),
+                        fileToSendInfo.getDateAddedToQueue()));
+            mManagers.get(i).sendFiles(copies);
+        }
+    }
+
+    /**
+     * @return true if the file was uploaded to every target with its current size and modification time
+     */
+    public boolean isUploaded(File file, String remote) {
+        for (FTPManager manager : mManagers) {
+            if (!manager.isUploaded(file, remote))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if no target has a record of any upload yet, e.g. on the first run. A target
+     * added later has no history of its own, the files it misses are found by {@link #isUploaded}.
+     */
+    public boolean hasUploadHistory() {
+        for (FTPManager manager : mManagers) {
+            if (manager.hasUploadHistory())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a file as uploaded to every target without sending it
+     */
+    public void markUploaded(File file, String remote) {
+        for (FTPManager manager : mManagers)
+            manager.markUploaded(file, remote);
+    }
+
+    /**
+     * Starts the upload workers of every target that are not running
+     */
+    public void startThread() {
+        for (FTPManager manager : mManagers)
+            manager.startThread();
+    }
+}
@@ -0,0 +1,189 @@
+package manager;
+
+import log.Log;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides the order in which queued files are uploaded.
+ *
+ * The policy gives every file a priority key when it is queued, and the queue uploads the lowest
+ * key first. Keys are persisted in the journal with the id of the policy that assigned them, so
+ * the order survives restarts; files queued under another policy get a new key when replayed.
+ * All the methods are called with the queue lock held.
+ *
+ * @author edgar
+ */
+abstract class SchedulingPolicy {
+
+    private static final String TAG = SchedulingPolicy.class.getSimpleName();
+
+    /**
+     * Policy id of the files that were not given a key yet
+     */
+    static final byte NONE = -1;
+
+    static final byte FIFO_ID = 0;
+    static final byte SHORTEST_FIRST_ID = 1;
+    static final byte FAIR_ID = 2;
+
+    /**
+     * @return id persisted with the keys this policy assigns
+     */
+    abstract byte getId();
+
+    /**
+     * @return the key of a newly queued file, lowest is uploaded first
+     */
+    abstract long assign(FTPManager.FileToSendInfo fileToSendInfo);
+
+    /**
+     * Called for the files replayed from the journal with a key assigned by this policy
+     */
+    void restore(FTPManager.FileToSendInfo fileToSendInfo) { /* Stateless by default */ }
+
+    /**
+     * Called when a file is taken from the queue to be uploaded
+     */
+    void onDequeue(FTPManager.FileToSendInfo fileToSendInfo) { /* Stateless by default */ }
+
+    /**
+     * Creates the policy named by the 'scheduling' option: fifo, shortest-first or fair
+     *
+     * @param name the name of the policy, FIFO if null or unknown
+     * @param agingBytesPerSecond how fast a waiting file catches up with smaller ones, for shortest-first
+     * @param weights 'team:weight' pairs separated by commas, for fair
+     */
+    static SchedulingPolicy create(String name, long agingBytesPerSecond, String weights) {
+        if (name == null)
+            return new Fifo();
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "shortest-first":
+                return new ShortestFirst(agingBytesPerSecond);
+            case "fair":
+                return new Fair(parseWeights(weights));
+            default:
+                return new Fifo();
+        }
+    }
+
+    /**
+     * @return the top-level directory of the path under the watched root, empty for files in the root itself
+     */
+    static String team(String relativePath) {
+        for (int i = 0; i < relativePath.length(); i++) {
+            char c = relativePath.charAt(i);
+            if (c == '/' || c == '\\')
+                return relativePath.substring(0, i);
+        }
+        return "";
+    }
+
+    private static Map<String, Integer> parseWeights(String weights) {
+        Map<String, Integer> result = new HashMap<>();
+        if (weights == null)
+            return result;
+        for (String pair : weights.split(",")) {
+            int colon = pair.lastIndexOf(':');
+            if (colon <= 0)
+                continue;
+            try {
+                result.put(pair.substring(0, colon).trim(), Math.max(1, Integer.parseInt(pair.substring(colon + 1).trim())));
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Invalid weight '" + pair + "'.");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Files are uploaded in the order they were detected
+     */
+    static class Fifo extends SchedulingPolicy {
+
+        @Override
+        byte getId() { return FIFO_ID; }
+
+        @Override
+        long assign(FTPManager.FileToSendInfo fileToSendInfo) {
+            return fileToSendInfo.getDateAddedToQueue();
+        }
+    }
+
+    /**
+     * Smaller files go first. The key is the detection time plus the time the file would take to
+     * send at the aging rate, so a large file is delayed by an amount bounded by its size and is
+     * eventually ahead of every file detected after that delay: it can't starve.
+     */
+    static class ShortestFirst extends SchedulingPolicy {
+
+        private final long mAgingBytesPerSecond;
+
+        ShortestFirst(long agingBytesPerSecond) {
+            mAgingBytesPerSecond = Math.max(1, agingBytesPerSecond);
+        }
+
+        @Override
+        byte getId() { return SHORTEST_FIRST_ID; }
+
+        @Override
+        long assign(FTPManager.FileToSendInfo fileToSendInfo) {
+            long size = fileToSendInfo.getFile().length();
+            return fileToSendInfo.getDateAddedToQueue() + size / mAgingBytesPerSecond * 1000
+                    + size % mAgingBytesPerSecond * 1000 / mAgingBytesPerSecond;
+        }
+    }
+
+    /**
+     * Weighted fair queueing between the top-level directories (teams). Each file gets a virtual
+     * finish time: the later of the current virtual time and the finish time of the previous file
+     * of its team, plus its size divided by the weight of the team. The virtual time follows the
+     * files as they are dequeued (self-clocked fair queueing), so a team that was idle starts
+     * from now instead of from its old credit, and one team's large files only delay that team.
+     */
+    static class Fair extends SchedulingPolicy {
+
+        /**
+         * Cost of a file whatever its size, so a team can't flood the queue with tiny files
+         */
+        private static final long MIN_COST = 64 * 1024;
+
+        private final Map<String, Integer> mWeights;
+        private final Map<String, Long> mLastFinish = new HashMap<>();
+        private long mVirtualTime;
+        private boolean isRestored;
+
+        Fair(Map<String, Integer> weights) {
+            mWeights = weights;
+        }
+
+        @Override
+        byte getId() { return FAIR_ID; }
+
+        @Override
+        long assign(FTPManager.FileToSendInfo fileToSendInfo) {
+            String team = team(fileToSendInfo.getRelativePath());
+            long cost = Math.max(MIN_COST, fileToSendInfo.getFile().length()) / mWeights.getOrDefault(team, 1);
+            Long lastFinish = mLastFinish.get(team);
+            long finish = Math.max(mVirtualTime, (lastFinish != null) ? lastFinish : 0) + cost;
+            mLastFinish.put(team, finish);
+            return finish;
+        }
+
+        @Override
+        void restore(FTPManager.FileToSendInfo fileToSendInfo) {
+            long finish = fileToSendInfo.getPriority();
+            mLastFinish.merge(team(fileToSendInfo.getRelativePath()), finish, Math::max);
+            // Start from the first replayed file, as if it was about to be dequeued
+            mVirtualTime = isRestored ? Math.min(mVirtualTime, finish) : finish;
+            isRestored = true;
+        }
+
+        @Override
+        void onDequeue(FTPManager.FileToSendInfo fileToSendInfo) {
+            mVirtualTime = Math.max(mVirtualTime, fileToSendInfo.getPriority());
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package manager;
+
+import log.Log;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.PriorityQueue;
+
+/**
+ * Upload queue that keeps a bounded head in memory and spills everything behind it to disk.
+ *
+ * While the head has room and nothing is spilled, files go to memory. Once it is full, new files are
+ * appended to segment files on disk, written with a compact field by field encoding. Files are read
+ * back, oldest segment first, whenever the head drops to half its capacity, and a segment is deleted
+ * once it was fully read. Memory use does not depend on the backlog. With the FIFO policy spilled
+ * files are always newer than the ones in the head, so the upload order is the same as with a single
+ * in-memory queue; with the other {@link SchedulingPolicy policies} the priority order only applies
+ * to the files in memory, spilled files come back in the order they were queued.
+ *
+ * The segments are only a memory extension: the queue is persisted by the {@link UploadJournal},
+ * so leftover segments are deleted on startup.
+ *
+ * @author edgar
+ */
+class SpillingUploadQueue {
+
+    private static final String TAG = SpillingUploadQueue.class.getSimpleName();
+
+    /**
+     * Number of files written to each segment before starting a new one
+     */
+    private static final int FILES_PER_SEGMENT = 64 * 1024;
+
+    private final File mDirectory;
+    private final int mMemoryCapacity;
+    private final PriorityQueue<FTPManager.FileToSendInfo> mHead = new PriorityQueue<>();
+
+    /**
+     * Segment files, oldest first. The last one is being written to while mWriter is open.
+     */
+    private final Deque<File> mSegments = new ArrayDeque<>();
+    private DataOutputStream mWriter;
+    private int mWriterCount;
+
+    /**
+     * Reader of the oldest segment, and how many files were already read from it
+     */
+    private DataInputStream mReader;
+    private int mReaderCount;
+
+    private long mSpilledCount;
+    private int mNextSegment;
+
+    /**
+     * @param directory where the segments are written
+     * @param memoryCapacity how many files are kept in memory
+     */
+    SpillingUploadQueue(File directory, int memoryCapacity) {
+        mDirectory = directory;
+        mMemoryCapacity = Math.max(2, memoryCapacity);
+
+        // Leftovers of a previous run, the journal has all of them
+        File[] leftovers = directory.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (!leftover.delete())
+                    Log.e(TAG, "Could not delete '" + leftover + "'.");
+            }
+        }
+        if (!directory.isDirectory() && !directory.mkdirs())
+            Log.e(TAG, "Could not create '" + directory + "'.");
+    }
+
+    /**
+     * Adds a file at the end of the queue
+     */
+    synchronized void add(FTPManager.FileToSendInfo fileToSendInfo) {
+        if (mSpilledCount == 0 && mHead.size() < mMemoryCapacity) {
+            mHead.add(fileToSendInfo);
+            return;
+        }
+
+        try {
+            spill(fileToSendInfo);
+        } catch (IOException e) {
+            // Better to use memory than to lose the file
+            Log.e(TAG, "Could not spill to disk: " + e.getMessage());
+            mHead.add(fileToSendInfo);
+        }
+    }
+
+    /**
+     * Gives back a file that was taken from the queue, it keeps its place ahead of the spilled files
+     */
+    synchronized void requeue(FTPManager.FileToSendInfo fileToSendInfo) {
+        mHead.add(fileToSendInfo);
+    }
+
+    /**
+     * @return the first file of the queue, or null if it is empty
+     */
+    synchronized FTPManager.FileToSendInfo poll() {
+        if (mSpilledCount > 0 && mHead.size() <= mMemoryCapacity / 2) {
+            try {
+                refill();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read spilled files: " + e.getMessage());
+            }
+        }
+        return mHead.poll();
+    }
+
+    synchronized long size() {
+        return mHead.size() + mSpilledCount;
+    }
+
+    synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private void spill(FTPManager.FileToSendInfo fileToSendInfo) throws IOException {
+        if (mWriter == null || mWriterCount >= FILES_PER_SEGMENT) {
+            closeWriter();
+            File segment = new File(mDirectory, "segment-" + (mNextSegment++) + ".dat");
+            mWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment)));
+            mWriterCount = 0;
+            mSegments.add(segment);
+        }
+        write(mWriter, fileToSendInfo);
+        mWriterCount++;
+        mSpilledCount++;
+    }
+
+    /**
+     * Moves spilled files into the head until it is full or nothing is left on disk
+     */
+    private void refill() throws IOException {
+        while (mHead.size() < mMemoryCapacity && mSpilledCount > 0) {
+            if (mReader == null) {
+                // Can't read the segment that is still being written
+                if (mSegments.size() == 1)
+                    closeWriter();
+                mReader = new DataInputStream(new BufferedInputStream(new FileInputStream(mSegments.peekFirst())));
+                mReaderCount = 0;
+            }
+
+            FTPManager.FileToSendInfo fileToSendInfo = read(mReader);
+            if (fileToSendInfo == null) {
+                // Segment fully read
+                mReader.close();
+                mReader = null;
+                File segment = mSegments.pollFirst();
+                if (!segment.delete())
+                    Log.e(TAG, "Could not delete '" + segment + "'.");
+                continue;
+            }
+            mReaderCount++;
+            mSpilledCount--;
+            mHead.add(fileToSendInfo);
+        }
+
+        // Don't leave an empty segment behind
+        if (mSpilledCount == 0 && mReader != null) {
+            mReader.close();
+            mReader = null;
+            closeWriter();
+            for (File segment : mSegments) {
+                if (!segment.delete())
+                    Log.e(TAG, "Could not delete '" + segment + "'.");
+            }
+            mSegments.clear();
+        }
+    }
+
+    private void closeWriter() throws IOException {
+        if (mWriter != null) {
+            mWriter.close();
+            mWriter = null;
+        }
+    }
+
+    private static void write(DataOutputStream out, FTPManager.FileToSendInfo fileToSendInfo) throws IOException {
+        out.writeLong(fileToSendInfo.getId());
+        out.writeLong(fileToSendInfo.getDateAddedToQueue());
+        out.writeUTF(fileToSendInfo.getFile().getPath());
+        out.writeUTF(fileToSendInfo.getRelativePath());
+        out.writeLong(fileToSendInfo.getTransferOffset());
+        out.writeLong(fileToSendInfo.getTransferModified());
+        out.writeByte(fileToSendInfo.getPolicyId());
+        out.writeLong(fileToSendInfo.getPriority());
+    }
+
+    /**
+     * @return the next file of the segment, or null at its end
+     */
+    private static FTPManager.FileToSendInfo read(DataInputStream in) throws IOException {
+        long id;
+        try {
+            id = in.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+        long dateAdded = in.readLong();
+        File file = new File(in.readUTF());
+        String relativePath = in.readUTF();
+        FTPManager.FileToSendInfo fileToSendInfo = new FTPManager.FileToSendInfo(id, file, relativePath, dateAdded);
+        fileToSendInfo.setTransferProgress(in.readLong(), in.readLong());
+        fileToSendInfo.setPriority(in.readByte(), in.readLong());
+        return fileToSendInfo;
+    }
+}
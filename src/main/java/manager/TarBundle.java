@@ -0,0 +1,254 @@
+package manager;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A tar archive of several small files, produced while it is read so it can be given to a single
+ * STOR without ever being written locally.
+ *
+ * The archive is in ustar format, which any tar can unpack. Its last entry, {@link #MANIFEST_NAME},
+ * lists every file with its size, modification time and the CRC-32 and Adler-32 of its content, so
+ * the far side can check the bundle before unpacking it. The checksums are computed while the
+ * files are read; the manifest is built once all of them were.
+ *
+ * @author edgar
+ */
+final class TarBundle extends InputStream {
+
+    /**
+     * Name of the manifest entry
+     */
+    static final String MANIFEST_NAME = ".bundle-manifest";
+
+    /**
+     * Longest entry name, in UTF-8 bytes, that fits in a ustar header without a prefix
+     */
+    static final int MAX_NAME_LENGTH = 100;
+
+    private static final int BLOCK_SIZE = 512;
+
+    /**
+     * A file of the bundle. Its size is fixed when it is queued: if the file is shorter once read
+     * the bundle fails, if it grew only that many bytes are sent.
+     */
+    static class Entry {
+
+        private final File mFile;
+        private final String mName;
+        private final long mSize;
+        private final long mModified;
+        private ContentHash.HashingInputStream mStream;
+
+        /**
+         * @param name name inside the archive, at most {@link #MAX_NAME_LENGTH} bytes
+         */
+        Entry(File file, String name, long size, long modified) {
+            mFile = file;
+            mName = name;
+            mSize = size;
+            mModified = modified;
+        }
+
+        long getSize() { return mSize; }
+        long getModified() { return mModified; }
+
+        /**
+         * @return the content hash of the file, once the bundle was read past it
+         */
+        long getHash() { return mStream.getHash(); }
+    }
+
+    private final List<Entry> mEntries;
+
+    /**
+     * Index of the next part: a header, the data and the padding of every entry, then the same for
+     * the manifest, then the end of archive
+     */
+    private int mNextPart;
+    private InputStream mPart;
+    private boolean isClosed;
+
+    TarBundle(List<Entry> entries) {
+        mEntries = entries;
+    }
+
+    /**
+     * @return true if the name can be stored in the header of an entry
+     */
+    static boolean fits(String name) {
+        return name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_LENGTH;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        while (mPart != null || nextPart()) {
+            int read = mPart.read(b, off, len);
+            if (read > 0)
+                return read;
+            mPart.close();
+            mPart = null;
+        }
+        return -1;
+    }
+
+    /**
+     * Opens the next part of the archive
+     *
+     * @return false at the end of the archive
+     */
+    private boolean nextPart() throws IOException {
+        if (isClosed)
+            return false;
+        int part = mNextPart++;
+        int entry = part / 3;
+        if (entry < mEntries.size()) {
+            Entry current = mEntries.get(entry);
+            switch (part % 3) {
+                case 0:
+                    mPart = new ByteArrayInputStream(header(current.mName, current.mSize, current.mModified));
+                    break;
+                case 1:
+                    current.mStream = new ContentHash.HashingInputStream(new FileInputStream(current.mFile));
+                    mPart = new ExactLengthInputStream(current.mStream, current.mSize, current.mFile);
+                    break;
+                default:
+                    mPart = new ByteArrayInputStream(new byte[padding(current.mSize)]);
+            }
+            return true;
+        }
+
+        if (entry == mEntries.size()) {
+            byte[] manifest = manifest();
+            byte[] header = header(MANIFEST_NAME, manifest.length, System.currentTimeMillis());
+            byte[] bytes = new byte[header.length + manifest.length + padding(manifest.length) + 2 * BLOCK_SIZE];
+            System.arraycopy(header, 0, bytes, 0, header.length);
+            System.arraycopy(manifest, 0, bytes, header.length, manifest.length);
+            mPart = new ByteArrayInputStream(bytes);
+            mNextPart = (entry + 1) * 3;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * One line per file: name, size, modification time in milliseconds, CRC-32 and Adler-32 in hexadecimal
+     */
+    private byte[] manifest() {
+        StringBuilder manifest = new StringBuilder("# name\tsize\tmodified\tcrc32\tadler32\n");
+        for (Entry entry : mEntries) {
+            long hash = entry.getHash();
+            manifest.append(entry.mName).append('\t')
+                    .append(entry.mSize).append('\t')
+                    .append(entry.mModified).append('\t')
+                    .append(String.format("%08x\t%08x", hash >>> 32, hash & 0xffffffffL)).append('\n');
+        }
+        return manifest.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int padding(long size) {
+        return (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+    }
+
+    /**
+     * @return the ustar header of a regular file
+     */
+    private static byte[] header(String name, long size, long modified) {
+        byte[] header = new byte[BLOCK_SIZE];
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, MAX_NAME_LENGTH));
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, modified / 1000);
+        header[156] = '0';
+        ascii(header, 257, "ustar\u000000");
+
+        // The checksum is computed with its own field filled with spaces
+        for (int i = 148; i < 156; i++)
+            header[i] = ' ';
+        long checksum = 0;
+        for (byte b : header)
+            checksum += b & 0xff;
+        octal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /**
+     * Writes a zero padded octal number followed by a NUL
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        StringBuilder field = new StringBuilder();
+        for (int i = digits.length(); i < length - 1; i++)
+            field.append('0');
+        ascii(header, offset, field.append(digits).append('\u0000').toString());
+    }
+
+    private static void ascii(byte[] header, int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mPart != null) {
+            mPart.close();
+            mPart = null;
+        }
+        isClosed = true;
+    }
+
+    /**
+     * Reads exactly the size given in the header, failing if the file ends before
+     */
+    private static class ExactLengthInputStream extends InputStream {
+
+        private final InputStream mIn;
+        private final File mFile;
+        private long mLeft;
+
+        ExactLengthInputStream(InputStream in, long length, File file) {
+            mIn = in;
+            mLeft = length;
+            mFile = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mLeft == 0)
+                return -1;
+            int read = mIn.read(b, off, (int) Math.min(len, mLeft));
+            if (read == -1)
+                throw new EOFException("\"" + mFile + "\" became shorter while it was bundled.");
+            mLeft -= read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
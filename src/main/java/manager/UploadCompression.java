@@ -0,0 +1,222 @@
+package manager;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * Optional on-the-fly compression of the uploaded files.
+ *
+ * The file is compressed while it is read by the FTP client, nothing is written to disk. Whether a
+ * file is compressed is decided per file: files with an extension that is already compressed are
+ * sent as they are, the others have their first bytes compressed as a sample and are only
+ * compressed if the sample shrinks enough.
+ *
+ * @author edgar
+ */
+final class UploadCompression {
+
+    /**
+     * Available codecs, both produce standard gzip files
+     */
+    enum Codec {
+        NONE("", Deflater.NO_COMPRESSION),
+        GZIP(".gz", Deflater.DEFAULT_COMPRESSION),
+        GZIP_FAST(".gz", Deflater.BEST_SPEED);
+
+        private final String mSuffix;
+        private final int mLevel;
+
+        Codec(String suffix, int level) {
+            mSuffix = suffix;
+            mLevel = level;
+        }
+
+        /**
+         * @return the suffix added to the remote name
+         */
+        String getSuffix() { return mSuffix; }
+
+        /**
+         * Wraps the stream of the file so it is read compressed
+         */
+        InputStream wrap(InputStream in) {
+            return (this == NONE) ? in : new GzipCompressingInputStream(in, mLevel);
+        }
+
+        /**
+         * Parses the 'compression' option: none, gzip or gzip-fast
+         */
+        static Codec fromName(String name) {
+            if (name == null)
+                return NONE;
+            switch (name.trim().toLowerCase(Locale.ROOT)) {
+                case "gzip":
+                    return GZIP;
+                case "gzip-fast":
+                    return GZIP_FAST;
+                default:
+                    return NONE;
+            }
+        }
+    }
+
+    /**
+     * Extensions of formats that are already compressed
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "gz", "tgz", "bz2", "xz", "zip", "7z", "rar", "jar", "war", "zst", "lz4",
+            "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "mkv", "avi", "mov", "pdf", "docx", "xlsx", "pptx"));
+
+    /**
+     * Files smaller than this are not worth the gzip overhead
+     */
+    private static final long MIN_SIZE = 512;
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * The sample must compress to at most this fraction of its size
+     */
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+
+    private UploadCompression() { /* Empty */ }
+
+    /**
+     * Picks the codec for a file
+     *
+     * @param file the file to upload
+     * @param configured the codec set in the configuration
+     * @return the configured codec if the file is worth compressing, NONE otherwise
+     * @throws IOException
+     */
+    static Codec choose(File file, Codec configured) throws IOException {
+        if (configured == Codec.NONE || file.length() < MIN_SIZE)
+            return Codec.NONE;
+
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot != -1 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT)))
+            return Codec.NONE;
+
+        return isCompressible(file) ? configured : Codec.NONE;
+    }
+
+    /**
+     * Compresses the start of the file, as fast as possible, to estimate how well it compresses
+     */
+    private static boolean isCompressible(File file) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while (length < sample.length && (read = in.read(sample, length, sample.length - length)) != -1)
+                length += read;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] output = new byte[SAMPLE_SIZE];
+            long compressed = 0;
+            while (!deflater.finished())
+                compressed += deflater.deflate(output);
+            return compressed <= length * MAX_SAMPLE_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Stream that reads another stream as a gzip file: header, raw deflate data and trailer
+     */
+    static class GzipCompressingInputStream extends InputStream {
+
+        private static final byte[] HEADER = {
+                0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+        };
+
+        private final Deflater mDeflater;
+        private final CRC32 mCrc = new CRC32();
+        private final InputStream mDeflated;
+        private final InputStream mSource;
+        private long mUncompressedSize;
+
+        private int mHeaderPosition;
+        private byte[] mTrailer;
+        private int mTrailerPosition;
+
+        GzipCompressingInputStream(InputStream in, int level) {
+            mSource = in;
+            mDeflater = new Deflater(level, true);
+            mDeflated = new DeflaterInputStream(new FilterInputStream(in) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read > 0) {
+                        mCrc.update(b, off, read);
+                        mUncompressedSize += read;
+                    }
+                    return read;
+                }
+            }, mDeflater);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            // Header
+            if (mHeaderPosition < HEADER.length) {
+                int count = Math.min(len, HEADER.length - mHeaderPosition);
+                System.arraycopy(HEADER, mHeaderPosition, b, off, count);
+                mHeaderPosition += count;
+                return count;
+            }
+
+            // Compressed data
+            if (mTrailer == null) {
+                int read = mDeflated.read(b, off, len);
+                if (read != -1)
+                    return read;
+                mTrailer = trailer();
+            }
+
+            // Trailer
+            if (mTrailerPosition >= mTrailer.length)
+                return -1;
+            int count = Math.min(len, mTrailer.length - mTrailerPosition);
+            System.arraycopy(mTrailer, mTrailerPosition, b, off, count);
+            mTrailerPosition += count;
+            return count;
+        }
+
+        private byte[] trailer() {
+            long crc = mCrc.getValue();
+            long size = mUncompressedSize & 0xffffffffL;
+            return new byte[]{
+                    (byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+                    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDeflater.end();
+            mSource.close();
+        }
+    }
+}
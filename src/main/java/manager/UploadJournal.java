@@ -0,0 +1,418 @@
+package manager;
+
+import log.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the upload queue.
+ *
+ * Every queued file is written as an ENQUEUE record and every finished upload as a COMPLETE record,
+ * so the cost of persisting an event does not depend on the size of the queue. PROGRESS records
+ * hold how far the upload of a large file got, so it can be resumed. The queue is rebuilt
+ * on startup by replaying the records. Each record carries its length and a CRC so a record that
+ * was only partially written when the process died is detected and dropped.
+ *
+ * Writes reach the OS right away but are only fsync'ed in batches, at most every
+ * {@link #SYNC_INTERVAL_MS}. The journal is compacted once it holds more completed than live records,
+ * from its own records, so the queue is never walked and appends go on while it is rewritten.
+ *
+ * @author edgar
+ */
+class UploadJournal {
+
+    private static final String TAG = UploadJournal.class.getSimpleName();
+
+    private static final byte RECORD_ENQUEUE = 1;
+    private static final byte RECORD_COMPLETE = 2;
+    private static final byte RECORD_PROGRESS = 3;
+
+    /**
+     * Max time a written record may wait before being fsync'ed
+     */
+    private static final long SYNC_INTERVAL_MS = 200;
+
+    /**
+     * Number of completed records tolerated before it is worth compacting
+     */
+    private static final int MIN_COMPLETED_BEFORE_COMPACTION = 1024;
+
+    /**
+     * Number of completed records after which the journal is compacted however many files are live.
+     * Keeps what has to be held in memory while replaying bounded.
+     */
+    private static final int MAX_COMPLETED_BEFORE_COMPACTION = 64 * 1024;
+
+    private final File mFile;
+    private FileOutputStream mFileStream;
+    private DataOutputStream mOutput;
+
+    /**
+     * Reused buffer where each record is assembled before being written
+     */
+    private final ByteArrayOutputStream mRecordBuffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream mRecord = new DataOutputStream(mRecordBuffer);
+    private final CRC32 mCrc = new CRC32();
+
+    private int mLiveRecords;
+    private int mCompletedRecords;
+    private boolean mDirty;
+    private boolean isCompacting;
+
+    private final ScheduledExecutorService mSyncExecutor;
+
+    UploadJournal(File file) {
+        mFile = file;
+        mSyncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, TAG + " Sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mSyncExecutor.scheduleWithFixedDelay(this::sync, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the journal and rebuilds the files that were not uploaded yet.
+     * Must be called once before anything is appended.
+     *
+     * @param consumer receives the pending files, in the order they were queued
+     * @throws IOException
+     */
+    synchronized void replay(Consumer<FTPManager.FileToSendInfo> consumer) throws IOException {
+        mLiveRecords = 0;
+        mCompletedRecords = 0;
+
+        if (mFile.exists()) {
+            int[] deadRecords = {0};
+            long validLength = scan(mFile, Long.MAX_VALUE, deadRecords, (enqueue, progress) -> {
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(enqueue));
+                record.readByte();
+                long id = record.readLong();
+                long dateAdded = record.readLong();
+                File file = new File(record.readUTF());
+                String relativePath = record.readUTF();
+                FTPManager.FileToSendInfo fileToSendInfo = new FTPManager.FileToSendInfo(id, file, relativePath, dateAdded);
+                // Records written before scheduling policies have no key
+                if (record.available() > 0)
+                    fileToSendInfo.setPriority(record.readByte(), record.readLong());
+                if (progress != null) {
+                    DataInputStream transfer = new DataInputStream(new ByteArrayInputStream(progress));
+                    transfer.skipBytes(9);
+                    fileToSendInfo.setTransferProgress(transfer.readLong(), transfer.readLong());
+                }
+                mLiveRecords++;
+                consumer.accept(fileToSendInfo);
+            });
+            mCompletedRecords = deadRecords[0];
+
+            // Drop whatever was left by a write that did not finish
+            if (validLength < mFile.length()) {
+                Log.e(TAG, "Discarding " + (mFile.length() - validLength) + " bytes of a torn record.");
+                try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+        }
+
+        open();
+    }
+
+    /**
+     * Receives the records of a file that is still pending
+     */
+    private interface PendingRecords {
+
+        /**
+         * @param enqueue payload of its ENQUEUE record
+         * @param progress payload of its last PROGRESS record, null if it has none
+         */
+        void accept(byte[] enqueue, byte[] progress) throws IOException;
+    }
+
+    /**
+     * Finds the files of a journal that were never completed.
+     *
+     * The journal is read twice so the pending files never have to be all in memory: the first pass
+     * only collects the finished ids and the transfer progress, which compaction keeps bounded, the
+     * second streams the pending files to the action.
+     *
+     * @param limit how many bytes of the journal to read, must be at the end of a record
+     * @param deadRecords receives the number of COMPLETE and PROGRESS records read
+     * @param action receives the pending files, in the order they were queued
+     * @return the length of the valid records read, less than the file if it ends with a torn record
+     * @throws IOException
+     */
+    private static long scan(File file, long limit, int[] deadRecords, PendingRecords action) throws IOException {
+        Set<Long> completed = new HashSet<>();
+        Map<Long, byte[]> progress = new HashMap<>();
+        long validLength = 0;
+
+        // First pass, what is done and how far the transfers got
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] payload;
+            while (validLength < limit && (payload = readRecord(in)) != null) {
+                validLength += 8 + payload.length;
+                byte type = payload[0];
+                long id = new DataInputStream(new ByteArrayInputStream(payload, 1, 8)).readLong();
+                if (type == RECORD_COMPLETE) {
+                    completed.add(id);
+                    progress.remove(id);
+                    deadRecords[0]++;
+                } else if (type == RECORD_PROGRESS) {
+                    progress.put(id, payload);
+                    deadRecords[0]++;
+                }
+            }
+        }
+
+        // Second pass, the files still pending
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long length = 0;
+            byte[] payload;
+            while (length < validLength && (payload = readRecord(in)) != null) {
+                length += 8 + payload.length;
+                if (payload[0] != RECORD_ENQUEUE)
+                    continue;
+                long id = new DataInputStream(new ByteArrayInputStream(payload, 1, 8)).readLong();
+                if (!completed.contains(id))
+                    action.accept(payload, progress.get(id));
+            }
+        }
+        return validLength;
+    }
+
+    /**
+     * Records that a file was added to the queue
+     */
+    synchronized void appendEnqueue(FTPManager.FileToSendInfo fileToSendInfo) throws IOException {
+        writeEnqueue(mOutput, fileToSendInfo);
+        mLiveRecords++;
+        mOutput.flush();
+        mDirty = true;
+    }
+
+    /**
+     * Records several files added to the queue with a single write
+     */
+    synchronized void appendEnqueue(Collection<FTPManager.FileToSendInfo> files) throws IOException {
+        for (FTPManager.FileToSendInfo fileToSendInfo : files)
+            writeEnqueue(mOutput, fileToSendInfo);
+        mLiveRecords += files.size();
+        mOutput.flush();
+        mDirty = true;
+    }
+
+    /**
+     * Records that a file no longer needs to be uploaded
+     */
+    synchronized void appendComplete(FTPManager.FileToSendInfo fileToSendInfo) throws IOException {
+        mRecordBuffer.reset();
+        mRecord.writeByte(RECORD_COMPLETE);
+        mRecord.writeLong(fileToSendInfo.getId());
+        writeRecord(mOutput);
+        mLiveRecords--;
+        mCompletedRecords++;
+        mOutput.flush();
+        mDirty = true;
+    }
+
+    /**
+     * Records how many bytes of a file were sent, and which version of the file they belong to
+     */
+    synchronized void appendProgress(FTPManager.FileToSendInfo fileToSendInfo) throws IOException {
+        writeProgress(mOutput, fileToSendInfo);
+        // Only the last progress record of a file matters, count it as dead weight
+        mCompletedRecords++;
+        mOutput.flush();
+        mDirty = true;
+    }
+
+    /**
+     * @return true if the journal holds enough dead records to be worth rewriting
+     */
+    synchronized boolean needsCompaction() {
+        return !isCompacting && mCompletedRecords >= MIN_COMPLETED_BEFORE_COMPACTION
+                && (mCompletedRecords > mLiveRecords || mCompletedRecords >= MAX_COMPLETED_BEFORE_COMPACTION);
+    }
+
+    /**
+     * Rewrites the journal without the records of finished uploads. The new journal is fully written
+     * and synced to a temporary file before it replaces the current one, so a crash never loses it.
+     *
+     * Records keep being appended meanwhile: the journal is rewritten, without holding its lock, up to
+     * where it ended when the compaction started, then the records appended since are copied as they
+     * are while holding the lock. Does nothing if another compaction is running.
+     *
+     * @throws IOException if the journal could not be compacted, it is then left as it was
+     */
+    void compact() throws IOException {
+        long mark;
+        int deadAtMark;
+        synchronized (this) {
+            if (isCompacting || mOutput == null)
+                return;
+            isCompacting = true;
+            mOutput.flush();
+            mark = mFile.length();
+            deadAtMark = mCompletedRecords;
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream fileStream = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+                CRC32 crc = new CRC32();
+                scan(mFile, mark, new int[1], (enqueue, progress) -> {
+                    writeRecord(out, enqueue, crc);
+                    if (progress != null)
+                        writeRecord(out, progress, crc);
+                });
+
+                synchronized (this) {
+                    if (mOutput == null)
+                        return;
+                    mOutput.flush();
+                    try (InputStream tail = new FileInputStream(mFile)) {
+                        if (tail.skip(mark) != mark)
+                            throw new EOFException("Journal is shorter than " + mark + " bytes.");
+                        byte[] buffer = new byte[8192];
+                        int read;
+                        while ((read = tail.read(buffer)) != -1)
+                            out.write(buffer, 0, read);
+                    }
+                    out.flush();
+                    fileStream.getFD().sync();
+                    fileStream.close();
+
+                    close();
+                    try {
+                        Files.move(tmp.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        // The replaced journal, or the current one if it could not be replaced
+                        open();
+                    }
+                    Log.d(TAG, "Compacted journal, " + deadAtMark + " completed records dropped.");
+                    mCompletedRecords -= deadAtMark;
+                }
+            } finally {
+                fileStream.close();
+            }
+        } finally {
+            synchronized (this) {
+                isCompacting = false;
+            }
+            if (tmp.exists() && !tmp.delete())
+                Log.e(TAG, "Could not delete '" + tmp + "'.");
+        }
+    }
+
+    /**
+     * Forces the written records to disk if there are any pending
+     */
+    synchronized void sync() {
+        if (!mDirty || mFileStream == null)
+            return;
+        try {
+            mFileStream.getFD().sync();
+            mDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Forces what was written to disk and closes the journal, nothing can be appended afterwards
+     *
+     * @throws IOException
+     */
+    synchronized void shutdown() throws IOException {
+        mSyncExecutor.shutdown();
+        if (mOutput != null) {
+            close();
+            mOutput = null;
+            mFileStream = null;
+        }
+    }
+
+    private void open() throws IOException {
+        mFileStream = new FileOutputStream(mFile, true);
+        mOutput = new DataOutputStream(new BufferedOutputStream(mFileStream));
+    }
+
+    private void close() throws IOException {
+        mOutput.flush();
+        mFileStream.getFD().sync();
+        mOutput.close();
+        mDirty = false;
+    }
+
+    private void writeEnqueue(DataOutputStream out, FTPManager.FileToSendInfo fileToSendInfo) throws IOException {
+        mRecordBuffer.reset();
+        mRecord.writeByte(RECORD_ENQUEUE);
+        mRecord.writeLong(fileToSendInfo.getId());
+        mRecord.writeLong(fileToSendInfo.getDateAddedToQueue());
+        mRecord.writeUTF(fileToSendInfo.getFile().getPath());
+        mRecord.writeUTF(fileToSendInfo.getRelativePath());
+        mRecord.writeByte(fileToSendInfo.getPolicyId());
+        mRecord.writeLong(fileToSendInfo.getPriority());
+        writeRecord(out);
+    }
+
+    private void writeProgress(DataOutputStream out, FTPManager.FileToSendInfo fileToSendInfo) throws IOException {
+        mRecordBuffer.reset();
+        mRecord.writeByte(RECORD_PROGRESS);
+        mRecord.writeLong(fileToSendInfo.getId());
+        mRecord.writeLong(fileToSendInfo.getTransferOffset());
+        mRecord.writeLong(fileToSendInfo.getTransferModified());
+        writeRecord(out);
+    }
+
+    /**
+     * Writes the assembled record as [length][crc][payload]
+     */
+    private void writeRecord(DataOutputStream out) throws IOException {
+        mRecord.flush();
+        writeRecord(out, mRecordBuffer.toByteArray(), mCrc);
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] payload, CRC32 crc) throws IOException {
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    /**
+     * @return the payload of the next record, or null at the end of the journal or on a torn record
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length <= 0 || length > 1 << 20)
+                return null;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            CRC32 check = new CRC32();
+            check.update(payload, 0, payload.length);
+            return ((int) check.getValue() == crc) ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package manager;
+
+import log.Log;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Persistent index of the files that were already uploaded, keyed by their relative path, with the
+ * size, modification time and content hash they had when they were sent. Used on startup to find
+ * the files that were created while the monitor was not running, and to skip files whose bytes
+ * were already uploaded to the same path.
+ *
+ * The index is an open addressing hash table stored in a memory mapped file, so it is ready as
+ * soon as it is mapped and lookups are O(1) however many files it holds. Paths are stored as a
+ * 64 bit hash. When the table gets half full it is copied into a new, twice as large, generation
+ * file and the old one is deleted. A generation only gets its magic once it is complete and on
+ * disk, so a crash while it is filled leaves the previous generation in use.
+ *
+ * <pre>
+ * header: magic(4) version(4) capacity(4) count(4) reserved(16)
+ * slot:   pathHash(8) size(8) modified(8) contentHash(8)
+ * </pre>
+ *
+ * @author edgar
+ */
+class UploadManifest {
+
+    private static final String TAG = UploadManifest.class.getSimpleName();
+
+    private static final int MAGIC = 0x534D5549;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 32;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    /**
+     * Largest table that fits in one mapping, 1GB for up to 24 million files
+     */
+    private static final int MAX_CAPACITY = 1 << 25;
+
+    /**
+     * How many records may be written before the mapping is forced to disk
+     */
+    private static final int RECORDS_PER_FORCE = 1024;
+
+    private final File mDirectory;
+    private final String mName;
+
+    private int mGeneration;
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    private int mCapacity;
+    private int mCount;
+    private int mUnforcedRecords;
+
+    /**
+     * True if there was no manifest when it was loaded, i.e. nothing was ever recorded
+     */
+    private boolean isNew;
+
+    /**
+     * @param directory where the index files are kept
+     * @param name base name of the index files
+     */
+    UploadManifest(File directory, String name) {
+        mDirectory = directory;
+        mName = name;
+    }
+
+    /**
+     * Maps the newest valid index, creating one if there is none.
+     * A manifest written by older versions is imported.
+     *
+     * @throws IOException
+     */
+    synchronized void load() throws IOException {
+        int generation = -1;
+        File[] files = mDirectory.listFiles((dir, fileName) -> fileName.startsWith(mName + ".") && fileName.endsWith(".idx"));
+        if (files != null) {
+            for (File file : files) {
+                int candidate = parseGeneration(file.getName());
+                if (candidate > generation && isValid(file))
+                    generation = candidate;
+            }
+        }
+
+        File legacy = new File(mDirectory, mName + ".dat");
+        isNew = generation < 0 && !legacy.exists();
+
+        if (generation >= 0) {
+            map(generation);
+        } else {
+            create(0, INITIAL_CAPACITY);
+            publish();
+        }
+        // Also finishes an import that was cut short, recording a file twice changes nothing
+        importLegacy(legacy);
+        deleteOtherGenerations(files);
+        Log.d(TAG, "Loaded " + mCount + " uploaded files.");
+    }
+
+    boolean isNew() { return isNew; }
+
+    /**
+     * @return true if the path was uploaded with exactly this size and modification time
+     */
+    synchronized boolean contains(String relativePath, long size, long modified) {
+        int position = find(pathHash(relativePath));
+        return mBuffer.getLong(position) != 0
+                && mBuffer.getLong(position + 8) == size
+                && mBuffer.getLong(position + 16) == modified;
+    }
+
+    /**
+     * @return the content hash the path was uploaded with if it had the given size, 0 otherwise
+     */
+    synchronized long getContentHash(String relativePath, long size) {
+        int position = find(pathHash(relativePath));
+        if (mBuffer.getLong(position) == 0 || mBuffer.getLong(position + 8) != size)
+            return 0;
+        return mBuffer.getLong(position + 24);
+    }
+
+    /**
+     * Records a finished upload, replacing what was known about the path
+     *
+     * @param contentHash hash of the uploaded bytes, 0 if unknown
+     */
+    synchronized void record(String relativePath, long size, long modified, long contentHash) {
+        try {
+            if ((mCount + 1) * 2 > mCapacity) {
+                if (mCapacity < MAX_CAPACITY) {
+                    grow();
+                } else if ((mCount + 1) * 4L > mCapacity * 3L) {
+                    // Lookups would get too slow, and a full table would never find an empty slot
+                    Log.e(TAG, "Manifest is full, '" + relativePath + "' is not recorded.");
+                    return;
+                }
+            }
+
+            long key = pathHash(relativePath);
+            int position = find(key);
+            if (mBuffer.getLong(position) == 0) {
+                mBuffer.putLong(position, key);
+                mBuffer.putInt(12, ++mCount);
+            }
+            mBuffer.putLong(position + 8, size);
+            mBuffer.putLong(position + 16, modified);
+            mBuffer.putLong(position + 24, contentHash);
+
+            if (++mUnforcedRecords >= RECORDS_PER_FORCE) {
+                mBuffer.force();
+                mUnforcedRecords = 0;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not record '" + relativePath + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the position of the slot holding the key, or of the empty slot where it would go
+     */
+    private int find(long key) {
+        int mask = mCapacity - 1;
+        int index = (int) key & mask;
+        while (true) {
+            int position = HEADER_SIZE + index * SLOT_SIZE;
+            long slotKey = mBuffer.getLong(position);
+            if (slotKey == 0 || slotKey == key)
+                return position;
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Copies every entry into a new generation with twice the capacity
+     */
+    private void grow() throws IOException {
+        MappedByteBuffer old = mBuffer;
+        FileChannel oldChannel = mChannel;
+        int oldCapacity = mCapacity;
+        File oldFile = file(mGeneration);
+
+        create(mGeneration + 1, oldCapacity * 2);
+        for (int i = 0; i < oldCapacity; i++) {
+            int from = HEADER_SIZE + i * SLOT_SIZE;
+            long key = old.getLong(from);
+            if (key == 0)
+                continue;
+            int to = find(key);
+            mBuffer.putLong(to, key);
+            mBuffer.putLong(to + 8, old.getLong(from + 8));
+            mBuffer.putLong(to + 16, old.getLong(from + 16));
+            mBuffer.putLong(to + 24, old.getLong(from + 24));
+            mCount++;
+        }
+        mBuffer.putInt(12, mCount);
+        mBuffer.force();
+        publish();
+
+        // The new generation is complete, the old one can go
+        oldChannel.close();
+        if (!oldFile.delete())
+            Log.e(TAG, "Could not delete '" + oldFile + "'.");
+    }
+
+    /**
+     * Creates and maps an empty index file, ignored by {@link #load()} until it is published
+     */
+    private void create(int generation, int capacity) throws IOException {
+        File file = file(generation);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+            raf.writeInt(0);
+            raf.writeInt(VERSION);
+            raf.writeInt(capacity);
+            raf.writeInt(0);
+        }
+        map(generation);
+    }
+
+    /**
+     * Marks the mapped index as valid. Everything written before must already be forced to disk.
+     */
+    private void publish() {
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.force();
+    }
+
+    private void map(int generation) throws IOException {
+        mGeneration = generation;
+        mChannel = FileChannel.open(file(generation).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mChannel.size());
+        mCapacity = mBuffer.getInt(8);
+        mCount = mBuffer.getInt(12);
+    }
+
+    /**
+     * Imports the append-only manifest written by older versions, which had no content hashes
+     */
+    private void importLegacy(File legacy) throws IOException {
+        if (!legacy.exists())
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(legacy)))) {
+            while (true) {
+                String relativePath;
+                long size;
+                long modified;
+                try {
+                    relativePath = in.readUTF();
+                    size = in.readLong();
+                    modified = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                record(relativePath, size, modified, 0);
+            }
+        }
+        mBuffer.force();
+        if (!legacy.delete())
+            Log.e(TAG, "Could not delete '" + legacy + "'.");
+    }
+
+    /**
+     * Deletes the index files left by a crash: older generations and incomplete newer ones
+     */
+    private void deleteOtherGenerations(File[] files) {
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (parseGeneration(file.getName()) != mGeneration && !file.delete())
+                Log.e(TAG, "Could not delete '" + file + "'.");
+        }
+    }
+
+    private File file(int generation) {
+        return new File(mDirectory, mName + "." + generation + ".idx");
+    }
+
+    private int parseGeneration(String fileName) {
+        try {
+            return Integer.parseInt(fileName.substring(mName.length() + 1, fileName.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return true if the file has a complete header and table
+     */
+    private static boolean isValid(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            int capacity;
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return false;
+            capacity = in.readInt();
+            return capacity > 0 && Integer.bitCount(capacity) == 1
+                    && file.length() >= HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a of the path followed by a murmur finalizer, never 0 since 0 marks empty slots
+     */
+    static long pathHash(String relativePath) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < relativePath.length(); i++) {
+            hash ^= relativePath.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (hash != 0) ? hash : 1;
+    }
+}
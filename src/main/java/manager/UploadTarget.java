@@ -0,0 +1,62 @@
+package manager;
+
+import java.util.Objects;
+
+/**
+ * A FTPS server the submissions are uploaded to, with the credentials and remote root dir to use.
+ * Every target has its own upload queue, workers and state directory.
+ *
+ * @author edgar
+ */
+public class UploadTarget {
+
+    /**
+     * Name of the target when the configuration has no 'targets' option
+     */
+    public static final String DEFAULT_NAME = "default";
+
+    private final String mName;
+    private final String mHost;
+    private final int mPort;
+    private final String mUsername;
+    private final String mPassword;
+    private final String mRootDir;
+
+    public UploadTarget(String name, String host, int port, String username, String password, String rootDir) {
+        mName = name;
+        mHost = host;
+        mPort = port;
+        mUsername = username;
+        mPassword = password;
+        mRootDir = rootDir;
+    }
+
+    public String getName() { return mName; }
+    public String getHost() { return mHost; }
+    public int getPort() { return mPort; }
+    public String getUsername() { return mUsername; }
+    public String getPassword() { return mPassword; }
+    public String getRootDir() { return mRootDir; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof UploadTarget))
+            return false;
+        UploadTarget other = (UploadTarget) o;
+        return mPort == other.mPort && mName.equals(other.mName) && mHost.equals(other.mHost)
+                && mUsername.equals(other.mUsername) && mPassword.equals(other.mPassword)
+                && mRootDir.equals(other.mRootDir);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mName, mHost, mPort, mUsername, mRootDir);
+    }
+
+    @Override
+    public String toString() {
+        return mName + " (" + mUsername + "@" + mHost + ":" + mPort + mRootDir + ")";
+    }
+}
@@ -0,0 +1,28 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A value that only goes up, e.g. the number of uploaded files.
+ * Safe to increment from any thread without locking or allocating.
+ *
+ * @author edgar
+ */
+public class Counter {
+
+    private final LongAdder mValue = new LongAdder();
+
+    Counter() { /* Created through Metrics */ }
+
+    public void inc() {
+        mValue.increment();
+    }
+
+    public void add(long amount) {
+        mValue.add(amount);
+    }
+
+    public long get() {
+        return mValue.sum();
+    }
+}
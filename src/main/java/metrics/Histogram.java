@@ -0,0 +1,86 @@
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations, kept in fixed power of two buckets of microseconds.
+ * Recording a value is a couple of atomic increments and never allocates.
+ *
+ * @author edgar
+ */
+public class Histogram {
+
+    /**
+     * Bucket i holds the values up to 2^i microseconds, the last one everything above 2^(BUCKETS-1)
+     */
+    static final int BUCKETS = 40;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS + 1);
+    private final LongAdder mSumMicros = new LongAdder();
+
+    Histogram() { /* Created through Metrics */ }
+
+    /**
+     * Records the time elapsed since a {@link System#nanoTime()} reading
+     */
+    public void recordSince(long startNanos) {
+        recordMicros((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public void recordMillis(long millis) {
+        recordMicros(millis * 1000);
+    }
+
+    public void recordMicros(long micros) {
+        if (micros < 0)
+            micros = 0;
+        int bucket = (micros <= 1) ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        mBuckets.incrementAndGet(Math.min(bucket, BUCKETS));
+        mSumMicros.add(micros);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i <= BUCKETS; i++)
+            count += mBuckets.get(i);
+        return count;
+    }
+
+    long getSumMicros() {
+        return mSumMicros.sum();
+    }
+
+    long getBucket(int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    /**
+     * @return upper bound of the bucket, in microseconds
+     */
+    static long getUpperBound(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket where it falls
+     *
+     * @param quantile between 0 and 1
+     * @param unit unit of the result
+     * @return the estimate, 0 if nothing was recorded
+     */
+    public long getPercentile(double quantile, TimeUnit unit) {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+        long target = (long) Math.ceil(quantile * count);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += mBuckets.get(i);
+            if (cumulative >= target)
+                return unit.convert(getUpperBound(i), TimeUnit.MICROSECONDS);
+        }
+        return unit.convert(getUpperBound(BUCKETS), TimeUnit.MICROSECONDS);
+    }
+}
@@ -0,0 +1,256 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import log.Log;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the counters, gauges and histograms of the monitor, shown over JMX and, if a port is
+ * configured, as a Prometheus text page on http://localhost:port/metrics.
+ *
+ * Metrics are created once, when they are registered, and recording to them never allocates, so
+ * they can be used from the watcher and upload loops. Everything is read only when it is exported.
+ *
+ * @author edgar
+ */
+public final class Metrics implements MetricsMBean {
+
+    public static final String TAG = Metrics.class.getSimpleName();
+
+    private static final String PREFIX = "submission_monitor_";
+
+    /**
+     * Name the MBean is registered with
+     */
+    public static final String OBJECT_NAME = "submissionMonitor:type=Metrics";
+
+    private static final Map<String, Family> mFamilies = new LinkedHashMap<>();
+
+    public static final Counter EVENTS_RECEIVED = counter("events_received_total", "File events received from the watcher");
+    public static final Counter FILES_QUEUED = counter("files_queued_total", "Files added to the upload queue");
+    public static final Counter UPLOADS_COMPLETED = counter("uploads_completed_total", "Files uploaded to the server");
+    public static final Counter UPLOADS_SKIPPED = counter("uploads_skipped_total", "Files not sent because the server already had them");
+    public static final Counter UPLOAD_FAILURES = counter("upload_failures_total", "Uploads that failed and were retried or given up on");
+    public static final Counter BUNDLES = counter("upload_bundles_total", "Tar archives of small files uploaded in a single transfer");
+    public static final Counter VERIFICATION_FAILURES = counter("upload_verification_failures_total", "Uploads whose size or digest on the server did not match what was sent");
+    public static final Counter DEAD_LETTERS = counter("dead_letters_total", "Files given up on after too many failed uploads");
+    public static final Counter CONNECTS = counter("ftp_connects_total", "FTP sessions opened");
+    public static final Counter RECONNECTS = counter("ftp_reconnects_total", "FTP sessions opened by a worker that had a session before");
+    public static final Counter CONNECT_FAILURES = counter("ftp_connect_failures_total", "FTP sessions that could not connect or login");
+
+    public static final Histogram UPLOAD_LATENCY = histogram("upload_latency_seconds", "Time from the file creation event to the end of its upload");
+    public static final Histogram CWD_TIME = histogram("ftp_command_seconds", "Round trip time of the FTP commands", "command", "CWD");
+    public static final Histogram MKD_TIME = histogram("ftp_command_seconds", "Round trip time of the FTP commands", "command", "MKD");
+    public static final Histogram STOR_TIME = histogram("ftp_command_seconds", "Round trip time of the FTP commands", "command", "STOR");
+
+    private static final Metrics mInstance = new Metrics();
+    private static HttpServer mServer;
+
+    private Metrics() { /* Only the MBean instance */ }
+
+    /**
+     * Registers a counter, or returns the one already registered with the same name and labels
+     *
+     * @param name name without the common prefix
+     * @param help description of the metric
+     * @param labels label names and values, alternated
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, new Counter());
+    }
+
+    /**
+     * Registers a histogram of durations, or returns the one already registered with the same name and labels
+     */
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) register(name, help, "histogram", labels, new Histogram());
+    }
+
+    /**
+     * Registers a gauge, replacing the one registered with the same name and labels
+     *
+     * @param value read every time the metrics are exported
+     */
+    public static synchronized void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "gauge").mMetrics.put(labelString(labels), value);
+    }
+
+    private static synchronized Object register(String name, String help, String type, String[] labels, Object metric) {
+        Object existing = family(name, help, type).mMetrics.putIfAbsent(labelString(labels), metric);
+        return (existing != null) ? existing : metric;
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = mFamilies.get(name);
+        if (family == null) {
+            family = new Family(help, type);
+            mFamilies.put(name, family);
+        } else if (!family.mType.equals(type)) {
+            throw new IllegalArgumentException("Metric '" + name + "' is already a " + family.mType);
+        }
+        return family;
+    }
+
+    /**
+     * @return the labels in Prometheus syntax, without braces, e.g. command="CWD"
+     */
+    private static String labelString(String[] labels) {
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (builder.length() > 0)
+                builder.append(',');
+            builder.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Registers the MBean and, if the port is not 0, starts the HTTP endpoint on the loopback interface
+     *
+     * @param httpPort port of the Prometheus endpoint, 0 to disable it
+     */
+    public static synchronized void start(int httpPort) {
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+                ManagementFactory.getPlatformMBeanServer().registerMBean(mInstance, objectName);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not register MBean: " + e.getMessage());
+        }
+
+        if (httpPort <= 0 || mServer != null)
+            return;
+        try {
+            mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            mServer.createContext("/metrics", exchange -> {
+                byte[] body = export().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            mServer.start();
+            Log.d(TAG, "Serving metrics on http://localhost:" + httpPort + "/metrics");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start metrics endpoint: " + e.getMessage());
+            mServer = null;
+        }
+    }
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    public static synchronized String export() {
+        StringBuilder builder = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : mFamilies.entrySet()) {
+            String name = PREFIX + entry.getKey();
+            Family family = entry.getValue();
+            builder.append("# HELP ").append(name).append(' ').append(family.mHelp).append('\n');
+            builder.append("# TYPE ").append(name).append(' ').append(family.mType).append('\n');
+
+            for (Map.Entry<String, Object> metric : family.mMetrics.entrySet()) {
+                String labels = metric.getKey();
+                Object value = metric.getValue();
+                if (value instanceof Counter) {
+                    appendSample(builder, name, labels, ((Counter) value).get());
+                } else if (value instanceof LongSupplier) {
+                    appendSample(builder, name, labels, ((LongSupplier) value).getAsLong());
+                } else {
+                    appendHistogram(builder, name, labels, (Histogram) value);
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void appendHistogram(StringBuilder builder, String name, String labels, Histogram histogram) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.BUCKETS; i++) {
+            cumulative += histogram.getBucket(i);
+            double upperBound = Histogram.getUpperBound(i) / 1e6;
+            builder.append(name).append("_bucket{").append(labels).append(separator)
+                    .append("le=\"").append(upperBound).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += histogram.getBucket(Histogram.BUCKETS);
+        builder.append(name).append("_bucket{").append(labels).append(separator)
+                .append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        builder.append(name).append("_sum");
+        if (!labels.isEmpty())
+            builder.append('{').append(labels).append('}');
+        builder.append(' ').append(histogram.getSumMicros() / 1e6).append('\n');
+        appendSample(builder, name + "_count", labels, cumulative);
+    }
+
+    private static void appendSample(StringBuilder builder, String name, String labels, long value) {
+        builder.append(name);
+        if (!labels.isEmpty())
+            builder.append('{').append(labels).append('}');
+        builder.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @return the sum of every metric of a family, e.g. the bytes sent by all the connections
+     */
+    private static synchronized long sum(String name) {
+        Family family = mFamilies.get(name);
+        if (family == null)
+            return 0;
+        long sum = 0;
+        for (Object value : family.mMetrics.values()) {
+            if (value instanceof Counter)
+                sum += ((Counter) value).get();
+            else if (value instanceof LongSupplier)
+                sum += ((LongSupplier) value).getAsLong();
+        }
+        return sum;
+    }
+
+    // ------------------------
+    // MBean
+    // ------------------------
+
+    @Override public long getEventsReceived() { return EVENTS_RECEIVED.get(); }
+    @Override public long getFilesQueued() { return FILES_QUEUED.get(); }
+    @Override public long getQueueDepth() { return sum("queue_depth"); }
+    @Override public long getFilesInFlight() { return sum("files_in_flight"); }
+    @Override public long getUploadsCompleted() { return UPLOADS_COMPLETED.get(); }
+    @Override public long getUploadFailures() { return UPLOAD_FAILURES.get(); }
+    @Override public long getBytesSent() { return sum("bytes_sent_total"); }
+    @Override public long getConnects() { return CONNECTS.get(); }
+    @Override public long getConnectFailures() { return CONNECT_FAILURES.get(); }
+    @Override public long getUploadLatencyP50Millis() { return UPLOAD_LATENCY.getPercentile(0.5, TimeUnit.MILLISECONDS); }
+    @Override public long getUploadLatencyP99Millis() { return UPLOAD_LATENCY.getPercentile(0.99, TimeUnit.MILLISECONDS); }
+    @Override public long getStoreTimeP99Millis() { return STOR_TIME.getPercentile(0.99, TimeUnit.MILLISECONDS); }
+    @Override public String getPrometheusText() { return export(); }
+
+    /**
+     * Metrics sharing a name, one per set of labels
+     */
+    private static class Family {
+
+        private final String mHelp;
+        private final String mType;
+        private final Map<String, Object> mMetrics = new LinkedHashMap<>();
+
+        Family(String help, String type) {
+            mHelp = help;
+            mType = type;
+        }
+    }
+}
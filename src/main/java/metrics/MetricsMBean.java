@@ -0,0 +1,27 @@
+package metrics;
+
+/**
+ * What the pipeline metrics show over JMX
+ *
+ * @author edgar
+ */
+public interface MetricsMBean {
+
+    long getEventsReceived();
+    long getFilesQueued();
+    long getQueueDepth();
+    long getFilesInFlight();
+    long getUploadsCompleted();
+    long getUploadFailures();
+    long getBytesSent();
+    long getConnects();
+    long getConnectFailures();
+    long getUploadLatencyP50Millis();
+    long getUploadLatencyP99Millis();
+    long getStoreTimeP99Millis();
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    String getPrometheusText();
+}
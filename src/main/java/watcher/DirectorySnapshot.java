@@ -0,0 +1,135 @@
+package watcher;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What the watcher knows about the content of every watched directory: for each entry its name and
+ * a fingerprint of its size and modification time. Used after events were lost to find, directory
+ * by directory, the files that changed without the watcher being told.
+ *
+ * Entries are kept per directory in their own hash map, so looking up or diffing a directory with
+ * tens of thousands of entries does not depend on the size of the rest of the tree.
+ *
+ * @author edgar
+ */
+class DirectorySnapshot {
+
+    /**
+     * Fingerprint of the sub-directories, their content is in their own snapshot
+     */
+    private static final long DIRECTORY = Long.MIN_VALUE;
+
+    private final Map<Path, Directory> mDirectories = new ConcurrentHashMap<>();
+
+    /**
+     * @return the snapshot of the directory, created empty if there is none
+     */
+    Directory get(Path dir) {
+        return mDirectories.computeIfAbsent(dir, d -> new Directory());
+    }
+
+    /**
+     * @return the snapshot of the directory, or null if it was never registered
+     */
+    Directory find(Path dir) {
+        return mDirectories.get(dir);
+    }
+
+    /**
+     * Records the current state of an entry
+     *
+     * @return true if the entry is new or changed since it was last recorded
+     */
+    boolean update(Path dir, Path entry, BasicFileAttributes attributes) {
+        return get(dir).update(entry.getFileName().toString(), attributes);
+    }
+
+    /**
+     * Forgets a directory, the snapshots of its sub-directories are kept
+     */
+    void remove(Path dir) {
+        mDirectories.remove(dir);
+    }
+
+    /**
+     * Forgets a directory and all the directories below it
+     */
+    void removeTree(Path dir) {
+        mDirectories.keySet().removeIf(path -> path.startsWith(dir));
+    }
+
+    /**
+     * Entries of one directory
+     */
+    static class Directory {
+
+        private final Map<String, Long> mEntries = new ConcurrentHashMap<>();
+
+        /**
+         * Set while the directory has a valid WatchKey
+         */
+        volatile boolean isRegistered;
+
+        /**
+         * Set once the directory was rescanned, mRescanned is only meaningful after that. System.nanoTime()
+         * can be any value, negative included, so no time can stand for "never".
+         */
+        private volatile boolean isRescanned;
+
+        /**
+         * System.nanoTime() of the start of the last rescan
+         */
+        private volatile long mRescanned;
+
+        /**
+         * @param time a System.nanoTime() value
+         * @return true if a rescan of the directory started after the given time
+         */
+        boolean rescannedSince(long time) {
+            return isRescanned && mRescanned - time > 0;
+        }
+
+        /**
+         * Records the start of a rescan
+         *
+         * @param time System.nanoTime() at which the rescan started
+         */
+        void setRescanned(long time) {
+            mRescanned = time;
+            isRescanned = true;
+        }
+
+        boolean update(String name, BasicFileAttributes attributes) {
+            long fingerprint = fingerprint(attributes);
+            Long previous = mEntries.put(name, fingerprint);
+            return previous == null || previous != fingerprint;
+        }
+
+        boolean contains(String name) {
+            return mEntries.containsKey(name);
+        }
+
+        void remove(String name) {
+            mEntries.remove(name);
+        }
+
+        /**
+         * @return a copy of the names of the entries
+         */
+        Set<String> names() {
+            return new HashSet<>(mEntries.keySet());
+        }
+
+        private static long fingerprint(BasicFileAttributes attributes) {
+            if (attributes.isDirectory())
+                return DIRECTORY;
+            long fingerprint = attributes.lastModifiedTime().toMillis() ^ (attributes.size() * 0x9E3779B97F4A7C15L);
+            return (fingerprint != DIRECTORY) ? fingerprint : DIRECTORY + 1;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package watcher;
+
+import log.Log;
+import metrics.Counter;
+import metrics.Metrics;
+
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Bounded queue between the thread that drains the WatchKeys and the thread that handles their events.
+ *
+ * The watcher thread only puts the polled events of a key in the queue, so the keys are reset right
+ * away and the kernel queue does not overflow while files are stat'ed, directories registered or the
+ * upload queue written to disk. A single consumer hands the events to {@link WatchDir#dispatchEvents(Path, List)}
+ * in the order the keys were signalled. When the consumer falls behind and the queue is full, the
+ * watcher waits for room rather than dropping events.
+ *
+ * The consumer runs on a virtual thread when the JVM has them, on a daemon platform thread otherwise.
+ *
+ * @author edgar
+ */
+class EventHandoff {
+
+    private static final String TAG = EventHandoff.class.getSimpleName();
+
+    private static final Counter STALLS = Metrics.counter("watch_handoff_stalls_total",
+            "Times the watcher thread waited because the event handoff queue was full");
+
+    private final WatchDir mWatchDir;
+    private final BlockingQueue<KeyEvents> mQueue;
+    private final Thread mConsumer;
+
+    /**
+     * @param watchDir the watcher whose events are dispatched
+     * @param capacity number of polled keys that can wait in the queue
+     */
+    EventHandoff(WatchDir watchDir, int capacity) {
+        mWatchDir = watchDir;
+        mQueue = new ArrayBlockingQueue<>(capacity);
+        Metrics.gauge("watch_handoff_depth", "Polled watch keys waiting to be dispatched", mQueue::size);
+
+        mConsumer = newThreadFactory().newThread(this::consume);
+        mConsumer.start();
+    }
+
+    /**
+     * Queues the events of a key, waiting only if the queue is full
+     *
+     * @param dir the directory the key was registered for
+     * @param events the events polled from the key
+     * @throws InterruptedException
+     */
+    void put(Path dir, List<WatchEvent<?>> events) throws InterruptedException {
+        offer(new KeyEvents(dir, events));
+    }
+
+    /**
+     * Queues the rescan of a directory whose key is no longer valid
+     *
+     * @param dir the directory the key was registered for
+     * @throws InterruptedException
+     */
+    void putInvalidKey(Path dir) throws InterruptedException {
+        offer(new KeyEvents(dir, null));
+    }
+
+    private void offer(KeyEvents keyEvents) throws InterruptedException {
+        if (!mQueue.offer(keyEvents)) {
+            STALLS.inc();
+            mQueue.put(keyEvents);
+        }
+    }
+
+    /**
+     * Stops the consumer, events still in the queue are dropped
+     */
+    void shutdown() {
+        mConsumer.interrupt();
+    }
+
+    private void consume() {
+        while (!Thread.currentThread().isInterrupted()) {
+            KeyEvents keyEvents;
+            try {
+                keyEvents = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                if (keyEvents.mEvents == null)
+                    mWatchDir.keyInvalidated(keyEvents.mDir, keyEvents.mPolledAt);
+                else
+                    mWatchDir.dispatchEvents(keyEvents.mDir, keyEvents.mEvents, keyEvents.mPolledAt);
+            } catch (Exception e) {
+                Log.e(TAG, "Could not dispatch events of '" + keyEvents.mDir + "': " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return a factory of virtual threads if the JVM has them, of daemon threads otherwise
+     */
+    private static ThreadFactory newThreadFactory() {
+        try {
+            // Thread.ofVirtual().name(...).factory(), looked up so the code still runs on Java 8
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class);
+            Method factory = builderClass.getMethod("factory");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) factory.invoke(name.invoke(builder, TAG));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return r -> {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    /**
+     * The events polled from one key, null if the key was found invalid
+     */
+    private static class KeyEvents {
+
+        private final Path mDir;
+        private final List<WatchEvent<?>> mEvents;
+        private final long mPolledAt = System.nanoTime();
+
+        KeyEvents(Path dir, List<WatchEvent<?>> events) {
+            mDir = dir;
+            mEvents = events;
+        }
+    }
+}
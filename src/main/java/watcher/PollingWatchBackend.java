@@ -0,0 +1,348 @@
+package watcher;
+
+import log.Log;
+import metrics.Counter;
+import metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Backend that finds changes by polling, for network file systems, where the OS reports no events,
+ * and for trees with more directories than the OS lets a process watch.
+ *
+ * Every directory keeps the modification time it had when it was last listed. A poll only reads
+ * that time: creating, deleting or renaming an entry changes it, and only then is the directory
+ * listed and diffed against its snapshot, giving ENTRY_CREATE for new entries and ENTRY_MODIFY for
+ * files whose size or modification time changed. A directory that keeps its modification time is
+ * polled less and less often, up to the maximum interval, and goes back to the minimum interval as
+ * soon as it changes. The directories due are polled in parallel.
+ *
+ * Writes to an existing file do not change the modification time of its directory, so they are
+ * only seen when the directory is listed for another reason. New files are followed by the
+ * {@link manager.QuiescenceFilter} until they are complete, so this only misses files rewritten in
+ * place long after they were created.
+ *
+ * @author edgar
+ */
+public class PollingWatchBackend implements WatchBackend {
+
+    private static final String TAG = PollingWatchBackend.class.getSimpleName();
+
+    private static final Counter POLLS = Metrics.counter("watch_polls_total",
+            "Directories whose modification time was checked by the polling watcher");
+    private static final Counter LISTINGS = Metrics.counter("watch_poll_listings_total",
+            "Directories listed by the polling watcher because they changed");
+
+    /**
+     * Resolution of the modification times of network and FAT file systems. A directory listed less
+     * than this after its last modification could change again without its modification time
+     * changing, so it is listed again on the next poll. Assumes the clocks of the server and of
+     * this machine agree within this.
+     */
+    private static final long MTIME_GRANULARITY_MS = 2000;
+
+    /**
+     * Number of directories with events that can wait for {@link #take()} before the polls block
+     */
+    private static final int EVENTS_CAPACITY = 4096;
+
+    private final long mMinInterval;
+    private final long mMaxInterval;
+
+    /**
+     * Entries of every polled directory as of its last listing
+     */
+    private final DirectorySnapshot mSnapshot = new DirectorySnapshot();
+
+    private final Map<Path, PolledDirectory> mDirectories = new ConcurrentHashMap<>();
+    private final DelayQueue<PolledDirectory> mDue = new DelayQueue<>();
+    private final BlockingQueue<DirectoryEvents> mEvents = new ArrayBlockingQueue<>(EVENTS_CAPACITY);
+
+    private final ForkJoinPool mPollPool;
+    private final Thread mScheduler;
+
+    /**
+     * @param minIntervalMs how often a directory that just changed is polled
+     * @param maxIntervalMs how often a directory that does not change is polled at least
+     * @param threads number of directories polled in parallel, polls of network file systems mostly
+     *                wait for the server, so this can be well above the number of processors
+     */
+    public PollingWatchBackend(long minIntervalMs, long maxIntervalMs, int threads) {
+        mMinInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(10, minIntervalMs));
+        mMaxInterval = Math.max(mMinInterval, TimeUnit.MILLISECONDS.toNanos(maxIntervalMs));
+        mPollPool = new ForkJoinPool(Math.max(1, threads));
+        mScheduler = new Thread(this::schedule, TAG + " Scheduler");
+        mScheduler.setDaemon(true);
+        mScheduler.start();
+
+        Metrics.gauge("watch_polled_directories", "Directories watched by the polling watcher", mDirectories::size);
+    }
+
+    /**
+     * Lists the directory to record what it contains now, changes after this are reported by the polls
+     */
+    @Override
+    public void register(Path dir) throws IOException {
+        PolledDirectory polled = new PolledDirectory(dir);
+        if (mDirectories.putIfAbsent(dir, polled) != null)
+            return;
+        try {
+            // The modification time is read before listing, a change during the listing is seen by the next poll
+            long modified = Files.readAttributes(dir, BasicFileAttributes.class).lastModifiedTime().toMillis();
+            long listedAt = System.currentTimeMillis();
+            DirectorySnapshot.Directory snapshot = mSnapshot.get(dir);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes = readAttributes(entry);
+                    if (attributes != null)
+                        snapshot.update(entry.getFileName().toString(), attributes);
+                }
+            }
+            polled.mModified = modified;
+            polled.mListedAt = listedAt;
+        } catch (IOException e) {
+            mDirectories.remove(dir);
+            mSnapshot.remove(dir);
+            throw e;
+        }
+        polled.mInterval = mMinInterval;
+        polled.mDueAt = System.nanoTime() + mMinInterval;
+        mDue.add(polled);
+    }
+
+    @Override
+    public DirectoryEvents take() throws InterruptedException {
+        return mEvents.take();
+    }
+
+    @Override
+    public int size() {
+        return mDirectories.size();
+    }
+
+    @Override
+    public void close() {
+        mScheduler.interrupt();
+        mPollPool.shutdownNow();
+    }
+
+    /**
+     * Waits for directories to be due, polls them in parallel and schedules their next poll
+     */
+    private void schedule() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<PolledDirectory> due = new ArrayList<>();
+                due.add(mDue.take());
+                mDue.drainTo(due);
+
+                try {
+                    mPollPool.submit(() -> due.parallelStream().forEach(this::poll)).get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Poll failed: " + e.getCause());
+                }
+
+                long now = System.nanoTime();
+                for (PolledDirectory polled : due) {
+                    if (polled.isCancelled)
+                        continue;
+                    polled.mDueAt = now + polled.mInterval;
+                    mDue.add(polled);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Checks the modification time of a directory, and lists and diffs it if it changed
+     */
+    private void poll(PolledDirectory polled) {
+        POLLS.inc();
+        BasicFileAttributes attributes = readDirectoryAttributes(polled.mDir);
+        if (attributes == null) {
+            cancel(polled);
+            return;
+        }
+
+        long modified = attributes.lastModifiedTime().toMillis();
+        if (modified == polled.mModified && polled.mListedAt - modified > MTIME_GRANULARITY_MS) {
+            // Unchanged, poll it less often
+            polled.mInterval = Math.min(mMaxInterval, polled.mInterval * 2);
+            return;
+        }
+
+        List<WatchEvent<?>> events;
+        long listedAt = System.currentTimeMillis();
+        try {
+            events = diff(polled.mDir);
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            cancel(polled);
+            return;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not list '" + polled.mDir + "': " + e.getMessage());
+            return;
+        }
+        polled.mModified = modified;
+        polled.mListedAt = listedAt;
+        polled.mInterval = mMinInterval;
+
+        if (!events.isEmpty())
+            put(new DirectoryEvents(polled.mDir, events, true));
+    }
+
+    /**
+     * Lists a directory and updates its snapshot
+     *
+     * @return ENTRY_CREATE for the new entries and ENTRY_MODIFY for the changed files
+     */
+    private List<WatchEvent<?>> diff(Path dir) throws IOException {
+        LISTINGS.inc();
+        DirectorySnapshot.Directory snapshot = mSnapshot.get(dir);
+        Set<String> gone = snapshot.names();
+        List<WatchEvent<?>> events = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes = readAttributes(entry);
+                if (attributes == null)
+                    continue;
+                Path name = entry.getFileName();
+                gone.remove(name.toString());
+                boolean isNew = !snapshot.contains(name.toString());
+                boolean isChanged = snapshot.update(name.toString(), attributes);
+                if (isNew)
+                    events.add(new PolledEvent(ENTRY_CREATE, name));
+                else if (isChanged && !attributes.isDirectory())
+                    events.add(new PolledEvent(ENTRY_MODIFY, name));
+            }
+        }
+        for (String name : gone)
+            snapshot.remove(name);
+        return events;
+    }
+
+    /**
+     * Stops polling a directory that is gone and reports it like an invalid WatchKey
+     */
+    private void cancel(PolledDirectory polled) {
+        polled.isCancelled = true;
+        mDirectories.remove(polled.mDir, polled);
+        mSnapshot.remove(polled.mDir);
+        put(new DirectoryEvents(polled.mDir, null, false));
+    }
+
+    private void put(DirectoryEvents events) {
+        try {
+            mEvents.put(events);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the attributes of the directory, or null if it is gone or is no longer a directory
+     */
+    private static BasicFileAttributes readDirectoryAttributes(Path dir) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(dir, BasicFileAttributes.class);
+            return attributes.isDirectory() ? attributes : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the attributes of the entry, without following links, or null if it is gone or can't be read
+     */
+    private static BasicFileAttributes readAttributes(Path entry) {
+        try {
+            return Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A watched directory and when it is polled next. Only the scheduler changes it while it is in
+     * the queue of due directories, and only the poll while it is out.
+     */
+    private static class PolledDirectory implements Delayed {
+
+        private final Path mDir;
+
+        /**
+         * Modification time of the directory when it was last listed
+         */
+        private volatile long mModified;
+
+        /**
+         * System.currentTimeMillis() when the directory was last listed
+         */
+        private volatile long mListedAt;
+
+        private volatile long mInterval;
+        private volatile long mDueAt;
+        private volatile boolean isCancelled;
+
+        PolledDirectory(Path dir) {
+            mDir = dir;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mDueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * An event found by a poll, shaped like the ones of a WatchKey
+     */
+    private static class PolledEvent implements WatchEvent<Path> {
+
+        private final Kind<Path> mKind;
+        private final Path mName;
+
+        PolledEvent(Kind<Path> kind, Path name) {
+            mKind = kind;
+            mName = name;
+        }
+
+        @Override
+        public Kind<Path> kind() { return mKind; }
+
+        @Override
+        public int count() { return 1; }
+
+        @Override
+        public Path context() { return mName; }
+    }
+}
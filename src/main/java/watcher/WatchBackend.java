@@ -0,0 +1,84 @@
+package watcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Source of file events used by {@link WatchDir}.
+ *
+ * A backend watches single directories, not trees: {@link WatchDir} registers every directory of
+ * the tree, including the ones created later. Events are reported per directory, as the events of a
+ * {@link java.nio.file.WatchKey}: ENTRY_CREATE and ENTRY_MODIFY with the name of the entry as
+ * context, or OVERFLOW when events were lost.
+ *
+ * @author edgar
+ */
+public interface WatchBackend extends Closeable {
+
+    /**
+     * Starts watching a directory. Changes made after this returns are reported.
+     *
+     * @param dir the directory, its sub-directories are registered separately
+     * @throws IOException
+     */
+    void register(Path dir) throws IOException;
+
+    /**
+     * Waits for the next directory with events
+     *
+     * @return the events of one directory
+     * @throws InterruptedException
+     */
+    DirectoryEvents take() throws InterruptedException;
+
+    /**
+     * @return number of directories being watched
+     */
+    int size();
+
+    /**
+     * Creates the backend named by the 'watcher' option
+     *
+     * @param name 'native' for the WatchService of the file system, 'polling' for network file
+     *             systems or trees too large for the OS watch limits
+     * @param minIntervalMs how often a directory that just changed is polled
+     * @param maxIntervalMs how often a directory that does not change is polled at least
+     * @param threads number of directories polled in parallel
+     * @throws IOException
+     */
+    static WatchBackend create(String name, long minIntervalMs, long maxIntervalMs, int threads) throws IOException {
+        if (name != null && name.trim().toLowerCase(Locale.ROOT).equals("polling"))
+            return new PollingWatchBackend(minIntervalMs, maxIntervalMs, threads);
+        return new WatchServiceBackend();
+    }
+
+    /**
+     * The events of one directory
+     */
+    final class DirectoryEvents {
+
+        private final Path mDir;
+        private final List<WatchEvent<?>> mEvents;
+        private final boolean isValid;
+
+        /**
+         * @param dir the registered directory
+         * @param events the events, their context is the name of the entry
+         * @param valid false if the directory is no longer watched, e.g. it was deleted
+         */
+        public DirectoryEvents(Path dir, List<WatchEvent<?>> events, boolean valid) {
+            mDir = dir;
+            mEvents = (events != null) ? events : Collections.emptyList();
+            isValid = valid;
+        }
+
+        public Path getDir() { return mDir; }
+        public List<WatchEvent<?>> getEvents() { return mEvents; }
+        public boolean isValid() { return isValid; }
+    }
+}
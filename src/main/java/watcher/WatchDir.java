@@ -0,0 +1,434 @@
+package watcher;
+
+import log.Log;
+import manager.OnEventReceived;
+import manager.QuiescenceFilter;
+import metrics.Counter;
+import metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+
+
+public class WatchDir {
+
+    private static final String TAG = WatchDir.class.getSimpleName();
+
+    private static final Counter OVERFLOWS = Metrics.counter("watch_overflows_total",
+            "Times the watcher lost events of a directory and rescanned it");
+
+    private final Path mRootDir;
+
+    /**
+     * Where the events come from, the WatchService of the file system or polling
+     */
+    private final WatchBackend mBackend;
+    private final boolean isRecursive;
+    private volatile boolean debug = false;
+    private OnEventReceived mEventReceivedDelegate;
+
+    /**
+     * Number of existing files sent to the delegate in each batch while walking the tree
+     */
+    private static final int CATCH_UP_BATCH_SIZE = 256;
+
+    /**
+     * Number of polled keys that can wait for the dispatcher before the watcher thread blocks
+     */
+    private static final int HANDOFF_CAPACITY = 4096;
+
+    /**
+     * Takes the polled events off the watcher thread
+     */
+    private final EventHandoff mHandoff;
+
+    /**
+     * Known entries of every watched directory, diffed against the disk when events were lost
+     */
+    private final DirectorySnapshot mSnapshot = new DirectorySnapshot();
+
+    /**
+     * Pool that walks the directory tree in parallel
+     */
+    private final ForkJoinPool mWalkPool;
+
+    /**
+     * Tells which of the files found by the startup walk were missed and must be sent to the
+     * delegate, null to ignore existing files
+     */
+    private final Predicate<Path> mCatchUpFilter;
+
+    @SuppressWarnings("unchecked")
+    static <T> WatchEvent<T> cast(WatchEvent<?> event) {
+        return (WatchEvent<T>) event;
+    }
+
+    /**
+     * Creates a WatchService and registers the given directory
+     */
+    public WatchDir(Path dir, boolean recursive, OnEventReceived eventReceived) throws IOException {
+        this(dir, recursive, eventReceived, QuiescenceFilter.DEFAULT_WINDOW_MS);
+    }
+
+    /**
+     * Creates a WatchService and registers the given directory. Files are only handed to the
+     * delegate once they were not written to for the given window.
+     */
+    public WatchDir(Path dir, boolean recursive, OnEventReceived eventReceived, long stabilityWindowMs) throws IOException {
+        this(dir, recursive, eventReceived, stabilityWindowMs, null);
+    }
+
+    /**
+     * Creates a WatchService and registers the given directory. The tree is registered by a
+     * parallel walk in the background, so events can be processed while it runs. Existing files
+     * accepted by the catch-up filter are sent to the delegate as if they were just created.
+     *
+     * @param catchUpFilter returns true for existing files that were missed, may be null
+     */
+    public WatchDir(Path dir, boolean recursive, OnEventReceived eventReceived, long stabilityWindowMs,
+                    Predicate<Path> catchUpFilter) throws IOException {
+        this(dir, recursive, eventReceived, stabilityWindowMs, catchUpFilter, new WatchServiceBackend());
+    }
+
+    /**
+     * Registers the given directory with a backend, see {@link WatchBackend#create}. The events of
+     * every backend reach the delegate the same way.
+     *
+     * @param catchUpFilter returns true for existing files that were missed, may be null
+     * @param backend source of the events, closed by {@link #processEvents()} when it returns
+     */
+    public WatchDir(Path dir, boolean recursive, OnEventReceived eventReceived, long stabilityWindowMs,
+                    Predicate<Path> catchUpFilter, WatchBackend backend) throws IOException {
+        mRootDir = dir;
+        mBackend = backend;
+        isRecursive = recursive;
+        mEventReceivedDelegate = new QuiescenceFilter((eventReceived != null) ? eventReceived : new OnEventReceived(), stabilityWindowMs);
+        mCatchUpFilter = catchUpFilter;
+        mWalkPool = new ForkJoinPool();
+        mHandoff = new EventHandoff(this, HANDOFF_CAPACITY);
+
+        // The root is registered right away so processEvents always has a key to wait on
+        register(dir);
+
+        final long start = System.currentTimeMillis();
+        final CatchUpBatch batch = new CatchUpBatch();
+        mWalkPool.execute(() -> {
+            mWalkPool.invoke(new RegisterTask(dir, batch, mCatchUpFilter));
+            batch.flush();
+            Log.d(TAG, "Registered " + mBackend.size() + " directories and found " + batch.mFound.get()
+                    + " missed files in " + (System.currentTimeMillis() - start) + "ms.");
+
+            // enable trace after initial registration
+            debug = true;
+        });
+    }
+
+    /**
+     * Register the given directory with the backend
+     */
+    public void register(Path dir) throws IOException {
+        mBackend.register(dir);
+        if (debug)
+            System.out.format("register: %s\n", dir);
+        mSnapshot.get(dir).isRegistered = true;
+    }
+
+    /**
+     * Register the given directory, and all its sub-directories, with the
+     * backend. Files that were already inside are sent to the delegate, since they were
+     * created before the directory could be watched.
+     */
+    public void registerAll(final Path start) throws IOException {
+        CatchUpBatch batch = new CatchUpBatch();
+        mWalkPool.invoke(new RegisterTask(start, batch, path -> true));
+        batch.flush();
+    }
+
+    /**
+     * Registers a directory, then lists it, forking a task for every sub-directory. Registering
+     * before listing means a file is either seen by the listing or produces an event.
+     */
+    private class RegisterTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path mDir;
+        private final CatchUpBatch mBatch;
+        private final Predicate<Path> mFilter;
+
+        RegisterTask(Path dir, CatchUpBatch batch, Predicate<Path> filter) {
+            mDir = dir;
+            mBatch = batch;
+            mFilter = filter;
+        }
+
+        @Override
+        protected void compute() {
+            List<RegisterTask> subTasks = new ArrayList<>();
+            try {
+                register(mDir);
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(mDir)) {
+                    for (Path entry : entries) {
+                        BasicFileAttributes attributes = readAttributes(entry);
+                        if (attributes == null)
+                            continue;
+                        mSnapshot.update(mDir, entry, attributes);
+                        if (attributes.isDirectory()) {
+                            if (isRecursive)
+                                subTasks.add(new RegisterTask(entry, mBatch, mFilter));
+                        } else if (mFilter != null && mFilter.test(entry)) {
+                            mBatch.add(entry);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not register '" + mDir + "': " + e.getMessage());
+            }
+            invokeAll(subTasks);
+        }
+    }
+
+    /**
+     * Lists a directory and compares it with its snapshot: files that are new or changed are sent to
+     * the delegate as created, entries that are gone are forgotten. Sub-directories are rescanned in
+     * forked tasks, and registered again if their key was lost. A directory whose last rescan
+     * started after the events were lost is skipped, another rescan already covered it.
+     */
+    private class RescanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path mDir;
+        private final CatchUpBatch mBatch;
+        private final long mLostAt;
+
+        /**
+         * @param lostAt System.nanoTime() at which the events were known to be lost
+         */
+        RescanTask(Path dir, CatchUpBatch batch, long lostAt) {
+            mDir = dir;
+            mBatch = batch;
+            mLostAt = lostAt;
+        }
+
+        @Override
+        protected void compute() {
+            DirectorySnapshot.Directory snapshot = mSnapshot.get(mDir);
+            if (snapshot.rescannedSince(mLostAt))
+                return;
+            snapshot.setRescanned(System.nanoTime());
+
+            List<RescanTask> subTasks = new ArrayList<>();
+            try {
+                // Register before listing, like RegisterTask, so nothing falls between the two
+                if (!snapshot.isRegistered)
+                    register(mDir);
+
+                Set<String> gone = snapshot.names();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(mDir)) {
+                    for (Path entry : entries) {
+                        BasicFileAttributes attributes = readAttributes(entry);
+                        if (attributes == null)
+                            continue;
+                        gone.remove(entry.getFileName().toString());
+                        boolean isChanged = mSnapshot.update(mDir, entry, attributes);
+                        if (attributes.isDirectory()) {
+                            if (isRecursive)
+                                subTasks.add(new RescanTask(entry, mBatch, mLostAt));
+                        } else if (isChanged) {
+                            mBatch.add(entry);
+                        }
+                    }
+                }
+
+                for (String name : gone) {
+                    snapshot.remove(name);
+                    mSnapshot.removeTree(mDir.resolve(name));
+                }
+            } catch (NoSuchFileException | NotDirectoryException e) {
+                mSnapshot.removeTree(mDir);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not rescan '" + mDir + "': " + e.getMessage());
+            }
+            invokeAll(subTasks);
+        }
+    }
+
+    /**
+     * Finds the files the events were lost for in the subtree of a directory and sends them to the delegate
+     *
+     * @param dir root of the subtree
+     * @param lostAt System.nanoTime() at which the events were known to be lost
+     */
+    void rescan(Path dir, long lostAt) {
+        long start = System.currentTimeMillis();
+        CatchUpBatch batch = new CatchUpBatch();
+        mWalkPool.invoke(new RescanTask(dir, batch, lostAt));
+        batch.flush();
+        Log.d(TAG, "Rescanned '%s' and found %d missed files in %dms.", dir, batch.mFound.get(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Deals with a key that is no longer valid: if its directory is still there it is registered and
+     * rescanned, otherwise it and everything below it is forgotten
+     *
+     * @param dir the directory of the key
+     * @param lostAt System.nanoTime() at which the key was found invalid
+     */
+    void keyInvalidated(Path dir, long lostAt) {
+        DirectorySnapshot.Directory snapshot = mSnapshot.find(dir);
+        if (snapshot != null)
+            snapshot.isRegistered = false;
+
+        if (Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            Log.e(TAG, "Watch of '" + dir + "' was cancelled, rescanning it.");
+            rescan(dir, lostAt);
+        } else {
+            mSnapshot.removeTree(dir);
+        }
+    }
+
+    /**
+     * @return the attributes of the entry, without following links, or null if it is gone or can't be read
+     */
+    private static BasicFileAttributes readAttributes(Path entry) {
+        try {
+            return Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Collects the missed files found by a walk and sends them to the delegate in batches
+     */
+    private class CatchUpBatch {
+
+        private final AtomicInteger mFound = new AtomicInteger();
+        private List<OnEventReceived.Event> mEvents = new ArrayList<>(CATCH_UP_BATCH_SIZE);
+
+        void add(Path file) {
+            mFound.incrementAndGet();
+            List<OnEventReceived.Event> full = null;
+            synchronized (this) {
+                mEvents.add(new OnEventReceived.Event(ENTRY_CREATE, file));
+                if (mEvents.size() >= CATCH_UP_BATCH_SIZE) {
+                    full = mEvents;
+                    mEvents = new ArrayList<>(CATCH_UP_BATCH_SIZE);
+                }
+            }
+            if (full != null)
+                mEventReceivedDelegate.executeBatch(full);
+        }
+
+        void flush() {
+            List<OnEventReceived.Event> rest;
+            synchronized (this) {
+                rest = mEvents;
+                mEvents = new ArrayList<>(CATCH_UP_BATCH_SIZE);
+            }
+            if (!rest.isEmpty())
+                mEventReceivedDelegate.executeBatch(rest);
+        }
+    }
+
+    /**
+     * Hands all the events of a key to the delegate at once, registering the new directories first.
+     * Runs on the handoff thread, never on the one waiting on the backend.
+     *
+     * @param dir the directory the key was registered for
+     * @param watchEvents the events polled from the key
+     * @throws IOException
+     */
+    void dispatchEvents(Path dir, List<WatchEvent<?>> watchEvents) throws IOException {
+        dispatchEvents(dir, watchEvents, System.nanoTime());
+    }
+
+    /**
+     * Hands all the events of a key to the delegate at once. An OVERFLOW means events of the
+     * directory were lost, its subtree is rescanned instead.
+     *
+     * @param polledAt System.nanoTime() at which the events were polled
+     * @throws IOException
+     */
+    void dispatchEvents(Path dir, List<WatchEvent<?>> watchEvents, long polledAt) throws IOException {
+        List<OnEventReceived.Event> events = new ArrayList<>(watchEvents.size());
+        long timestamp = System.currentTimeMillis();
+        boolean isOverflow = false;
+        for(WatchEvent<?> wk : watchEvents){
+            if (wk.kind() == OVERFLOW) {
+                isOverflow = true;
+                continue;
+            }
+            Path path = dir.resolve((Path) wk.context());
+            WatchEvent.Kind<Path> kind = WatchDir.<Path>cast(wk).kind();
+
+            BasicFileAttributes attributes = readAttributes(path);
+            if (attributes != null) {
+                mSnapshot.update(dir, path, attributes);
+
+                // Deal with folder creation
+                if (isRecursive && (kind == ENTRY_CREATE) && attributes.isDirectory())
+                    registerAll(path);
+            }
+
+            events.add(new OnEventReceived.Event(kind, path, timestamp));
+        }
+        Metrics.EVENTS_RECEIVED.add(events.size());
+        if (!events.isEmpty())
+            mEventReceivedDelegate.executeBatch(events);
+
+        if (isOverflow) {
+            OVERFLOWS.inc();
+            Log.e(TAG, "Events of '" + dir + "' were lost, rescanning it.");
+            rescan(dir, polledAt);
+        }
+    }
+
+    /**
+     * Process all events for keys queued to the watcher. This thread only takes the events of the
+     * backend, they are dispatched by the {@link EventHandoff} thread.
+     * @throws IOException
+     */
+    public void processEvents() throws IOException {
+        try {
+            for (;;) {
+
+                // wait for a directory with events
+                WatchBackend.DirectoryEvents events = mBackend.take();
+                Path dir = events.getDir();
+
+                if (!events.getEvents().isEmpty())
+                    mHandoff.put(dir, events.getEvents());
+
+                // the directory is no longer watched
+                if (!events.isValid()) {
+                    mHandoff.putInvalidKey(dir);
+
+                    // all directories are inaccessible
+                    if (mBackend.size() == 0 && !Files.isDirectory(mRootDir)) {
+                        mHandoff.shutdown();
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException x) {
+            // Asked to stop
+        } finally {
+            mBackend.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package watcher;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Backend that uses the {@link WatchService} of the default file system, inotify on Linux, with one
+ * {@link WatchKey} per directory. Events arrive as soon as the OS reports them, but network file
+ * systems report none and the OS limits how many directories can be watched.
+ *
+ * @author edgar
+ */
+public class WatchServiceBackend implements WatchBackend {
+
+    private final WatchService mWatcher;
+
+    /**
+     * Directory of every key. Registering a key and recording it happen under its lock, so
+     * {@link #take()} never sees a key signalled before it was recorded.
+     */
+    private final Map<WatchKey, Path> mKeys = new ConcurrentHashMap<>();
+
+    public WatchServiceBackend() throws IOException {
+        mWatcher = FileSystems.getDefault().newWatchService();
+    }
+
+    @Override
+    public void register(Path dir) throws IOException {
+        // Registration runs on the walk threads while take() already waits for keys
+        synchronized (mKeys) {
+            WatchKey key = dir.register(mWatcher, ENTRY_CREATE, ENTRY_MODIFY /*, ENTRY_DELETE*/);
+            mKeys.put(key, dir);
+        }
+    }
+
+    /**
+     * Takes a signalled key, polls its events and resets it right away
+     */
+    @Override
+    public DirectoryEvents take() throws InterruptedException {
+        for (;;) {
+            // wait for key to be signalled
+            WatchKey key = mWatcher.take();
+
+            Path dir;
+            synchronized (mKeys) {
+                dir = mKeys.get(key);
+            }
+            if (dir == null) {
+                // A key that is not reset never signals again, keep it usable
+                System.err.println("WatchKey not recognized!!");
+                key.pollEvents();
+                key.reset();
+                continue;
+            }
+
+            List<WatchEvent<?>> events = key.pollEvents();
+
+            // reset key and remove from set if directory no longer accessible
+            boolean valid = key.reset();
+            if (!valid)
+                mKeys.remove(key);
+            return new DirectoryEvents(dir, events, valid);
+        }
+    }
+
+    @Override
+    public int size() {
+        return mKeys.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWatcher.close();
+    }
+}
@@ -0,0 +1,85 @@
+package log;
+
+import manager.TestFiles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edgar
+ */
+public class RollingFileOutputTest {
+
+    private File mDirectory;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestFiles.createDirectory();
+        mFile = new File(mDirectory, "log.txt");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteTree(mDirectory);
+    }
+
+    @Test
+    public void keepsOnlyTheNewestBackups() throws IOException {
+        RollingFileOutput output = new RollingFileOutput(mFile, 1, 2);
+        for (String line : new String[]{"1", "2", "3", "4"})
+            output.write(line);
+        output.flush();
+
+        assertEquals(Arrays.asList("4"), read(mFile));
+        assertEquals(Arrays.asList("3"), read(backup(1)));
+        assertEquals(Arrays.asList("2"), read(backup(2)));
+        assertFalse(backup(3).exists());
+    }
+
+    @Test
+    public void replacesTheOldestBackup() throws IOException {
+        Files.write(backup(1).toPath(), "old".getBytes(StandardCharsets.UTF_8));
+        RollingFileOutput output = new RollingFileOutput(mFile, 1, 1);
+        output.write("1");
+        output.write("2");
+        output.flush();
+
+        assertEquals(Arrays.asList("2"), read(mFile));
+        assertEquals(Arrays.asList("1"), read(backup(1)));
+    }
+
+    @Test
+    public void truncatesWhenItCannotRoll() throws IOException {
+        // A backup that cannot be deleted, as a file held open by another process on Windows
+        File backup = backup(1);
+        assertTrue(backup.mkdir());
+        Files.write(new File(backup, "file").toPath(), new byte[1]);
+
+        RollingFileOutput output = new RollingFileOutput(mFile, 1, 1);
+        output.write("1");
+        output.write("2");
+        output.flush();
+
+        assertEquals(Arrays.asList("2"), read(mFile));
+    }
+
+    private File backup(int index) {
+        return new File(mFile.getPath() + "." + index);
+    }
+
+    private static List<String> read(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+}
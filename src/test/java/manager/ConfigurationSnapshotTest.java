@@ -0,0 +1,139 @@
+package manager;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edgar
+ */
+public class ConfigurationSnapshotTest {
+
+    @Test
+    public void parsesTheSingleTarget() {
+        ConfigurationSnapshot snapshot = ConfigurationSnapshot.parse(server());
+
+        assertEquals("ftp.example.com", snapshot.getHost());
+        assertEquals(21, snapshot.getPort());
+        List<UploadTarget> targets = snapshot.getTargets();
+        assertEquals(1, targets.size());
+        assertEquals(UploadTarget.DEFAULT_NAME, targets.get(0).getName());
+        assertEquals("ftp.example.com", targets.get(0).getHost());
+        assertEquals("/upload", targets.get(0).getRootDir());
+    }
+
+    @Test
+    public void optionalOptionsHaveDefaults() {
+        ConfigurationSnapshot snapshot = ConfigurationSnapshot.parse(server());
+
+        assertEquals(1, snapshot.getUploadWorkers());
+        assertEquals(QuiescenceFilter.DEFAULT_WINDOW_MS, snapshot.getStabilityWindow());
+        assertEquals(0, snapshot.getMetricsPort());
+        assertFalse(snapshot.getPrimeDirectoryCache());
+    }
+
+    @Test
+    public void clampsOptionsOutOfRange() {
+        PropertiesConfiguration configuration = server();
+        configuration.addProperty("uploadWorkers", "0");
+        configuration.addProperty("retryBaseDelayMs", "5000");
+        configuration.addProperty("retryMaxDelayMs", "10");
+        ConfigurationSnapshot snapshot = ConfigurationSnapshot.parse(configuration);
+
+        assertEquals(1, snapshot.getUploadWorkers());
+        assertEquals(5000, snapshot.getRetryMaxDelay());
+    }
+
+    @Test
+    public void missingOrEmptyServerOptionIsInvalid() {
+        PropertiesConfiguration configuration = new PropertiesConfiguration();
+        configuration.addProperty("host", "ftp.example.com");
+        configuration.addProperty("port", "21");
+        configuration.addProperty("username", "user");
+        configuration.addProperty("password", "");
+        configuration.addProperty("rootDir", "/upload");
+        assertNull(ConfigurationSnapshot.parse(configuration));
+    }
+
+    @Test
+    public void badNumberIsInvalid() {
+        PropertiesConfiguration configuration = server();
+        configuration.addProperty("uploadWorkers", "many");
+        assertNull(ConfigurationSnapshot.parse(configuration));
+
+        configuration = server();
+        configuration.addProperty("targets", "backup");
+        configuration.addProperty("backup.port", "ftp");
+        assertNull(ConfigurationSnapshot.parse(configuration));
+    }
+
+    @Test
+    public void targetsFallBackToTheSharedOptions() {
+        PropertiesConfiguration configuration = server();
+        configuration.addProperty("targets", "primary, backup");
+        configuration.addProperty("backup.host", "backup.example.com");
+        configuration.addProperty("backup.rootDir", "/mirror");
+        ConfigurationSnapshot snapshot = ConfigurationSnapshot.parse(configuration);
+
+        List<UploadTarget> targets = snapshot.getTargets();
+        assertEquals(2, targets.size());
+        assertEquals("primary", targets.get(0).getName());
+        assertEquals("ftp.example.com", targets.get(0).getHost());
+        assertEquals("/upload", targets.get(0).getRootDir());
+        UploadTarget backup = snapshot.getTarget("backup");
+        assertEquals("backup.example.com", backup.getHost());
+        assertEquals(21, backup.getPort());
+        assertEquals("user", backup.getUsername());
+        assertEquals("/mirror", backup.getRootDir());
+        assertNull(snapshot.getTarget(UploadTarget.DEFAULT_NAME));
+    }
+
+    @Test
+    public void listsTheChangedStartupOptions() {
+        ConfigurationSnapshot previous = ConfigurationSnapshot.parse(server());
+
+        PropertiesConfiguration configuration = server();
+        configuration.addProperty("retryMaxDelayMs", "10000");
+        configuration.addProperty("compression", "gzip");
+        configuration.addProperty("sqlUrl", "jdbc:h2:mem:a");
+        ConfigurationSnapshot next = ConfigurationSnapshot.parse(configuration);
+        assertEquals(Arrays.asList("sqlUrl"), ConfigurationSnapshot.startupOptionChanges(previous, next));
+
+        configuration = server();
+        configuration.addProperty("stabilityWindowMs", "500");
+        configuration.addProperty("watcher", "polling");
+        configuration.addProperty("fairWeights", "a:2");
+        next = ConfigurationSnapshot.parse(configuration);
+        assertEquals(Arrays.asList("stabilityWindowMs", "fairWeights", "watcher"),
+                ConfigurationSnapshot.startupOptionChanges(previous, next));
+    }
+
+    @Test
+    public void databaseCanChangeOnceConfigured() {
+        PropertiesConfiguration configuration = server();
+        configuration.addProperty("sqlUrl", "jdbc:h2:mem:a");
+        ConfigurationSnapshot previous = ConfigurationSnapshot.parse(configuration);
+
+        configuration = server();
+        configuration.addProperty("sqlUrl", "jdbc:h2:mem:b");
+        ConfigurationSnapshot next = ConfigurationSnapshot.parse(configuration);
+        assertTrue(ConfigurationSnapshot.startupOptionChanges(previous, next).isEmpty());
+    }
+
+    private static PropertiesConfiguration server() {
+        PropertiesConfiguration configuration = new PropertiesConfiguration();
+        configuration.addProperty("host", "ftp.example.com");
+        configuration.addProperty("port", "21");
+        configuration.addProperty("username", "user");
+        configuration.addProperty("password", "secret");
+        configuration.addProperty("rootDir", "/upload");
+        return configuration;
+    }
+}
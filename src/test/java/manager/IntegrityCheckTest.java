@@ -0,0 +1,138 @@
+package manager;
+
+import org.apache.commons.net.ftp.FTPSClient;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author edgar
+ */
+public class IntegrityCheckTest {
+
+    private static final byte[] CONTENT = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.US_ASCII);
+    private static final String SHA_256 = "d7a8fbb307d7809469ca9abcb0082e4f8d5651e46d3cdb762d02d0bf37c9e592";
+    private static final String MD5 = "9e107d9d372bb6826bd81d3542a419d6";
+    private static final String CRC32 = "414fa339";
+
+    @Test
+    public void digestsWhatIsRead() throws IOException {
+        assertEquals(SHA_256, digest(IntegrityCheck.Method.HASH_SHA_256, 0));
+        assertEquals(MD5, digest(IntegrityCheck.Method.XMD5, 0));
+        assertEquals(CRC32, digest(IntegrityCheck.Method.XCRC, 0));
+    }
+
+    @Test
+    public void skippedBytesAreDigested() throws IOException {
+        assertEquals(SHA_256, digest(IntegrityCheck.Method.HASH_SHA_256, 10));
+        assertEquals(CRC32, digest(IntegrityCheck.Method.XCRC, CONTENT.length));
+    }
+
+    @Test
+    public void verifiesHashReply() throws IOException {
+        assertEquals(IntegrityCheck.Result.MATCH, verify(IntegrityCheck.Method.HASH_SHA_256,
+                "213 SHA-256 0-43 " + SHA_256 + " /upload/fox.txt", SHA_256));
+        assertEquals(IntegrityCheck.Result.MATCH, verify(IntegrityCheck.Method.HASH_MD5,
+                "213 MD5 0-43 " + MD5.toUpperCase() + " /upload/fox.txt", MD5));
+        assertEquals(IntegrityCheck.Result.MISMATCH, verify(IntegrityCheck.Method.HASH_SHA_256,
+                "213 SHA-256 0-43 " + SHA_256.replace('d', 'e') + " /upload/fox.txt", SHA_256));
+    }
+
+    @Test
+    public void verifiesXcrcAndXmd5Replies() throws IOException {
+        assertEquals(IntegrityCheck.Result.MATCH, verify(IntegrityCheck.Method.XCRC, "250 414FA339", CRC32));
+        assertEquals(IntegrityCheck.Result.MATCH, verify(IntegrityCheck.Method.XMD5, "250 " + MD5, MD5));
+        assertEquals(IntegrityCheck.Result.MATCH, verify(IntegrityCheck.Method.XMD5, "250 " + MD5 + " /upload/fox.txt", MD5));
+        assertEquals(IntegrityCheck.Result.MISMATCH, verify(IntegrityCheck.Method.XCRC, "250 414FA338", CRC32));
+    }
+
+    @Test
+    public void crcWithoutLeadingZeros() throws IOException {
+        assertEquals(IntegrityCheck.Result.MATCH, verify(IntegrityCheck.Method.XCRC, "250 ABC", "00000abc"));
+        assertEquals(IntegrityCheck.Result.MATCH, verify(IntegrityCheck.Method.XCRC, "250 0", "00000000"));
+    }
+
+    @Test
+    public void onlyTheDigestPositionCounts() throws IOException {
+        // A file name that looks like hex is not taken for the digest
+        assertEquals(IntegrityCheck.Result.MATCH, verify(IntegrityCheck.Method.XCRC, "250 414FA339 abc123", CRC32));
+        assertEquals(IntegrityCheck.Result.MATCH, verify(IntegrityCheck.Method.HASH_SHA_256,
+                "213 SHA-256 0-43 " + SHA_256 + " deadbeef", SHA_256));
+    }
+
+    @Test
+    public void unusableRepliesAreUnavailable() throws IOException {
+        assertEquals(IntegrityCheck.Result.UNAVAILABLE, verify(IntegrityCheck.Method.XCRC, "250", CRC32));
+        assertEquals(IntegrityCheck.Result.UNAVAILABLE, verify(IntegrityCheck.Method.XCRC, "250 File checked", CRC32));
+        assertEquals(IntegrityCheck.Result.UNAVAILABLE, verify(IntegrityCheck.Method.XMD5, "250 abc", MD5));
+        assertEquals(IntegrityCheck.Result.UNAVAILABLE, verify(IntegrityCheck.Method.HASH_SHA_256, "502 Not implemented", SHA_256));
+        assertEquals(IntegrityCheck.Result.UNAVAILABLE, verify(IntegrityCheck.Method.SIZE, "213 43", CRC32));
+    }
+
+    @Test
+    public void choosesBestAnnouncedHash() throws IOException {
+        assertEquals(IntegrityCheck.Method.HASH_SHA_256, choose("SHA-1;SHA-256;MD5*;CRC32", "XCRC"));
+        assertEquals(IntegrityCheck.Method.HASH_MD5, choose("SHA-1;MD5*", null));
+        assertEquals(IntegrityCheck.Method.XMD5, choose(null, "XMD5"));
+        assertEquals(IntegrityCheck.Method.XCRC, choose(null, "XCRC"));
+        assertEquals(IntegrityCheck.Method.SIZE, choose(null, null));
+    }
+
+    private static String digest(IntegrityCheck.Method method, long skip) throws IOException {
+        IntegrityCheck.DigestingInputStream in = method.digest(new ByteArrayInputStream(CONTENT));
+        assertEquals(skip, in.skip(skip));
+        byte[] buffer = new byte[5];
+        while (in.read(buffer, 0, buffer.length) != -1) {
+            // Read to the end
+        }
+        return in.getDigest();
+    }
+
+    private static IntegrityCheck.Result verify(IntegrityCheck.Method method, String reply, String digest) throws IOException {
+        return IntegrityCheck.verify(new ReplyingClient(reply, null, null), method, "/upload/fox.txt", digest);
+    }
+
+    private static IntegrityCheck.Method choose(String hashes, String feature) throws IOException {
+        return IntegrityCheck.choose(new ReplyingClient("200 OK", hashes, feature));
+    }
+
+    /**
+     * Client that answers every command with the same reply, without a connection
+     */
+    private static class ReplyingClient extends FTPSClient {
+
+        private final String mReply;
+        private final String mHashes;
+        private final String mFeature;
+
+        ReplyingClient(String reply, String hashes, String feature) {
+            mReply = reply;
+            mHashes = hashes;
+            mFeature = feature;
+        }
+
+        @Override
+        public int sendCommand(String command, String args) {
+            return Integer.parseInt(mReply.substring(0, 3));
+        }
+
+        @Override
+        public String getReplyString() {
+            return mReply + "\r\n";
+        }
+
+        @Override
+        public boolean hasFeature(String feature) {
+            return (feature.equals("HASH") && mHashes != null) || feature.equals(mFeature);
+        }
+
+        @Override
+        public String[] featureValues(String feature) {
+            return (feature.equals("HASH") && mHashes != null) ? new String[]{mHashes} : null;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package manager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edgar
+ */
+public class QuiescenceFilterTest {
+
+    private static final long WINDOW_MS = 100;
+    private static final long TIMEOUT_MS = 5000;
+
+    private File mDirectory;
+    private RecordingDelegate mDelegate;
+    private QuiescenceFilter mFilter;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestFiles.createDirectory();
+        mDelegate = new RecordingDelegate();
+        mFilter = new QuiescenceFilter(mDelegate, WINDOW_MS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteTree(mDirectory);
+    }
+
+    @Test
+    public void holdsFileBackForTheWindow() throws Exception {
+        Path file = write("a.txt", 10);
+        long start = System.nanoTime();
+        mFilter.execute(ENTRY_CREATE, file);
+        assertTrue(mDelegate.getEvents().isEmpty());
+
+        List<OnEventReceived.Event> events = mDelegate.await(1, TIMEOUT_MS);
+        assertTrue((System.nanoTime() - start) / 1000000 >= WINDOW_MS);
+        assertEquals(1, events.size());
+        assertEquals(ENTRY_CREATE, events.get(0).getKind());
+        assertEquals(file, events.get(0).getPath());
+        assertEquals(0, mFilter.getPendingCount());
+    }
+
+    @Test
+    public void mergesTheEventsOfAFile() throws Exception {
+        Path file = write("a.txt", 10);
+        mFilter.execute(ENTRY_CREATE, file);
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(WINDOW_MS / 4);
+            append(file, 10);
+            mFilter.execute(ENTRY_MODIFY, file);
+        }
+
+        mDelegate.await(1, TIMEOUT_MS);
+        Thread.sleep(3 * WINDOW_MS);
+        assertEquals(Arrays.asList(file), mDelegate.getPaths());
+    }
+
+    @Test
+    public void waitsWhileTheFileGrowsWithoutEvents() throws Exception {
+        Path file = write("a.txt", 10);
+        long start = System.nanoTime();
+        mFilter.execute(ENTRY_CREATE, file);
+        Thread.sleep(WINDOW_MS / 2);
+        append(file, 10);
+
+        mDelegate.await(1, TIMEOUT_MS);
+        // Seen changed when the first window expired, so it waited a second one
+        assertTrue((System.nanoTime() - start) / 1000000 >= 2 * WINDOW_MS);
+        assertEquals(Arrays.asList(file), mDelegate.getPaths());
+    }
+
+    @Test
+    public void dropsFilesDeletedBeforeTheyAreStable() throws Exception {
+        Path file = write("a.txt", 10);
+        mFilter.execute(ENTRY_CREATE, file);
+        Files.delete(file);
+
+        Thread.sleep(3 * WINDOW_MS);
+        assertTrue(mDelegate.getEvents().isEmpty());
+        assertEquals(0, mFilter.getPendingCount());
+    }
+
+    @Test
+    public void passesOtherEventsThrough() throws Exception {
+        Path file = mDirectory.toPath().resolve("gone.txt");
+        Path directory = Files.createDirectory(mDirectory.toPath().resolve("dir"));
+        mFilter.execute(ENTRY_DELETE, file);
+        mFilter.execute(ENTRY_CREATE, directory);
+        mFilter.execute(ENTRY_MODIFY, directory);
+
+        List<OnEventReceived.Event> events = mDelegate.getEvents();
+        assertEquals(2, events.size());
+        assertEquals(ENTRY_DELETE, events.get(0).getKind());
+        assertEquals(file, events.get(0).getPath());
+        assertEquals(ENTRY_CREATE, events.get(1).getKind());
+        assertEquals(directory, events.get(1).getPath());
+        assertEquals(0, mFilter.getPendingCount());
+    }
+
+    @Test
+    public void filesStableTogetherAreOneBatch() throws Exception {
+        List<OnEventReceived.Event> events = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            events.add(new OnEventReceived.Event(ENTRY_CREATE, write(i + ".txt", 10)));
+        mFilter.executeBatch(events);
+
+        assertEquals(3, mDelegate.await(3, TIMEOUT_MS).size());
+        assertEquals(Arrays.asList(3), mDelegate.getBatchSizes());
+    }
+
+    private Path write(String name, int size) throws IOException {
+        Path file = mDirectory.toPath().resolve(name);
+        Files.write(file, new byte[size]);
+        return file;
+    }
+
+    private static void append(Path file, int size) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file.toFile(), true)) {
+            out.write(new byte[size]);
+        }
+    }
+}
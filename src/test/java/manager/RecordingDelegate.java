@@ -0,0 +1,59 @@
+package manager;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delegate that keeps the events it receives so the tests can wait for them
+ *
+ * @author edgar
+ */
+public class RecordingDelegate extends OnEventReceived {
+
+    private final List<Event> mEvents = new ArrayList<>();
+    private final List<Integer> mBatchSizes = new ArrayList<>();
+
+    @Override
+    public synchronized void executeBatch(List<Event> events) {
+        mEvents.addAll(events);
+        mBatchSizes.add(events.size());
+        notifyAll();
+    }
+
+    /**
+     * Waits until at least the given number of events were received
+     *
+     * @return the events received so far
+     */
+    public synchronized List<Event> await(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining;
+        while (mEvents.size() < count && (remaining = deadline - System.currentTimeMillis()) > 0)
+            wait(remaining);
+        return new ArrayList<>(mEvents);
+    }
+
+    /**
+     * @return the paths of the events received so far
+     */
+    public synchronized List<Path> getPaths() {
+        List<Path> paths = new ArrayList<>(mEvents.size());
+        for (Event event : mEvents)
+            paths.add(event.getPath());
+        return paths;
+    }
+
+    public synchronized List<Event> getEvents() {
+        return new ArrayList<>(mEvents);
+    }
+
+    public synchronized List<Integer> getBatchSizes() {
+        return new ArrayList<>(mBatchSizes);
+    }
+
+    public synchronized void clear() {
+        mEvents.clear();
+        mBatchSizes.clear();
+    }
+}
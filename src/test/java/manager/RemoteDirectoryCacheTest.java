@@ -0,0 +1,78 @@
+package manager;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edgar
+ */
+public class RemoteDirectoryCacheTest {
+
+    @Test
+    public void listsParentsFromTheOutermost() {
+        assertEquals(Arrays.asList("/upload/a", "/upload/a/b"),
+                RemoteDirectoryCache.parentDirectories("/upload", "a/b/file.txt"));
+        assertEquals(Arrays.asList("/a", "/a/b"), RemoteDirectoryCache.parentDirectories("/", "a/b/file.txt"));
+    }
+
+    @Test
+    public void fileInTheRootHasNoParents() {
+        assertEquals(Collections.emptyList(), RemoteDirectoryCache.parentDirectories("/upload", "file.txt"));
+    }
+
+    @Test
+    public void skipsRepeatedSeparators() {
+        assertEquals(Arrays.asList("/upload/a", "/upload/a/b"),
+                RemoteDirectoryCache.parentDirectories("/upload//", "a//b/file.txt"));
+    }
+
+    @Test
+    public void normalizesTrailingSlashes() {
+        assertEquals("/upload", RemoteDirectoryCache.normalize("/upload"));
+        assertEquals("/upload", RemoteDirectoryCache.normalize("/upload///"));
+        assertEquals("/", RemoteDirectoryCache.normalize("/"));
+        assertEquals("/", RemoteDirectoryCache.normalize("///"));
+        assertEquals("", RemoteDirectoryCache.normalize(""));
+    }
+
+    @Test
+    public void resolvesAgainstTheRoot() {
+        assertEquals("/upload/a/file.txt", RemoteDirectoryCache.resolve("/upload/", "a/file.txt"));
+        assertEquals("/file.txt", RemoteDirectoryCache.resolve("/", "file.txt"));
+    }
+
+    @Test
+    public void invalidateForgetsTheSubtree() {
+        RemoteDirectoryCache cache = new RemoteDirectoryCache("localhost:21", "/upload");
+        for (String directory : new String[]{"/upload/a", "/upload/a/b", "/upload/a/b/c", "/upload/ab"})
+            cache.add(directory);
+
+        cache.invalidate("/upload/a");
+        assertFalse(cache.contains("/upload/a"));
+        assertFalse(cache.contains("/upload/a/b"));
+        assertFalse(cache.contains("/upload/a/b/c"));
+        assertTrue(cache.contains("/upload/ab"));
+    }
+
+    @Test
+    public void splitsParentAndName() {
+        assertEquals("a/b", RemoteDirectoryCache.parent("a/b/file.txt"));
+        assertEquals("", RemoteDirectoryCache.parent("file.txt"));
+        assertEquals("file.txt", RemoteDirectoryCache.name("a/b/file.txt"));
+        assertEquals("file.txt", RemoteDirectoryCache.name("file.txt"));
+    }
+
+    @Test
+    public void belongsToOneServerAndRoot() {
+        RemoteDirectoryCache cache = new RemoteDirectoryCache("localhost:21", "/upload");
+        assertTrue(cache.isFor("localhost:21", "/upload"));
+        assertFalse(cache.isFor("localhost:2121", "/upload"));
+        assertFalse(cache.isFor("localhost:21", "/other"));
+    }
+}
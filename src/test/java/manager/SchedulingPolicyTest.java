@@ -0,0 +1,194 @@
+package manager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edgar
+ */
+public class SchedulingPolicyTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private File mDirectory;
+    private long mNextId;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestFiles.createDirectory();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteTree(mDirectory);
+    }
+
+    @Test
+    public void createsThePolicyByName() {
+        assertTrue(SchedulingPolicy.create("shortest-first", MB, null) instanceof SchedulingPolicy.ShortestFirst);
+        assertTrue(SchedulingPolicy.create(" Fair ", MB, "a:2") instanceof SchedulingPolicy.Fair);
+        assertTrue(SchedulingPolicy.create("fifo", MB, null) instanceof SchedulingPolicy.Fifo);
+        assertTrue(SchedulingPolicy.create("unknown", MB, null) instanceof SchedulingPolicy.Fifo);
+        assertTrue(SchedulingPolicy.create(null, MB, null) instanceof SchedulingPolicy.Fifo);
+    }
+
+    @Test
+    public void teamIsTheTopLevelDirectory() {
+        assertEquals("a", SchedulingPolicy.team("a/b/file.txt"));
+        assertEquals("a", SchedulingPolicy.team("a\\file.txt"));
+        assertEquals("", SchedulingPolicy.team("file.txt"));
+    }
+
+    @Test
+    public void fifoKeepsTheDetectionOrder() throws IOException {
+        SchedulingPolicy policy = new SchedulingPolicy.Fifo();
+        PriorityQueue<FTPManager.FileToSendInfo> queue = new PriorityQueue<>();
+        FTPManager.FileToSendInfo large = queue(queue, policy, "a/large", 10 * MB, 0);
+        FTPManager.FileToSendInfo small = queue(queue, policy, "a/small", 1, 1000);
+
+        assertEquals(large, queue.poll());
+        assertEquals(small, queue.poll());
+    }
+
+    @Test
+    public void shortestFirstSendsSmallFilesAhead() throws IOException {
+        SchedulingPolicy policy = new SchedulingPolicy.ShortestFirst(MB);
+        PriorityQueue<FTPManager.FileToSendInfo> queue = new PriorityQueue<>();
+        FTPManager.FileToSendInfo large = queue(queue, policy, "a/large", 10 * MB, 0);
+        FTPManager.FileToSendInfo small = queue(queue, policy, "a/small", 1024, 1000);
+
+        assertEquals(small, queue.poll());
+        assertEquals(large, queue.poll());
+    }
+
+    @Test
+    public void shortestFirstAgesLargeFiles() throws IOException {
+        SchedulingPolicy policy = new SchedulingPolicy.ShortestFirst(MB);
+        PriorityQueue<FTPManager.FileToSendInfo> queue = new PriorityQueue<>();
+        FTPManager.FileToSendInfo large = queue(queue, policy, "a/large", 10 * MB, 0);
+
+        // Delayed by the time it takes to send at the aging rate, and no more
+        assertEquals(10000, large.getPriority());
+        FTPManager.FileToSendInfo late = queue(queue, policy, "a/late", 1, 10001);
+        assertEquals(large, queue.poll());
+        assertEquals(late, queue.poll());
+    }
+
+    @Test
+    public void fairAlternatesBetweenTeams() throws IOException {
+        SchedulingPolicy policy = new SchedulingPolicy.Fair(new HashMap<>());
+        PriorityQueue<FTPManager.FileToSendInfo> queue = new PriorityQueue<>();
+        for (int i = 0; i < 10; i++)
+            queue(queue, policy, "a/" + i, 1, i);
+        queue(queue, policy, "b/0", 1, 10);
+        queue(queue, policy, "b/1", 1, 11);
+
+        assertEquals("ababaaaaaaaa", teams(queue, policy));
+    }
+
+    @Test
+    public void fairFollowsTheWeights() throws IOException {
+        Map<String, Integer> weights = new HashMap<>();
+        weights.put("a", 2);
+        SchedulingPolicy policy = new SchedulingPolicy.Fair(weights);
+        PriorityQueue<FTPManager.FileToSendInfo> queue = new PriorityQueue<>();
+        for (int i = 0; i < 6; i++)
+            queue(queue, policy, "b/" + i, 1, i);
+        for (int i = 0; i < 6; i++)
+            queue(queue, policy, "a/" + i, 1, 10 + i);
+
+        assertEquals("abaabaababbb", teams(queue, policy));
+    }
+
+    @Test
+    public void fairLargeFilesOnlyDelayTheirTeam() throws IOException {
+        SchedulingPolicy policy = new SchedulingPolicy.Fair(new HashMap<>());
+        PriorityQueue<FTPManager.FileToSendInfo> queue = new PriorityQueue<>();
+        queue(queue, policy, "a/large", 10 * MB, 0);
+        queue(queue, policy, "a/small", 1, 1);
+        for (int i = 0; i < 3; i++)
+            queue(queue, policy, "b/" + i, 1, 2 + i);
+
+        assertEquals("bbbaa", teams(queue, policy));
+    }
+
+    @Test
+    public void fairIdleTeamStartsFromNow() throws IOException {
+        SchedulingPolicy policy = new SchedulingPolicy.Fair(new HashMap<>());
+        PriorityQueue<FTPManager.FileToSendInfo> queue = new PriorityQueue<>();
+        for (int i = 0; i < 6; i++)
+            queue(queue, policy, "a/" + i, 1, i);
+        teams(queue, policy, 4);
+
+        // b was idle while a sent 4 files, it gets no credit for that
+        for (int i = 0; i < 4; i++)
+            queue(queue, policy, "b/" + i, 1, 10 + i);
+        assertEquals("ababb", teams(queue, policy).substring(0, 5));
+    }
+
+    @Test
+    public void fairRestoresTheVirtualTime() throws IOException {
+        SchedulingPolicy policy = new SchedulingPolicy.Fair(new HashMap<>());
+        PriorityQueue<FTPManager.FileToSendInfo> queue = new PriorityQueue<>();
+        List<FTPManager.FileToSendInfo> files = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            files.add(queue(queue, policy, "a/" + i, 1, i));
+
+        // Replayed after a restart, a new team starts with the first replayed file
+        SchedulingPolicy restored = new SchedulingPolicy.Fair(new HashMap<>());
+        PriorityQueue<FTPManager.FileToSendInfo> replayed = new PriorityQueue<>();
+        for (FTPManager.FileToSendInfo fileToSendInfo : files) {
+            restored.restore(fileToSendInfo);
+            replayed.add(fileToSendInfo);
+        }
+        queue(replayed, restored, "b/0", 1, 10);
+        assertEquals("aabaa", teams(replayed, restored));
+    }
+
+    private FTPManager.FileToSendInfo queue(PriorityQueue<FTPManager.FileToSendInfo> queue, SchedulingPolicy policy,
+                                            String relativePath, long size, long dateAdded) throws IOException {
+        File file = new File(mDirectory, relativePath);
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs())
+            throw new IOException("Could not create '" + file.getParent() + "'.");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+
+        FTPManager.FileToSendInfo fileToSendInfo = new FTPManager.FileToSendInfo(mNextId++, file, relativePath, dateAdded);
+        fileToSendInfo.setPriority(policy.getId(), policy.assign(fileToSendInfo));
+        queue.add(fileToSendInfo);
+        return fileToSendInfo;
+    }
+
+    /**
+     * Dequeues every file, as the upload queue does
+     *
+     * @return the team of every file, in the order they were dequeued
+     */
+    private static String teams(PriorityQueue<FTPManager.FileToSendInfo> queue, SchedulingPolicy policy) {
+        return teams(queue, policy, queue.size());
+    }
+
+    private static String teams(PriorityQueue<FTPManager.FileToSendInfo> queue, SchedulingPolicy policy, int count) {
+        StringBuilder teams = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            FTPManager.FileToSendInfo fileToSendInfo = queue.poll();
+            policy.onDequeue(fileToSendInfo);
+            teams.append(SchedulingPolicy.team(fileToSendInfo.getRelativePath()));
+        }
+        return teams.toString();
+    }
+}
@@ -0,0 +1,120 @@
+package manager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edgar
+ */
+public class SpillingUploadQueueTest {
+
+    private File mDirectory;
+    private long mNextId;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestFiles.createDirectory();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteTree(mDirectory);
+    }
+
+    @Test
+    public void keepsTheOrderAcrossTheSpill() {
+        SpillingUploadQueue queue = new SpillingUploadQueue(mDirectory, 4);
+        add(queue, 20);
+        assertEquals(20, queue.size());
+        assertTrue(mDirectory.list().length > 0);
+
+        assertIds(queue, 0, 20);
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    @Test
+    public void filesAddedWhileSpilledGoBehind() {
+        SpillingUploadQueue queue = new SpillingUploadQueue(mDirectory, 4);
+        add(queue, 10);
+        assertIds(queue, 0, 3);
+        add(queue, 10);
+
+        assertIds(queue, 3, 20);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void readsBackSeveralSegments() {
+        SpillingUploadQueue queue = new SpillingUploadQueue(mDirectory, 100);
+        add(queue, 140000);
+        assertTrue(mDirectory.list().length > 1);
+
+        assertIds(queue, 0, 140000);
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    @Test
+    public void spilledFilesKeepTheirFields() {
+        SpillingUploadQueue queue = new SpillingUploadQueue(mDirectory, 2);
+        add(queue, 2);
+        FTPManager.FileToSendInfo spilled = new FTPManager.FileToSendInfo(7, new File("/data/a b.txt"), "dir/a b.txt", 1234);
+        spilled.setTransferProgress(4096, 5678);
+        spilled.setPriority(SchedulingPolicy.SHORTEST_FIRST_ID, 99);
+        queue.add(spilled);
+
+        queue.poll();
+        queue.poll();
+        FTPManager.FileToSendInfo read = queue.poll();
+        assertEquals(7, read.getId());
+        assertEquals(new File("/data/a b.txt"), read.getFile());
+        assertEquals("dir/a b.txt", read.getRelativePath());
+        assertEquals(1234, read.getDateAddedToQueue());
+        assertEquals(4096, read.getTransferOffset());
+        assertEquals(5678, read.getTransferModified());
+        assertEquals(SchedulingPolicy.SHORTEST_FIRST_ID, read.getPolicyId());
+        assertEquals(99, read.getPriority());
+    }
+
+    @Test
+    public void requeuedFileKeepsItsPlace() {
+        SpillingUploadQueue queue = new SpillingUploadQueue(mDirectory, 4);
+        add(queue, 10);
+        FTPManager.FileToSendInfo first = queue.poll();
+        queue.requeue(first);
+
+        assertIds(queue, 0, 10);
+    }
+
+    @Test
+    public void deletesLeftoverSegments() throws IOException {
+        File leftover = new File(mDirectory, "segment-0.dat");
+        assertTrue(leftover.createNewFile());
+
+        SpillingUploadQueue queue = new SpillingUploadQueue(mDirectory, 4);
+        assertFalse(leftover.exists());
+        assertTrue(queue.isEmpty());
+    }
+
+    private void add(SpillingUploadQueue queue, int count) {
+        for (int i = 0; i < count; i++) {
+            long id = mNextId++;
+            queue.add(new FTPManager.FileToSendInfo(id, new File("/data/" + id), "dir/" + id, id));
+        }
+    }
+
+    private static void assertIds(SpillingUploadQueue queue, long from, long to) {
+        for (long id = from; id < to; id++)
+            assertEquals(id, queue.poll().getId());
+    }
+}
@@ -0,0 +1,132 @@
+package manager;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edgar
+ */
+public class TarBundleTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestFiles.createDirectory();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteTree(mDirectory);
+    }
+
+    @Test
+    public void isReadByTar() throws Exception {
+        Assume.assumeTrue("tar is not installed", hasTar());
+
+        byte[] random = new byte[1500];
+        new Random(1).nextBytes(random);
+        List<TarBundle.Entry> entries = new ArrayList<>();
+        entries.add(entry("a.txt", "hello".getBytes(StandardCharsets.UTF_8)));
+        entries.add(entry("block.bin", new byte[512]));
+        entries.add(entry("random.bin", random));
+        entries.add(entry("empty", new byte[0]));
+
+        File archive = new File(mDirectory, "bundle.tar");
+        byte[] bytes = readAll(new TarBundle(entries));
+        Files.write(archive.toPath(), bytes);
+        assertEquals(0, bytes.length % 512);
+
+        String listing = tar("-tf", archive.getPath());
+        assertEquals(Arrays.asList("a.txt", "block.bin", "random.bin", "empty", TarBundle.MANIFEST_NAME),
+                Arrays.asList(listing.trim().split("\n")));
+        assertEquals("hello", tar("-xOf", archive.getPath(), "a.txt"));
+        assertArrayEquals(random, tar("-xOf", archive.getPath(), "random.bin").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void manifestListsEveryFileWithItsChecksums() throws IOException {
+        byte[] content = "hello".getBytes(StandardCharsets.UTF_8);
+        List<TarBundle.Entry> entries = new ArrayList<>();
+        entries.add(entry("a.txt", content));
+        String archive = new String(readAll(new TarBundle(entries)), StandardCharsets.ISO_8859_1);
+
+        long hash = ContentHash.of(new File(mDirectory, "a.txt"));
+        String line = "a.txt\t5\t" + entries.get(0).getModified() + "\t"
+                + String.format("%08x\t%08x", hash >>> 32, hash & 0xffffffffL) + "\n";
+        assertTrue(archive.contains(line));
+        assertEquals(hash, entries.get(0).getHash());
+    }
+
+    @Test(expected = EOFException.class)
+    public void failsIfAFileGotShorter() throws IOException {
+        List<TarBundle.Entry> entries = new ArrayList<>();
+        entries.add(entry("a.txt", "hello".getBytes(StandardCharsets.UTF_8)));
+        Files.write(new File(mDirectory, "a.txt").toPath(), new byte[2]);
+        readAll(new TarBundle(entries));
+    }
+
+    @Test
+    public void namesLongerThanTheHeaderDoNotFit() {
+        char[] name = new char[TarBundle.MAX_NAME_LENGTH];
+        Arrays.fill(name, 'a');
+        assertTrue(TarBundle.fits(new String(name)));
+        assertFalse(TarBundle.fits(new String(name) + "a"));
+    }
+
+    private TarBundle.Entry entry(String name, byte[] content) throws IOException {
+        File file = new File(mDirectory, name);
+        Files.write(file.toPath(), content);
+        return new TarBundle.Entry(file, name, file.length(), file.lastModified());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream stream = in) {
+            // An odd buffer size so reads cross the headers, data and padding
+            byte[] buffer = new byte[300];
+            int read;
+            while ((read = stream.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean hasTar() {
+        try {
+            return new ProcessBuilder("tar", "--version").redirectErrorStream(true).start().waitFor() == 0;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    private static String tar(String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add("tar");
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).start();
+        byte[] output = readAll(process.getInputStream());
+        assertEquals(0, process.waitFor());
+        return new String(output, StandardCharsets.ISO_8859_1);
+    }
+}
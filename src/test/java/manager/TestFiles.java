@@ -0,0 +1,41 @@
+package manager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Temporary directories for the tests
+ *
+ * @author edgar
+ */
+public final class TestFiles {
+
+    private TestFiles() { /* Empty */ }
+
+    public static File createDirectory() throws IOException {
+        return Files.createTempDirectory("submission-monitor-test").toFile();
+    }
+
+    public static void deleteTree(File directory) throws IOException {
+        if (directory == null || !directory.exists())
+            return;
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,90 @@
+package manager;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edgar
+ */
+public class UploadCompressionTest {
+
+    @Test
+    public void roundTripsThroughGzipInputStream() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+            text.append("line ").append(i).append('\n');
+        byte[] content = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressed = readAll(UploadCompression.Codec.GZIP.wrap(new ByteArrayInputStream(content)), 7);
+        assertTrue(compressed.length < content.length / 4);
+        assertArrayEquals(content, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed)), 4096));
+    }
+
+    @Test
+    public void roundTripsIncompressibleAndEmptyContent() throws IOException {
+        byte[] random = new byte[100000];
+        new Random(1).nextBytes(random);
+        for (byte[] content : new byte[][]{random, new byte[0]}) {
+            for (UploadCompression.Codec codec : new UploadCompression.Codec[]{UploadCompression.Codec.GZIP, UploadCompression.Codec.GZIP_FAST}) {
+                byte[] compressed = readAll(codec.wrap(new ByteArrayInputStream(content)), 1);
+                assertArrayEquals(content, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed)), 4096));
+            }
+        }
+    }
+
+    @Test
+    public void choosesOnlyFilesWorthCompressing() throws IOException {
+        File directory = TestFiles.createDirectory();
+        try {
+            byte[] text = new byte[4096];
+            Arrays.fill(text, (byte) 'a');
+            byte[] random = new byte[4096];
+            new Random(1).nextBytes(random);
+
+            assertEquals(UploadCompression.Codec.GZIP, UploadCompression.choose(write(directory, "a.txt", text), UploadCompression.Codec.GZIP));
+            assertEquals(UploadCompression.Codec.NONE, UploadCompression.choose(write(directory, "a.csv", text), UploadCompression.Codec.NONE));
+            assertEquals(UploadCompression.Codec.NONE, UploadCompression.choose(write(directory, "a.ZIP", text), UploadCompression.Codec.GZIP));
+            assertEquals(UploadCompression.Codec.NONE, UploadCompression.choose(write(directory, "b.txt", random), UploadCompression.Codec.GZIP));
+            assertEquals(UploadCompression.Codec.NONE, UploadCompression.choose(write(directory, "c.txt", new byte[100]), UploadCompression.Codec.GZIP));
+        } finally {
+            TestFiles.deleteTree(directory);
+        }
+    }
+
+    @Test
+    public void noneLeavesTheStream() {
+        InputStream in = new ByteArrayInputStream(new byte[1]);
+        assertEquals(in, UploadCompression.Codec.NONE.wrap(in));
+    }
+
+    private static File write(File directory, String name, byte[] content) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] readAll(InputStream in, int bufferSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[bufferSize];
+            int read;
+            while ((read = stream.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
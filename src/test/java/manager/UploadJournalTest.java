@@ -0,0 +1,161 @@
+package manager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author edgar
+ */
+public class UploadJournalTest {
+
+    private File mDirectory;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestFiles.createDirectory();
+        mFile = new File(mDirectory, "filesQueue.journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteTree(mDirectory);
+    }
+
+    @Test
+    public void replaysPendingFilesInOrder() throws IOException {
+        UploadJournal journal = open();
+        List<FTPManager.FileToSendInfo> files = enqueue(journal, 5);
+        journal.appendComplete(files.get(1));
+        journal.appendComplete(files.get(3));
+        journal.shutdown();
+
+        assertIds(replay(), 0, 2, 4);
+    }
+
+    @Test
+    public void replaysTransferProgress() throws IOException {
+        UploadJournal journal = open();
+        FTPManager.FileToSendInfo file = enqueue(journal, 1).get(0);
+        file.setTransferProgress(1000, 42);
+        journal.appendProgress(file);
+        file.setTransferProgress(2000, 42);
+        journal.appendProgress(file);
+        journal.shutdown();
+
+        List<FTPManager.FileToSendInfo> replayed = replay();
+        assertEquals(2000, replayed.get(0).getTransferOffset());
+        assertEquals(42, replayed.get(0).getTransferModified());
+    }
+
+    @Test
+    public void dropsTornTail() throws IOException {
+        UploadJournal journal = open();
+        enqueue(journal, 3);
+        journal.shutdown();
+        long length = mFile.length();
+
+        // A record whose write was cut short: a length, but only part of the payload
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write(new byte[]{0, 0, 0, 64, 1, 2, 3, 4, 5, 6});
+        }
+
+        assertIds(replay(), 0, 1, 2);
+        assertEquals(length, mFile.length());
+    }
+
+    @Test
+    public void dropsRecordsFromCorruptedOne() throws IOException {
+        UploadJournal journal = open();
+        enqueue(journal, 3);
+        journal.shutdown();
+
+        // Flip a byte in the payload of the last record, its CRC no longer matches
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xff);
+        }
+
+        assertIds(replay(), 0, 1);
+    }
+
+    @Test
+    public void appendsAfterReplayOfTornJournal() throws IOException {
+        UploadJournal journal = open();
+        enqueue(journal, 2);
+        journal.shutdown();
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write(new byte[]{0, 0});
+        }
+
+        journal = open();
+        journal.appendEnqueue(new FTPManager.FileToSendInfo(7, new File("/data/7"), "7", 7));
+        journal.shutdown();
+
+        assertIds(replay(), 0, 1, 7);
+    }
+
+    @Test
+    public void compactionKeepsPendingFiles() throws IOException {
+        UploadJournal journal = open();
+        List<FTPManager.FileToSendInfo> files = enqueue(journal, 3000);
+        for (int i = 0; i < 2000; i++)
+            journal.appendComplete(files.get(i));
+        FTPManager.FileToSendInfo resumed = files.get(2500);
+        resumed.setTransferProgress(123, 456);
+        journal.appendProgress(resumed);
+        long length = mFile.length();
+
+        journal.compact();
+        journal.appendComplete(files.get(2000));
+        journal.shutdown();
+
+        List<FTPManager.FileToSendInfo> replayed = replay();
+        assertEquals(999, replayed.size());
+        assertEquals(2001, replayed.get(0).getId());
+        assertEquals(123, replayed.get(499).getTransferOffset());
+        assertFalse(mFile.length() >= length);
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    private UploadJournal open() throws IOException {
+        UploadJournal journal = new UploadJournal(mFile);
+        journal.replay(fileToSendInfo -> { });
+        return journal;
+    }
+
+    private List<FTPManager.FileToSendInfo> replay() throws IOException {
+        List<FTPManager.FileToSendInfo> files = new ArrayList<>();
+        UploadJournal journal = new UploadJournal(mFile);
+        journal.replay(files::add);
+        journal.shutdown();
+        return files;
+    }
+
+    private static List<FTPManager.FileToSendInfo> enqueue(UploadJournal journal, int count) throws IOException {
+        List<FTPManager.FileToSendInfo> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            files.add(new FTPManager.FileToSendInfo(i, new File("/data/" + i), "dir/" + i, i));
+        journal.appendEnqueue(files);
+        return files;
+    }
+
+    private static void assertIds(List<FTPManager.FileToSendInfo> files, long... ids) {
+        assertEquals(ids.length, files.size());
+        for (int i = 0; i < ids.length; i++)
+            assertEquals(ids[i], files.get(i).getId());
+    }
+}
@@ -0,0 +1,100 @@
+package manager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edgar
+ */
+public class UploadManifestTest {
+
+    /**
+     * More than half the initial capacity, so the table grows at least once
+     */
+    private static final int FILES = 40000;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestFiles.createDirectory();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteTree(mDirectory);
+    }
+
+    @Test
+    public void newManifestIsEmpty() throws IOException {
+        UploadManifest manifest = load();
+        assertTrue(manifest.isNew());
+        assertFalse(manifest.contains("a", 1, 1));
+        assertEquals(0, manifest.getContentHash("a", 1));
+    }
+
+    @Test
+    public void recordReplacesPreviousVersion() throws IOException {
+        UploadManifest manifest = load();
+        manifest.record("a/b.txt", 10, 100, 7);
+        manifest.record("a/b.txt", 20, 200, 8);
+
+        assertFalse(manifest.contains("a/b.txt", 10, 100));
+        assertTrue(manifest.contains("a/b.txt", 20, 200));
+        assertEquals(8, manifest.getContentHash("a/b.txt", 20));
+        assertEquals(0, manifest.getContentHash("a/b.txt", 10));
+    }
+
+    @Test
+    public void growsAndReloads() throws IOException {
+        UploadManifest manifest = load();
+        for (int i = 0; i < FILES; i++)
+            manifest.record("dir/" + i, i, i * 10L, i + 1);
+
+        UploadManifest reloaded = load();
+        assertFalse(reloaded.isNew());
+        for (int i = 0; i < FILES; i++) {
+            assertTrue(reloaded.contains("dir/" + i, i, i * 10L));
+            assertEquals(i + 1, reloaded.getContentHash("dir/" + i, i));
+        }
+        // Only the last generation is left
+        assertEquals(1, indexFiles().length);
+    }
+
+    @Test
+    public void ignoresIncompleteGeneration() throws IOException {
+        UploadManifest manifest = load();
+        manifest.record("kept", 1, 2, 3);
+
+        // What a crash in the middle of a grow leaves: a larger generation without its magic
+        try (RandomAccessFile raf = new RandomAccessFile(new File(mDirectory, "uploadedFiles.1.idx"), "rw")) {
+            raf.setLength(32 + 32L * (1 << 17));
+            raf.writeInt(0);
+            raf.writeInt(1);
+            raf.writeInt(1 << 17);
+        }
+
+        UploadManifest reloaded = load();
+        assertTrue(reloaded.contains("kept", 1, 2));
+        assertEquals(1, indexFiles().length);
+    }
+
+    private UploadManifest load() throws IOException {
+        UploadManifest manifest = new UploadManifest(mDirectory, "uploadedFiles");
+        manifest.load();
+        return manifest;
+    }
+
+    private File[] indexFiles() {
+        return mDirectory.listFiles((dir, name) -> name.endsWith(".idx"));
+    }
+}
@@ -0,0 +1,139 @@
+package watcher;
+
+import manager.TestFiles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edgar
+ */
+public class DirectorySnapshotTest {
+
+    private Path mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestFiles.createDirectory().toPath();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteTree(mDirectory.toFile());
+    }
+
+    @Test
+    public void reportsNewAndChangedEntries() throws IOException {
+        DirectorySnapshot snapshot = new DirectorySnapshot();
+        Path file = Files.write(mDirectory.resolve("a.txt"), new byte[10]);
+
+        assertTrue(snapshot.update(mDirectory, file, attributes(file)));
+        assertFalse(snapshot.update(mDirectory, file, attributes(file)));
+
+        Files.write(file, new byte[20]);
+        assertTrue(snapshot.update(mDirectory, file, attributes(file)));
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(1000));
+        assertTrue(snapshot.update(mDirectory, file, attributes(file)));
+        assertFalse(snapshot.update(mDirectory, file, attributes(file)));
+    }
+
+    @Test
+    public void directoriesOnlyChangeWhenTheyAppear() throws IOException {
+        DirectorySnapshot snapshot = new DirectorySnapshot();
+        Path dir = Files.createDirectory(mDirectory.resolve("dir"));
+
+        assertTrue(snapshot.update(mDirectory, dir, attributes(dir)));
+        Files.write(dir.resolve("a.txt"), new byte[10]);
+        Files.setLastModifiedTime(dir, FileTime.fromMillis(1000));
+        assertFalse(snapshot.update(mDirectory, dir, attributes(dir)));
+    }
+
+    @Test
+    public void keepsTheEntriesOfEachDirectoryApart() throws IOException {
+        DirectorySnapshot snapshot = new DirectorySnapshot();
+        Path dir = Files.createDirectory(mDirectory.resolve("dir"));
+        Path file = Files.write(mDirectory.resolve("a.txt"), new byte[10]);
+        Path other = Files.write(dir.resolve("a.txt"), new byte[10]);
+
+        assertTrue(snapshot.update(mDirectory, file, attributes(file)));
+        assertTrue(snapshot.update(dir, other, attributes(other)));
+        assertTrue(snapshot.update(mDirectory, dir, attributes(dir)));
+
+        assertEquals(new HashSet<>(Arrays.asList("a.txt", "dir")), snapshot.get(mDirectory).names());
+        assertEquals(new HashSet<>(Arrays.asList("a.txt")), snapshot.get(dir).names());
+    }
+
+    @Test
+    public void namesAreACopy() throws IOException {
+        DirectorySnapshot snapshot = new DirectorySnapshot();
+        Path file = Files.write(mDirectory.resolve("a.txt"), new byte[10]);
+        snapshot.update(mDirectory, file, attributes(file));
+
+        snapshot.get(mDirectory).names().remove("a.txt");
+        assertTrue(snapshot.get(mDirectory).contains("a.txt"));
+
+        snapshot.get(mDirectory).remove("a.txt");
+        assertFalse(snapshot.get(mDirectory).contains("a.txt"));
+        assertTrue(snapshot.update(mDirectory, file, attributes(file)));
+    }
+
+    @Test
+    public void removeTreeForgetsTheDirectoriesBelow() {
+        DirectorySnapshot snapshot = new DirectorySnapshot();
+        Path a = mDirectory.resolve("a");
+        Path ab = a.resolve("b");
+        Path abc = mDirectory.resolve("abc");
+        snapshot.get(a);
+        snapshot.get(ab);
+        snapshot.get(abc);
+
+        snapshot.removeTree(a);
+        assertNull(snapshot.find(a));
+        assertNull(snapshot.find(ab));
+        assertNotNull(snapshot.find(abc));
+    }
+
+    @Test
+    public void removeKeepsTheDirectoriesBelow() {
+        DirectorySnapshot snapshot = new DirectorySnapshot();
+        Path a = mDirectory.resolve("a");
+        Path ab = a.resolve("b");
+        snapshot.get(a);
+        snapshot.get(ab);
+
+        snapshot.remove(a);
+        assertNull(snapshot.find(a));
+        assertNotNull(snapshot.find(ab));
+    }
+
+    @Test
+    public void neverRescannedWhateverTheClock() {
+        DirectorySnapshot.Directory directory = new DirectorySnapshot().get(mDirectory);
+        assertFalse(directory.rescannedSince(Long.MIN_VALUE / 2));
+        assertFalse(directory.rescannedSince(0));
+
+        directory.setRescanned(-1000);
+        assertTrue(directory.rescannedSince(Long.MIN_VALUE / 2));
+        assertFalse(directory.rescannedSince(-1000));
+        assertFalse(directory.rescannedSince(0));
+    }
+
+    private static BasicFileAttributes attributes(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+}
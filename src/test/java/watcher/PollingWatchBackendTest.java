@@ -0,0 +1,104 @@
+package watcher;
+
+import manager.TestFiles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edgar
+ */
+public class PollingWatchBackendTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private Path mDirectory;
+    private PollingWatchBackend mBackend;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestFiles.createDirectory().toPath();
+        mBackend = new PollingWatchBackend(10, 100, 2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mBackend.close();
+        mExecutor.shutdownNow();
+        TestFiles.deleteTree(mDirectory.toFile());
+    }
+
+    @Test
+    public void isCreatedByName() throws IOException {
+        WatchBackend backend = WatchBackend.create(" Polling ", 10, 100, 1);
+        assertTrue(backend instanceof PollingWatchBackend);
+        backend.close();
+    }
+
+    @Test
+    public void reportsNewFiles() throws Exception {
+        Files.write(mDirectory.resolve("old.txt"), new byte[1]);
+        mBackend.register(mDirectory);
+        assertEquals(1, mBackend.size());
+
+        Files.write(mDirectory.resolve("new.txt"), new byte[1]);
+        WatchBackend.DirectoryEvents events = take();
+        assertEquals(mDirectory, events.getDir());
+        assertTrue(events.isValid());
+        assertEquals(1, events.getEvents().size());
+        assertEvent(ENTRY_CREATE, "new.txt", events.getEvents().get(0));
+    }
+
+    @Test
+    public void reportsWritesToRecentFiles() throws Exception {
+        Path file = Files.write(mDirectory.resolve("a.txt"), new byte[1]);
+        mBackend.register(mDirectory);
+
+        // The directory changed less than the mtime granularity ago, so it is listed again
+        try (FileOutputStream out = new FileOutputStream(file.toFile(), true)) {
+            out.write(new byte[10]);
+        }
+        WatchBackend.DirectoryEvents events = take();
+        assertEquals(1, events.getEvents().size());
+        assertEvent(ENTRY_MODIFY, "a.txt", events.getEvents().get(0));
+    }
+
+    @Test
+    public void reportsDeletedDirectoriesAsInvalid() throws Exception {
+        Path dir = Files.createDirectory(mDirectory.resolve("dir"));
+        mBackend.register(dir);
+        Files.delete(dir);
+
+        WatchBackend.DirectoryEvents events = take();
+        assertEquals(dir, events.getDir());
+        assertFalse(events.isValid());
+        assertTrue(events.getEvents().isEmpty());
+        assertEquals(0, mBackend.size());
+    }
+
+    private WatchBackend.DirectoryEvents take() throws Exception {
+        return mExecutor.submit(mBackend::take).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void assertEvent(WatchEvent.Kind<?> kind, String name, WatchEvent<?> event) {
+        assertEquals(kind, event.kind());
+        assertEquals(Paths.get(name), event.context());
+    }
+}
@@ -0,0 +1,156 @@
+package watcher;
+
+import manager.OnEventReceived;
+import manager.RecordingDelegate;
+import manager.TestFiles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author edgar
+ */
+public class WatchDirTest {
+
+    private static final long WINDOW_MS = 50;
+    private static final long TIMEOUT_MS = 5000;
+
+    private Path mDirectory;
+    private RecordingDelegate mDelegate;
+    private Thread mWatcher;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestFiles.createDirectory().toPath();
+        mDelegate = new RecordingDelegate();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mWatcher != null) {
+            mWatcher.interrupt();
+            mWatcher.join();
+        }
+        TestFiles.deleteTree(mDirectory.toFile());
+    }
+
+    @Test
+    public void catchesUpOnTheFilesAlreadyThere() throws Exception {
+        Path sub = Files.createDirectories(mDirectory.resolve("a/b"));
+        Path first = Files.write(mDirectory.resolve("1.txt"), new byte[1]);
+        Path second = Files.write(sub.resolve("2.txt"), new byte[1]);
+        Files.write(sub.resolve("sent.txt"), new byte[1]);
+
+        new WatchDir(mDirectory, true, mDelegate, WINDOW_MS, path -> !path.endsWith("sent.txt"));
+
+        mDelegate.await(2, TIMEOUT_MS);
+        Thread.sleep(3 * WINDOW_MS);
+        assertEquals(new HashSet<>(Arrays.asList(first, second)), new HashSet<>(mDelegate.getPaths()));
+    }
+
+    @Test
+    public void reportsNewFiles() throws Exception {
+        WatchDir watchDir = new WatchDir(mDirectory, true, mDelegate, WINDOW_MS);
+        start(watchDir);
+
+        Path file = Files.write(mDirectory.resolve("1.txt"), new byte[1]);
+        List<OnEventReceived.Event> events = mDelegate.await(1, TIMEOUT_MS);
+        assertEquals(1, events.size());
+        assertEquals(ENTRY_CREATE, events.get(0).getKind());
+        assertEquals(file, events.get(0).getPath());
+    }
+
+    @Test
+    public void reportsEveryFileOfABurst() throws Exception {
+        WatchDir watchDir = new WatchDir(mDirectory, true, mDelegate, WINDOW_MS);
+        start(watchDir);
+
+        HashSet<Path> files = new HashSet<>();
+        for (int i = 0; i < 200; i++)
+            files.add(Files.write(mDirectory.resolve(i + ".txt"), new byte[1]));
+        mDelegate.await(files.size(), TIMEOUT_MS);
+        Thread.sleep(3 * WINDOW_MS);
+        assertEquals(files, new HashSet<>(mDelegate.getPaths()));
+    }
+
+    @Test
+    public void reportsFilesOfNewDirectories() throws Exception {
+        WatchDir watchDir = new WatchDir(mDirectory, true, mDelegate, WINDOW_MS);
+        start(watchDir);
+
+        // Written right after the directory, possibly before it is registered
+        Path sub = Files.createDirectories(mDirectory.resolve("a"));
+        Path file = Files.write(sub.resolve("1.txt"), new byte[1]);
+        mDelegate.await(2, TIMEOUT_MS);
+        Thread.sleep(3 * WINDOW_MS);
+        assertEquals(new HashSet<>(Arrays.asList(sub, file)), new HashSet<>(mDelegate.getPaths()));
+    }
+
+    @Test
+    public void rescanFindsTheMissedChanges() throws Exception {
+        Path changed = Files.write(mDirectory.resolve("changed.txt"), new byte[1]);
+        Path unchanged = Files.write(mDirectory.resolve("unchanged.txt"), new byte[1]);
+        Path deleted = Files.write(mDirectory.resolve("deleted.txt"), new byte[1]);
+        Path sub = Files.createDirectories(mDirectory.resolve("a"));
+        WatchDir watchDir = new WatchDir(mDirectory, true, mDelegate, WINDOW_MS, path -> true);
+        mDelegate.await(3, TIMEOUT_MS);
+        mDelegate.clear();
+
+        // Events are not processed, the changes are only found by the rescan
+        Files.write(changed, new byte[2]);
+        Files.delete(deleted);
+        Path created = Files.write(sub.resolve("created.txt"), new byte[1]);
+        watchDir.rescan(mDirectory, System.nanoTime());
+
+        mDelegate.await(2, TIMEOUT_MS);
+        Thread.sleep(3 * WINDOW_MS);
+        assertEquals(new HashSet<>(Arrays.asList(changed, created)), new HashSet<>(mDelegate.getPaths()));
+        assertTrue(Files.exists(unchanged));
+    }
+
+    @Test
+    public void rescanSkipsDirectoriesRescannedSinceTheLoss() throws Exception {
+        WatchDir watchDir = new WatchDir(mDirectory, true, mDelegate, WINDOW_MS, path -> true);
+        long lostAt = System.nanoTime();
+        watchDir.rescan(mDirectory, lostAt);
+
+        Files.write(mDirectory.resolve("1.txt"), new byte[1]);
+        watchDir.rescan(mDirectory, lostAt);
+        Thread.sleep(3 * WINDOW_MS);
+        assertTrue(mDelegate.getEvents().isEmpty());
+    }
+
+    @Test
+    public void rescanWorksWhateverTheClock() throws Exception {
+        WatchDir watchDir = new WatchDir(mDirectory, true, mDelegate, WINDOW_MS, path -> true);
+
+        // System.nanoTime() has no fixed origin, the loss can be at a negative time
+        Path file = Files.write(mDirectory.resolve("1.txt"), new byte[1]);
+        watchDir.rescan(mDirectory, Long.MIN_VALUE / 2);
+        List<OnEventReceived.Event> events = mDelegate.await(1, TIMEOUT_MS);
+        assertEquals(1, events.size());
+        assertEquals(file, events.get(0).getPath());
+    }
+
+    private void start(WatchDir watchDir) {
+        mWatcher = new Thread(() -> {
+            try {
+                watchDir.processEvents();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        mWatcher.start();
+    }
+}